@@ -0,0 +1,90 @@
+package com.sitm.mio.common;
+
+/**
+ * Acumulador de tiempos de viaje de un arco (minutos)
+ * OPTIMIZACIÓN: Solo campos primitivos (muestras, suma, suma de cuadrados, mínimo y máximo);
+ * agregar una muestra no asigna memoria y combinar es asociativo, por lo que los parciales de
+ * hilos, lotes o Workers se unen en cualquier orden con el mismo resultado que un cálculo único
+ */
+public class ArcAccumulator {
+
+    private long muestras;
+    private double suma;
+    private double sumaCuadrados;
+    private double minimo = Double.POSITIVE_INFINITY;
+    private double maximo = Double.NEGATIVE_INFINITY;
+
+    public ArcAccumulator() {
+    }
+
+    /**
+     * Reconstruye un acumulador a partir de sus campos (ej: recibido por Ice)
+     */
+    public ArcAccumulator(long muestras, double suma, double sumaCuadrados, double minimo, double maximo) {
+        this.muestras = muestras;
+        this.suma = suma;
+        this.sumaCuadrados = sumaCuadrados;
+        this.minimo = muestras > 0 ? minimo : Double.POSITIVE_INFINITY;
+        this.maximo = muestras > 0 ? maximo : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Acumulador con solo promedio y muestras (sin dispersión conocida)
+     */
+    public static ArcAccumulator desdePromedio(double promedio, long muestras) {
+        return new ArcAccumulator(muestras, promedio * muestras, promedio * promedio * muestras, promedio, promedio);
+    }
+
+    public void agregar(double tiempo) {
+        muestras++;
+        suma += tiempo;
+        sumaCuadrados += tiempo * tiempo;
+        if (tiempo < minimo) {
+            minimo = tiempo;
+        }
+        if (tiempo > maximo) {
+            maximo = tiempo;
+        }
+    }
+
+    /**
+     * Suma las muestras de otro acumulador a este
+     */
+    public ArcAccumulator combinar(ArcAccumulator otro) {
+        muestras += otro.muestras;
+        suma += otro.suma;
+        sumaCuadrados += otro.sumaCuadrados;
+        minimo = Math.min(minimo, otro.minimo);
+        maximo = Math.max(maximo, otro.maximo);
+        return this;
+    }
+
+    public ArcAccumulator copia() {
+        return new ArcAccumulator(muestras, suma, sumaCuadrados, minimo, maximo);
+    }
+
+    public long getMuestras() { return muestras; }
+    public double getSuma() { return suma; }
+    public double getSumaCuadrados() { return sumaCuadrados; }
+    public double getMinimo() { return muestras > 0 ? minimo : 0.0; }
+    public double getMaximo() { return muestras > 0 ? maximo : 0.0; }
+
+    public double getPromedio() {
+        return muestras > 0 ? suma / muestras : 0.0;
+    }
+
+    /**
+     * Varianza muestral (n - 1); 0 con menos de dos muestras
+     */
+    public double getVarianza() {
+        if (muestras < 2) {
+            return 0.0;
+        }
+        double promedio = suma / muestras;
+        return Math.max(0.0, (sumaCuadrados - muestras * promedio * promedio) / (muestras - 1));
+    }
+
+    public double getDesviacion() {
+        return Math.sqrt(getVarianza());
+    }
+}
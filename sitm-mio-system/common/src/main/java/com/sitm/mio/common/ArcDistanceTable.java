@@ -0,0 +1,229 @@
+package com.sitm.mio.common;
+
+import com.sitm.mio.grafos.Arco;
+import com.sitm.mio.grafos.Grafo;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabla de distancias entre paradas indexada por el índice de la SymbolTable global
+ * OPTIMIZACIÓN: Se construye una sola vez por mapa de nodos y se comparte entre hilos, lotes y
+ * colectores. Las coordenadas y cos(latitud) de cada parada se guardan en arreglos primitivos;
+ * las distancias de los arcos del grafo (desdeGrafo) se precalculan en una tabla hash abierta de
+ * solo lectura (long origen << 32 | destino -> double), por lo que calcular la distancia de un
+ * arco conocido es una búsqueda sin trigonometría ni GraphNode temporales
+ *
+ * Para los demás pares se usa Haversine con los valores ya precalculados y el resultado se
+ * memoriza en la tabla (thread-safe): cada par observado se calcula una vez por mapa de nodos,
+ * aunque el Worker o el Master solo reciban las paradas y no los arcos del grafo
+ */
+public final class ArcDistanceTable {
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final long VACIA = -1L;
+
+    // Tablas de los mapas de nodos recientes (Workers y Master reutilizan el mismo mapa por job)
+    // Por identidad del mapa, el más reciente primero; con jobs intercalados cada uno conserva su
+    // tabla. El mapa se referencia débil: la entrada se libera al terminar el job
+    private static final int MAXIMO_TABLAS = 8;
+    private static final List<Registro> tablas = new ArrayList<>();
+
+    private final double[] latitudes;   // Grados, NaN si la parada no está en el grafo
+    private final double[] longitudes;
+    private final double[] cosenos;     // cos(latitud)
+
+    private final long[] claves;        // Pares precalculados (origen << 32 | destino)
+    private final double[] distancias;
+    private final int mascara;
+    private int paresPrecalculados;
+
+    private final ConcurrentHashMap<Long, Double> calculadas = new ConcurrentHashMap<>();
+
+    private ArcDistanceTable(Map<String, GraphNode> nodos, int paresEsperados) {
+        SymbolTable tabla = SymbolTable.global();
+        int maximo = -1;
+        int[] indices = new int[nodos.size()];
+        GraphNode[] orden = new GraphNode[nodos.size()];
+        int n = 0;
+        for (GraphNode nodo : nodos.values()) {
+            indices[n] = tabla.intern(nodo.getId());
+            orden[n] = nodo;
+            maximo = Math.max(maximo, indices[n]);
+            n++;
+        }
+
+        latitudes = new double[maximo + 1];
+        longitudes = new double[maximo + 1];
+        cosenos = new double[maximo + 1];
+        Arrays.fill(latitudes, Double.NaN);
+        for (int i = 0; i < n; i++) {
+            latitudes[indices[i]] = orden[i].getLatitud();
+            longitudes[indices[i]] = orden[i].getLongitud();
+            cosenos[indices[i]] = Math.cos(Math.toRadians(orden[i].getLatitud()));
+        }
+
+        int capacidad = Integer.highestOneBit(Math.max(2, paresEsperados * 2) - 1) << 1;
+        claves = new long[capacidad];
+        distancias = new double[capacidad];
+        mascara = capacidad - 1;
+        Arrays.fill(claves, VACIA);
+    }
+
+    /**
+     * Tabla para un mapa de nodos; reutiliza la del mismo mapa (misma instancia) si sigue registrada
+     */
+    public static ArcDistanceTable para(Map<String, GraphNode> nodos) {
+        synchronized (tablas) {
+            ArcDistanceTable registrada = buscar(nodos);
+            if (registrada != null) {
+                return registrada;
+            }
+        }
+        // Se construye fuera del lock; si otro hilo registró una para el mismo mapa, gana la suya
+        ArcDistanceTable nueva = new ArcDistanceTable(nodos, 0);
+        synchronized (tablas) {
+            ArcDistanceTable registrada = buscar(nodos);
+            if (registrada != null) {
+                return registrada;
+            }
+            registrar(nodos, nueva);
+            return nueva;
+        }
+    }
+
+    /**
+     * Tabla con las distancias de todos los arcos del grafo precalculadas
+     * Queda registrada para el mapa de nodos (las llamadas a para(nodos) la reutilizan); la
+     * llama explícitamente quien tiene el grafo y va a calcular arcos en el mismo proceso
+     */
+    public static ArcDistanceTable desdeGrafo(Grafo grafo, Map<String, GraphNode> nodos) {
+        ArcDistanceTable tabla = new ArcDistanceTable(nodos, grafo.getNumeroArcos());
+        SymbolTable simbolos = SymbolTable.global();
+        for (Arco arco : grafo.obtenerArcos()) {
+            int origen = simbolos.buscar(arco.getOrigen().getId());
+            int destino = simbolos.buscar(arco.getDestino().getId());
+            if (origen >= 0 && destino >= 0 && tabla.conocida(origen) && tabla.conocida(destino)) {
+                tabla.insertar(clave(origen, destino), tabla.haversine(origen, destino));
+            }
+        }
+        synchronized (tablas) {
+            registrar(nodos, tabla);
+        }
+        return tabla;
+    }
+
+    /**
+     * Tabla registrada para el mapa (la pasa al frente) o null; descarta los mapas ya liberados
+     * Se llama con el lock de tablas
+     */
+    private static ArcDistanceTable buscar(Map<String, GraphNode> nodos) {
+        for (Iterator<Registro> it = tablas.iterator(); it.hasNext(); ) {
+            Registro registro = it.next();
+            Map<String, GraphNode> mapa = registro.nodos.get();
+            if (mapa == null) {
+                it.remove();
+            } else if (mapa == nodos) {
+                it.remove();
+                tablas.add(0, registro);
+                return registro.tabla;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registra la tabla al frente (reemplaza la del mismo mapa) y desaloja la menos reciente si se
+     * supera MAXIMO_TABLAS. Se llama con el lock de tablas
+     */
+    private static void registrar(Map<String, GraphNode> nodos, ArcDistanceTable tabla) {
+        tablas.removeIf(registro -> registro.nodos.get() == null || registro.nodos.get() == nodos);
+        tablas.add(0, new Registro(nodos, tabla));
+        if (tablas.size() > MAXIMO_TABLAS) {
+            tablas.remove(tablas.size() - 1);
+        }
+    }
+
+    /**
+     * Distancia en km entre dos paradas por índice; NaN si alguna no está en el grafo
+     */
+    public double distancia(int origen, int destino) {
+        if (!conocida(origen) || !conocida(destino)) {
+            return Double.NaN;
+        }
+        long clave = clave(origen, destino);
+        for (int i = mezclar(clave) & mascara; claves[i] != VACIA; i = (i + 1) & mascara) {
+            if (claves[i] == clave) {
+                return distancias[i];
+            }
+        }
+        Double calculada = calculadas.get(clave);
+        if (calculada == null) {
+            calculada = haversine(origen, destino);
+            calculadas.put(clave, calculada);
+        }
+        return calculada;
+    }
+
+    /**
+     * true si la parada está en la tabla de nodos
+     */
+    public boolean conocida(int stopIndex) {
+        return stopIndex >= 0 && stopIndex < latitudes.length && !Double.isNaN(latitudes[stopIndex]);
+    }
+
+    /**
+     * Mismo cálculo que DistanceCalculator (mismo resultado) con cos(latitud) precalculado
+     */
+    private double haversine(int origen, int destino) {
+        double dLat = Math.toRadians(latitudes[destino] - latitudes[origen]);
+        double dLon = Math.toRadians(longitudes[destino] - longitudes[origen]);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                   cosenos[origen] * cosenos[destino] *
+                   Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return EARTH_RADIUS_KM * c;
+    }
+
+    private void insertar(long clave, double distancia) {
+        int i = mezclar(clave) & mascara;
+        while (claves[i] != VACIA && claves[i] != clave) {
+            i = (i + 1) & mascara;
+        }
+        if (claves[i] == VACIA) {
+            paresPrecalculados++;
+        }
+        claves[i] = clave;
+        distancias[i] = distancia;
+    }
+
+    private static long clave(int origen, int destino) {
+        return ((long) origen << 32) | (destino & 0xFFFFFFFFL);
+    }
+
+    private static int mezclar(long clave) {
+        long h = clave * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public int getParesPrecalculados() { return paresPrecalculados; }
+    public int getParesCalculados() { return calculadas.size(); }
+
+    /**
+     * Mapa de nodos (referencia débil: la tabla no lo retiene) y su tabla
+     */
+    private static final class Registro {
+        final WeakReference<Map<String, GraphNode>> nodos;
+        final ArcDistanceTable tabla;
+
+        Registro(Map<String, GraphNode> nodos, ArcDistanceTable tabla) {
+            this.nodos = new WeakReference<>(nodos);
+            this.tabla = tabla;
+        }
+    }
+}
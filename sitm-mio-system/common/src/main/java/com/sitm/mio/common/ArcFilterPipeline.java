@@ -0,0 +1,215 @@
+package com.sitm.mio.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Filtros de arcos de un job, compilados una sola vez (inmutable: se comparte entre hilos)
+ * OPTIMIZACIÓN: Las propiedades se leen al crear el pipeline y no dentro del recorrido; el Master
+ * lo crea por job y lo envía a los Workers con cada lote, así todos filtran igual
+ *
+ * Etapas por muestra de tiempo (minutos):
+ *   1. Rango fijo (tiempoMinimo, tiempoMaximo) y corte de viaje (gapViajeMaximo)
+ *   2. Atípicos por arco (Hampel): se descarta t si |t - p50| > k * 1.4826 * MAD, con p50 y MAD
+ *      del QuantileSketch del arco con TODAS sus muestras de la etapa 1 (limitesAtipicos). Por eso
+ *      necesita dos pasadas: la primera sin la etapa llena los sketches (combinables de forma exacta
+ *      entre particiones), la segunda descarta con límites fijos por arco; por muestra son dos
+ *      comparaciones. El resultado no depende del orden de llegada ni de cómo se partió el cálculo.
+ *      El sketch recibe todas las muestras de la etapa 1 (la distribución conserva la cola real);
+ *      el promedio, mínimo, máximo y el perfil por franja solo las aceptadas.
+ *      Solo la aplican los cálculos locales que pueden recorrer los datos dos veces
+ *      (calcularVelocidadesReales, secuencial o BusPartitionedArcTask, y calcularVelocidadesDesdeArchivo).
+ *      StreamingArcEngine y followFile ven cada muestra una sola vez, y en jobs distribuidos el
+ *      Master solo recibe acumulados: ahí no se aplica (sinAtipicos). Por eso viene desactivada:
+ *      con atipicosK > 0 esos cálculos dejan de coincidir con el flujo y con los jobs distribuidos
+ * Sobre el total combinado: distancia mínima y velocidad promedio en rango (esValida)
+ *
+ * Propiedades: datagram.filter.tiempoMinimo, tiempoMaximo, permanenciaMaxima, distanciaMinima,
+ * velocidadMinima, velocidadMaxima, atipicosK (por defecto 0 = desactivada; ej: 3.0), atipicosMinMuestras
+ * (por defecto 30) y datagram.trip.gapMaximo
+ */
+public final class ArcFilterPipeline {
+
+    private static final double ESCALA_MAD = 1.4826; // MAD -> desviación estándar en datos normales
+
+    private final double tiempoMinimo;
+    private final double tiempoMaximo;
+    private final double permanenciaMaxima;
+    private final double gapViajeMaximo;
+    private final double distanciaMinima;
+    private final double velocidadMinima;
+    private final double velocidadMaxima;
+    private final double atipicosK;
+    private final int minMuestrasAtipicos;
+
+    public ArcFilterPipeline(double tiempoMinimo, double tiempoMaximo, double permanenciaMaxima,
+                             double gapViajeMaximo, double distanciaMinima, double velocidadMinima,
+                             double velocidadMaxima, double atipicosK, int minMuestrasAtipicos) {
+        this.tiempoMinimo = tiempoMinimo;
+        this.tiempoMaximo = tiempoMaximo;
+        this.permanenciaMaxima = permanenciaMaxima;
+        this.gapViajeMaximo = gapViajeMaximo;
+        this.distanciaMinima = distanciaMinima;
+        this.velocidadMinima = velocidadMinima;
+        this.velocidadMaxima = velocidadMaxima;
+        this.atipicosK = atipicosK;
+        this.minMuestrasAtipicos = Math.max(2, minMuestrasAtipicos);
+    }
+
+    /**
+     * Compila el pipeline a partir de las propiedades del sistema
+     */
+    public static ArcFilterPipeline desdePropiedades() {
+        return new ArcFilterPipeline(
+            propiedad("datagram.filter.tiempoMinimo", "0.1"),       // 6 segundos mínimo
+            propiedad("datagram.filter.tiempoMaximo", "120.0"),     // 2 horas máximo
+            propiedad("datagram.filter.permanenciaMaxima", "30.0"), // 30 minutos máximo
+            propiedad("datagram.trip.gapMaximo", "30.0"),
+            propiedad("datagram.filter.distanciaMinima", "0.01"),   // 10 metros mínimo
+            propiedad("datagram.filter.velocidadMinima", "1.0"),    // 1 km/h mínimo
+            propiedad("datagram.filter.velocidadMaxima", "120.0"),  // 120 km/h máximo
+            propiedad("datagram.filter.atipicosK", "0"),     // Opcional: ver etapa 2
+            Integer.getInteger("datagram.filter.atipicosMinMuestras", 30));
+    }
+
+    private static double propiedad(String nombre, String porDefecto) {
+        return Double.parseDouble(System.getProperty(nombre, porDefecto));
+    }
+
+    /**
+     * Etapa 1: tiempo de un par dentro del rango fijo
+     */
+    public boolean aceptaTiempo(double minutos) {
+        return minutos > tiempoMinimo && minutos < tiempoMaximo;
+    }
+
+    public boolean aceptaPermanencia(double minutos) {
+        return minutos > 0 && minutos <= permanenciaMaxima;
+    }
+
+    public TripBoundaryDetector detectorDeViaje() {
+        return new TripBoundaryDetector(gapViajeMaximo);
+    }
+
+    /**
+     * true si el pipeline incluye la etapa de atípicos (y por lo tanto la segunda pasada)
+     */
+    public boolean aplicaAtipicos() {
+        return atipicosK > 0;
+    }
+
+    /**
+     * Etapa 2: límites fijos por arco a partir de los acumulados de la primera pasada
+     * Los arcos con menos de minMuestrasAtipicos muestras no tienen límites (no se descarta nada)
+     */
+    public ArcKeyMap<LimitesAtipicos> limitesAtipicos(ArcKeyMap<DatagramProcessor.SpeedStatistics> acumulados) {
+        ArcKeyMap<LimitesAtipicos> limites = new ArcKeyMap<>(acumulados.size());
+        if (atipicosK <= 0) {
+            return limites;
+        }
+        acumulados.forEach((clave, s) -> {
+            QuantileSketch distribucion = s.getDistribucion();
+            if (distribucion != null && distribucion.getMuestras() >= minMuestrasAtipicos) {
+                limites.put(clave, limites(distribucion));
+            }
+        });
+        return limites;
+    }
+
+    private LimitesAtipicos limites(QuantileSketch distribucion) {
+        double mediana = distribucion.cuantil(0.5);
+        // Piso de un bucket del sketch: con MAD 0 (tiempos casi iguales) no se descarta todo lo demás
+        double escala = Math.max(ESCALA_MAD * distribucion.desviacionMediana(),
+                                 mediana * (distribucion.getGamma() - 1));
+        return new LimitesAtipicos(mediana - atipicosK * escala, mediana + atipicosK * escala);
+    }
+
+    /**
+     * El mismo pipeline sin la etapa de atípicos (una sola pasada: flujo y jobs distribuidos)
+     */
+    public ArcFilterPipeline sinAtipicos() {
+        if (atipicosK <= 0) {
+            return this;
+        }
+        return new ArcFilterPipeline(tiempoMinimo, tiempoMaximo, permanenciaMaxima, gapViajeMaximo,
+                                     distanciaMinima, velocidadMinima, velocidadMaxima, 0, minMuestrasAtipicos);
+    }
+
+    /**
+     * Si la distancia es muy corta o la velocidad está fuera del rango razonable, el arco se descarta
+     */
+    public boolean esValida(DatagramProcessor.SpeedStatistics s) {
+        double velocidad = s.getVelocidadPromedio();
+        return s.getDistancia() >= distanciaMinima && velocidad > 0 &&
+               velocidad >= velocidadMinima && velocidad <= velocidadMaxima;
+    }
+
+    /**
+     * Conserva los arcos válidos; se aplica una sola vez sobre los acumulados ya combinados
+     */
+    public Map<String, DatagramProcessor.SpeedStatistics> filtrarValidas(
+            Map<String, DatagramProcessor.SpeedStatistics> acumulados) {
+        Map<String, DatagramProcessor.SpeedStatistics> estadisticas = new HashMap<>();
+        for (Map.Entry<String, DatagramProcessor.SpeedStatistics> entry : acumulados.entrySet()) {
+            if (esValida(entry.getValue())) {
+                estadisticas.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return estadisticas;
+    }
+
+    /**
+     * filtrarValidas sobre un mapa por clave empaquetada (ArcKey)
+     */
+    public ArcKeyMap<DatagramProcessor.SpeedStatistics> filtrarValidas(
+            ArcKeyMap<DatagramProcessor.SpeedStatistics> acumulados) {
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> estadisticas = new ArcKeyMap<>(acumulados.size());
+        acumulados.forEach((clave, s) -> {
+            if (esValida(s)) {
+                estadisticas.put(clave, s);
+            }
+        });
+        return estadisticas;
+    }
+
+    public double getTiempoMinimo() { return tiempoMinimo; }
+    public double getTiempoMaximo() { return tiempoMaximo; }
+    public double getPermanenciaMaxima() { return permanenciaMaxima; }
+    public double getGapViajeMaximo() { return gapViajeMaximo; }
+    public double getDistanciaMinima() { return distanciaMinima; }
+    public double getVelocidadMinima() { return velocidadMinima; }
+    public double getVelocidadMaxima() { return velocidadMaxima; }
+    public double getAtipicosK() { return atipicosK; }
+    public int getMinMuestrasAtipicos() { return minMuestrasAtipicos; }
+
+    @Override
+    public String toString() {
+        String atipicos = atipicosK > 0
+            ? String.format("atípicos k=%.1f (desde %d muestras)", atipicosK, minMuestrasAtipicos)
+            : "sin filtro de atípicos";
+        return String.format("tiempo=(%.2f, %.2f) min, permanencia<=%.1f min, viaje>%.1f min, " +
+                             "distancia>=%.3f km, velocidad=[%.1f, %.1f] km/h, %s",
+                             tiempoMinimo, tiempoMaximo, permanenciaMaxima, gapViajeMaximo, distanciaMinima,
+                             velocidadMinima, velocidadMaxima, atipicos);
+    }
+
+    /**
+     * Límites de atípicos de un arco, fijos durante la segunda pasada
+     */
+    public static final class LimitesAtipicos {
+        private final double inferior;
+        private final double superior;
+
+        private LimitesAtipicos(double inferior, double superior) {
+            this.inferior = inferior;
+            this.superior = superior;
+        }
+
+        public boolean descarta(double t) {
+            return t < inferior || t > superior;
+        }
+
+        public double getInferior() { return inferior; }
+        public double getSuperior() { return superior; }
+    }
+}
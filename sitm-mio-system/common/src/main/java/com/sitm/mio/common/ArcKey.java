@@ -0,0 +1,72 @@
+package com.sitm.mio.common;
+
+/**
+ * Clave de arco (ruta, parada origen, parada destino) empaquetada en un long
+ * OPTIMIZACIÓN: Se arma con los índices de la SymbolTable global que ya traen los datagrams,
+ * sin construir ni dividir Strings; los IDs pueden contener '-' sin ambigüedad
+ *
+ * Distribución de bits: ruta [62..42], origen [41..21], destino [20..0] (21 bits cada uno)
+ * SymbolTable no asigna índices por encima de MAXIMO_INDICE (ver SymbolTable.CAPACIDAD_MAXIMA)
+ */
+public final class ArcKey {
+
+    public static final int BITS = 21;
+    public static final int MAXIMO_INDICE = (1 << BITS) - 1;
+    private static final long MASCARA = MAXIMO_INDICE;
+
+    private ArcKey() {
+    }
+
+    /**
+     * Empaqueta los índices de ruta, origen y destino
+     *
+     * @throws IllegalStateException si algún índice no cabe en 21 bits (índice negativo o ajeno a la SymbolTable)
+     */
+    public static long empaquetar(int ruta, int origen, int destino) {
+        if ((ruta | origen | destino) < 0 || ruta > MAXIMO_INDICE || origen > MAXIMO_INDICE ||
+            destino > MAXIMO_INDICE) {
+            throw new IllegalStateException("Índice de SymbolTable fuera del rango de ArcKey: " +
+                                            ruta + ", " + origen + ", " + destino);
+        }
+        return ((long) ruta << (2 * BITS)) | ((long) origen << BITS) | destino;
+    }
+
+    /**
+     * Clave a partir de los IDs (los registra en la SymbolTable global si no existen)
+     */
+    public static long de(String routeId, String origenId, String destinoId) {
+        SymbolTable tabla = SymbolTable.global();
+        return empaquetar(tabla.intern(routeId), tabla.intern(origenId), tabla.intern(destinoId));
+    }
+
+    public static int ruta(long clave) {
+        return (int) ((clave >>> (2 * BITS)) & MASCARA);
+    }
+
+    public static int origen(long clave) {
+        return (int) ((clave >>> BITS) & MASCARA);
+    }
+
+    public static int destino(long clave) {
+        return (int) (clave & MASCARA);
+    }
+
+    public static String routeId(long clave) {
+        return SymbolTable.global().nombre(ruta(clave));
+    }
+
+    public static String origenId(long clave) {
+        return SymbolTable.global().nombre(origen(clave));
+    }
+
+    public static String destinoId(long clave) {
+        return SymbolTable.global().nombre(destino(clave));
+    }
+
+    /**
+     * Clave de texto "routeId-origen-destino" (formato de los mapas de resultados)
+     */
+    public static String texto(long clave) {
+        return routeId(clave) + "-" + origenId(clave) + "-" + destinoId(clave);
+    }
+}
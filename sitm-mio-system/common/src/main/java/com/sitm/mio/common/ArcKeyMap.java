@@ -0,0 +1,152 @@
+package com.sitm.mio.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BinaryOperator;
+
+/**
+ * Mapa de claves de arco (ArcKey) a acumuladores con direccionamiento abierto
+ * Acepta cualquier clave long no negativa (ej: trayecto bus << 32 | ruta)
+ * OPTIMIZACIÓN: Claves en un long[] y valores en un Object[] paralelos (sondeo lineal, carga
+ * máxima 1/2): sin objetos Entry ni Long por arco, y buscar un arco no construye Strings
+ *
+ * No es thread-safe: un mapa por hilo o acceso bajo un lock externo
+ */
+public class ArcKeyMap<V> {
+
+    private static final long VACIA = -1L; // Las claves nunca son negativas
+
+    private long[] claves;
+    private Object[] valores;
+    private int tamano;
+
+    public ArcKeyMap() {
+        this(16);
+    }
+
+    public ArcKeyMap(int capacidadEsperada) {
+        int capacidad = Integer.highestOneBit(Math.max(4, capacidadEsperada * 2) - 1) << 1;
+        claves = new long[capacidad];
+        valores = new Object[capacidad];
+        Arrays.fill(claves, VACIA);
+    }
+
+    /**
+     * Visitante de las entradas del mapa
+     */
+    public interface Visitante<V> {
+        void visitar(long clave, V valor);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long clave) {
+        int mascara = claves.length - 1;
+        for (int i = mezclar(clave) & mascara; claves[i] != VACIA; i = (i + 1) & mascara) {
+            if (claves[i] == clave) {
+                return (V) valores[i];
+            }
+        }
+        return null;
+    }
+
+    public void put(long clave, V valor) {
+        int i = posicion(clave);
+        if (claves[i] == VACIA) {
+            claves[i] = clave;
+            tamano++;
+            valores[i] = valor;
+            crecerSiHaceFalta();
+        } else {
+            valores[i] = valor;
+        }
+    }
+
+    /**
+     * Igual que Map.merge: inserta el valor o lo combina con el existente
+     */
+    @SuppressWarnings("unchecked")
+    public V merge(long clave, V valor, BinaryOperator<V> combinar) {
+        int i = posicion(clave);
+        if (claves[i] == VACIA) {
+            claves[i] = clave;
+            valores[i] = valor;
+            tamano++;
+            crecerSiHaceFalta();
+            return valor;
+        }
+        V combinado = combinar.apply((V) valores[i], valor);
+        valores[i] = combinado;
+        return combinado;
+    }
+
+    /**
+     * Combina todas las entradas de otro mapa en este
+     */
+    public void mergeAll(ArcKeyMap<V> otro, BinaryOperator<V> combinar) {
+        otro.forEach((clave, valor) -> merge(clave, valor, combinar));
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitante<V> visitante) {
+        for (int i = 0; i < claves.length; i++) {
+            if (claves[i] != VACIA) {
+                visitante.visitar(claves[i], (V) valores[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<V> valores() {
+        List<V> lista = new ArrayList<>(tamano);
+        for (int i = 0; i < claves.length; i++) {
+            if (claves[i] != VACIA) {
+                lista.add((V) valores[i]);
+            }
+        }
+        return lista;
+    }
+
+    public int size() {
+        return tamano;
+    }
+
+    public boolean isEmpty() {
+        return tamano == 0;
+    }
+
+    /**
+     * Posición de la clave o de la celda vacía donde iría
+     */
+    private int posicion(long clave) {
+        int mascara = claves.length - 1;
+        int i = mezclar(clave) & mascara;
+        while (claves[i] != VACIA && claves[i] != clave) {
+            i = (i + 1) & mascara;
+        }
+        return i;
+    }
+
+    private void crecerSiHaceFalta() {
+        if (tamano * 2 <= claves.length) {
+            return;
+        }
+        long[] clavesAnteriores = claves;
+        Object[] valoresAnteriores = valores;
+        claves = new long[clavesAnteriores.length * 2];
+        valores = new Object[clavesAnteriores.length * 2];
+        Arrays.fill(claves, VACIA);
+        for (int j = 0; j < clavesAnteriores.length; j++) {
+            if (clavesAnteriores[j] != VACIA) {
+                int i = posicion(clavesAnteriores[j]);
+                claves[i] = clavesAnteriores[j];
+                valores[i] = valoresAnteriores[j];
+            }
+        }
+    }
+
+    private static int mezclar(long clave) {
+        long h = clave * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
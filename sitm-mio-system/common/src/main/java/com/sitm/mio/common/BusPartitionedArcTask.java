@@ -0,0 +1,152 @@
+package com.sitm.mio.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Cálculo paralelo de arcos con Fork/Join particionando por bus
+ * OPTIMIZACIÓN: Cada partición contiene trayectos completos (hash del bus), así ningún par de
+ * datagrams consecutivos queda separado entre tareas y no se pierden muestras. Cada hoja ordena
+ * y recorre solo su partición con acumuladores propios (sin sincronización); los parciales se
+ * combinan en árbol siguiendo el mismo fork/join, sin un mapa compartido
+ *
+ * Se crean más particiones que hilos (datagram.paralelo.particiones, por defecto 4 por core)
+ * para que el work-stealing reparta los buses con muchos más datagrams que el resto
+ *
+ * Con la etapa de atípicos (ArcFilterPipeline.aplicaAtipicos) las hojas no la aplican cada una
+ * con su parte del arco: una primera pasada sin descartes combina los sketches de todas las
+ * hojas, de ahí salen límites fijos por arco y una segunda pasada sobre las mismas particiones
+ * (ya ordenadas) descarta con ellos. Así el resultado no depende del número de particiones
+ */
+public class BusPartitionedArcTask extends RecursiveTask<ArcKeyMap<DatagramProcessor.SpeedStatistics>> {
+
+    // ForkJoinTask es Serializable, pero esta tarea solo vive dentro del ForkJoinPool y nunca se
+    // serializa (sus particiones, nodos y filtros no lo son)
+    private static final long serialVersionUID = 1L;
+
+    private final DatagramProcessor.Datagram[][] particiones;
+    private final int desde;
+    private final int hasta;
+    private final Map<String, GraphNode> nodos;
+    private final ArcFilterPipeline filtros;
+    private final ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limitesAtipicos; // null en la primera pasada
+
+    private BusPartitionedArcTask(DatagramProcessor.Datagram[][] particiones, int desde, int hasta,
+                                  Map<String, GraphNode> nodos, ArcFilterPipeline filtros,
+                                  ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limitesAtipicos) {
+        this.particiones = particiones;
+        this.desde = desde;
+        this.hasta = hasta;
+        this.nodos = nodos;
+        this.filtros = filtros;
+        this.limitesAtipicos = limitesAtipicos;
+    }
+
+    /**
+     * Acumula los arcos de todos los datagrams sin filtros de velocidad (igual que acumularArcos)
+     */
+    public static ArcKeyMap<DatagramProcessor.SpeedStatistics> acumular(
+            List<DatagramProcessor.Datagram> datagrams, Map<String, GraphNode> nodos) {
+        return acumular(datagrams, nodos, ArcFilterPipeline.desdePropiedades());
+    }
+
+    /**
+     * acumular con filtros ya compilados: todas las hojas comparten el mismo pipeline
+     */
+    public static ArcKeyMap<DatagramProcessor.SpeedStatistics> acumular(
+            List<DatagramProcessor.Datagram> datagrams, Map<String, GraphNode> nodos, ArcFilterPipeline filtros) {
+        int numParticiones = Integer.getInteger("datagram.paralelo.particiones",
+            Runtime.getRuntime().availableProcessors() * 4);
+        return acumular(datagrams, nodos, filtros, numParticiones);
+    }
+
+    /**
+     * acumular con un número de particiones dado
+     */
+    static ArcKeyMap<DatagramProcessor.SpeedStatistics> acumular(
+            List<DatagramProcessor.Datagram> datagrams, Map<String, GraphNode> nodos, ArcFilterPipeline filtros,
+            int numParticiones) {
+        DatagramProcessor.Datagram[][] particiones = particionarPorBus(datagrams, Math.max(1, numParticiones));
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> acumulados = ForkJoinPool.commonPool().invoke(
+            new BusPartitionedArcTask(particiones, 0, particiones.length, nodos, filtros, null));
+        if (!filtros.aplicaAtipicos()) {
+            return acumulados;
+        }
+        ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limites = filtros.limitesAtipicos(acumulados);
+        return ForkJoinPool.commonPool().invoke(
+            new BusPartitionedArcTask(particiones, 0, particiones.length, nodos, filtros, limites));
+    }
+
+    /**
+     * Reparte los datagrams por bus en dos pasadas (conteo y llenado): un arreglo exacto por partición
+     */
+    static DatagramProcessor.Datagram[][] particionarPorBus(List<DatagramProcessor.Datagram> datagrams,
+                                                           int numParticiones) {
+        int[] tamanos = new int[numParticiones];
+        for (DatagramProcessor.Datagram dg : datagrams) {
+            tamanos[particion(dg, numParticiones)]++;
+        }
+        DatagramProcessor.Datagram[][] particiones = new DatagramProcessor.Datagram[numParticiones][];
+        for (int p = 0; p < numParticiones; p++) {
+            particiones[p] = new DatagramProcessor.Datagram[tamanos[p]];
+        }
+        int[] posiciones = new int[numParticiones];
+        for (DatagramProcessor.Datagram dg : datagrams) {
+            int p = particion(dg, numParticiones);
+            particiones[p][posiciones[p]++] = dg;
+        }
+        return particiones;
+    }
+
+    /**
+     * Partición del bus: el índice interno identifica al busId, así que equivale a hash(busId)
+     */
+    private static int particion(DatagramProcessor.Datagram dg, int numParticiones) {
+        int h = dg.getBusIndex() * 0x9E3779B9; // Dispersa índices consecutivos
+        return Math.floorMod(h ^ (h >>> 16), numParticiones);
+    }
+
+    @Override
+    protected ArcKeyMap<DatagramProcessor.SpeedStatistics> compute() {
+        if (hasta - desde == 1) {
+            return acumularParticion(particiones[desde]);
+        }
+        int medio = (desde + hasta) >>> 1;
+        BusPartitionedArcTask izquierda =
+            new BusPartitionedArcTask(particiones, desde, medio, nodos, filtros, limitesAtipicos);
+        izquierda.fork();
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> derecha =
+            new BusPartitionedArcTask(particiones, medio, hasta, nodos, filtros, limitesAtipicos).compute();
+        return combinar(izquierda.join(), derecha);
+    }
+
+    /**
+     * Hoja: ordena la partición (trayectos contiguos) y la recorre una vez por pasada
+     * En la segunda pasada la partición ya viene ordenada y el sort es lineal
+     */
+    private ArcKeyMap<DatagramProcessor.SpeedStatistics> acumularParticion(DatagramProcessor.Datagram[] datagrams) {
+        if (datagrams.length == 0) {
+            return new ArcKeyMap<>();
+        }
+        Arrays.sort(datagrams, DatagramProcessor.ORDEN_TRAYECTO);
+        TrajectoryArcCollector colector = new TrajectoryArcCollector(nodos, null, filtros, limitesAtipicos);
+        for (DatagramProcessor.Datagram dg : datagrams) {
+            colector.agregar(dg);
+        }
+        return colector.acumuladosPorArco();
+    }
+
+    /**
+     * Une dos parciales del árbol: el menor se combina sobre el mayor
+     */
+    private static ArcKeyMap<DatagramProcessor.SpeedStatistics> combinar(
+            ArcKeyMap<DatagramProcessor.SpeedStatistics> a, ArcKeyMap<DatagramProcessor.SpeedStatistics> b) {
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> mayor = a.size() >= b.size() ? a : b;
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> menor = mayor == a ? b : a;
+        mayor.mergeAll(menor, DatagramProcessor.SpeedStatistics::combinar);
+        return mayor;
+    }
+}
@@ -0,0 +1,229 @@
+package com.sitm.mio.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lector del formato columnar binario de datagrams (generado por ColumnarDatagramWriter)
+ * OPTIMIZACIÓN: Re-analizar un día ya convertido no vuelve a parsear texto; cada bloque
+ * se mapea en memoria y sus columnas se copian en bloque a arreglos int
+ *
+ * Formato (little-endian):
+ *   Encabezado (40 bytes): magia "SMDG", versión, filas (long), bloques, símbolos,
+ *                          offset del diccionario (long), offset del índice de bloques (long)
+ *   Bloque: filas, reservado, timestamp base (long) y 7 columnas int de "filas" valores:
+ *           bus, ruta, parada (índices del diccionario del archivo), latitud y longitud
+ *           (microgrados), delta de timestamp respecto a la fila anterior (ms) y secuencia
+ *   Diccionario: por símbolo, longitud (short sin signo) + bytes UTF-8
+ *   Índice de bloques: offset (long) de cada bloque
+ */
+public class ColumnarDatagramReader implements Closeable {
+
+    static final int MAGIA = 0x47444D53; // "SMDG" en little-endian
+    static final int VERSION = 1;
+    static final int TAMANO_ENCABEZADO = 40;
+    static final int TAMANO_ENCABEZADO_BLOQUE = 16;
+    static final int COLUMNAS = 7;
+
+    private final String rutaArchivo;
+    private final FileChannel canal;
+    private final long filas;
+    private final long[] offsetsBloques;
+    private final int[] indicesGlobales; // Índice del diccionario del archivo -> SymbolTable.global()
+    private final DatagramFilter filtro;
+
+    /**
+     * Abre el archivo, valida el encabezado y registra el diccionario en la SymbolTable global
+     */
+    public ColumnarDatagramReader(String rutaArchivo) throws IOException {
+        this(rutaArchivo, null);
+    }
+
+    /**
+     * Abre el archivo con filtros evaluados sobre las columnas int antes de crear cada Datagram
+     * (el formato no guarda eventType: un filtro de eventType no se puede aplicar)
+     */
+    public ColumnarDatagramReader(String rutaArchivo, DatagramFilter filtro) throws IOException {
+        if (filtro != null && filtro.filtraEventTypes()) {
+            throw new IOException("El formato columnar no guarda eventType; use el CSV para filtrar por eventType");
+        }
+        this.filtro = filtro != null ? filtro : new DatagramFilter();
+        this.rutaArchivo = rutaArchivo;
+        this.canal = FileChannel.open(Paths.get(rutaArchivo), StandardOpenOption.READ);
+        try {
+            long tamano = canal.size();
+            if (tamano < TAMANO_ENCABEZADO) {
+                throw new IOException("Archivo columnar truncado: " + rutaArchivo);
+            }
+
+            ByteBuffer encabezado = mapear(0, TAMANO_ENCABEZADO);
+            if (encabezado.getInt() != MAGIA) {
+                throw new IOException("El archivo no está en formato columnar de datagrams: " + rutaArchivo);
+            }
+            int version = encabezado.getInt();
+            if (version != VERSION) {
+                throw new IOException("Versión de formato columnar no soportada (" + version + "): " + rutaArchivo);
+            }
+            this.filas = encabezado.getLong();
+            int numBloques = encabezado.getInt();
+            int numSimbolos = encabezado.getInt();
+            long offsetDiccionario = encabezado.getLong();
+            long offsetIndice = encabezado.getLong();
+            if (offsetDiccionario > tamano || offsetIndice + numBloques * 8L > tamano) {
+                throw new IOException("Archivo columnar truncado: " + rutaArchivo);
+            }
+
+            // Diccionario: registrar cada símbolo en la tabla global una sola vez
+            ByteBuffer diccionario = mapear(offsetDiccionario, offsetIndice - offsetDiccionario);
+            SymbolTable tabla = SymbolTable.global();
+            this.indicesGlobales = new int[numSimbolos];
+            byte[] bytes = new byte[0xFFFF];
+            for (int s = 0; s < numSimbolos; s++) {
+                int longitud = diccionario.getShort() & 0xFFFF;
+                diccionario.get(bytes, 0, longitud);
+                indicesGlobales[s] = tabla.intern(new String(bytes, 0, longitud, StandardCharsets.UTF_8));
+            }
+
+            ByteBuffer indice = mapear(offsetIndice, numBloques * 8L);
+            this.offsetsBloques = new long[numBloques];
+            for (int b = 0; b < numBloques; b++) {
+                offsetsBloques[b] = indice.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Indica si el archivo empieza con la marca del formato columnar
+     * (false si no existe o no se puede leer: se trata como CSV)
+     */
+    public static boolean esArchivoColumnar(String rutaArchivo) {
+        try (FileChannel canal = FileChannel.open(Paths.get(rutaArchivo), StandardOpenOption.READ)) {
+            ByteBuffer magia = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magia.hasRemaining() && canal.read(magia) >= 0) {
+                // Leer los 4 bytes de la marca
+            }
+            return !magia.hasRemaining() && magia.getInt(0) == MAGIA;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Carga datagrams en lotes desde el archivo columnar
+     * Mantiene el contrato de BatchCallback: cada lote es una lista nueva, numerada en orden
+     */
+    public static void leerEnLotes(String rutaArchivo, int batchSize, DatagramFilter filtro,
+                                   DatagramProcessor.BatchCallback callback) throws IOException {
+        try (ColumnarDatagramReader lector = new ColumnarDatagramReader(rutaArchivo, filtro)) {
+            final List<List<DatagramProcessor.Datagram>> actual = new ArrayList<>(1);
+            actual.add(new ArrayList<>(batchSize));
+            final int[] batchNumber = {0};
+
+            lector.recorrer(dg -> {
+                List<DatagramProcessor.Datagram> lote = actual.get(0);
+                lote.add(dg);
+                if (lote.size() >= batchSize) {
+                    callback.processBatch(lote, batchNumber[0]++);
+                    actual.set(0, new ArrayList<>(batchSize));
+                }
+            });
+
+            if (!actual.get(0).isEmpty()) {
+                callback.processBatch(actual.get(0), batchNumber[0]);
+            }
+        }
+    }
+
+    /**
+     * Carga todos los datagrams del archivo columnar en memoria
+     */
+    public static List<DatagramProcessor.Datagram> leerCompleto(String rutaArchivo,
+                                                              DatagramFilter filtro) throws IOException {
+        try (ColumnarDatagramReader lector = new ColumnarDatagramReader(rutaArchivo, filtro)) {
+            List<DatagramProcessor.Datagram> datagrams = new ArrayList<>((int) Math.min(lector.filas, Integer.MAX_VALUE - 8));
+            lector.recorrer(datagrams::add);
+            return datagrams;
+        }
+    }
+
+    /**
+     * Número de filas del archivo sin recorrerlo (para estimar lotes)
+     */
+    public static long contarFilas(String rutaArchivo) throws IOException {
+        try (ColumnarDatagramReader lector = new ColumnarDatagramReader(rutaArchivo)) {
+            return lector.filas;
+        }
+    }
+
+    /**
+     * Recorre todos los bloques en orden y entrega cada datagram
+     */
+    public void recorrer(MappedDatagramReader.DatagramSink sink) throws IOException {
+        int[][] columnas = new int[COLUMNAS][];
+        for (long offset : offsetsBloques) {
+            ByteBuffer bloque = mapear(offset, TAMANO_ENCABEZADO_BLOQUE);
+            int n = bloque.getInt();
+            bloque.getInt(); // Reservado
+            long timestamp = bloque.getLong();
+
+            // Copiar las columnas del bloque con lecturas en bloque (sin parseo)
+            IntBuffer datos = mapear(offset + TAMANO_ENCABEZADO_BLOQUE, (long) n * COLUMNAS * 4).asIntBuffer();
+            for (int c = 0; c < COLUMNAS; c++) {
+                if (columnas[c] == null || columnas[c].length < n) {
+                    columnas[c] = new int[n];
+                }
+                datos.get(columnas[c], 0, n);
+            }
+            int[] bus = columnas[0];
+            int[] ruta = columnas[1];
+            int[] parada = columnas[2];
+            int[] latitud = columnas[3];
+            int[] longitud = columnas[4];
+            int[] deltas = columnas[5];
+            int[] secuencia = columnas[6];
+
+            boolean sinFiltros = filtro.esVacio();
+            for (int r = 0; r < n; r++) {
+                timestamp += deltas[r];
+                int routeIndex = indicesGlobales[ruta[r]];
+                double lat = latitud[r] / 1000000.0;
+                double lon = longitud[r] / 1000000.0;
+                if (!sinFiltros && !(filtro.aceptaRuta(routeIndex) && filtro.aceptaTimestamp(timestamp) &&
+                                     filtro.aceptaPosicion(lat, lon))) {
+                    continue;
+                }
+                sink.aceptar(new DatagramProcessor.Datagram(
+                    indicesGlobales[bus[r]], routeIndex, indicesGlobales[parada[r]],
+                    lat, lon, timestamp, secuencia[r]));
+            }
+        }
+    }
+
+    private ByteBuffer mapear(long posicion, long longitud) throws IOException {
+        MappedByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, posicion, longitud);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    public long getFilas() { return filas; }
+    public int getNumBloques() { return offsetsBloques.length; }
+    public String getRutaArchivo() { return rutaArchivo; }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+}
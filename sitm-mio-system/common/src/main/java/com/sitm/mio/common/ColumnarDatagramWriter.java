@@ -0,0 +1,201 @@
+package com.sitm.mio.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Conversor de datagrams.csv al formato columnar binario (ver ColumnarDatagramReader)
+ * Se ejecuta una sola vez por archivo histórico; los análisis posteriores leen el binario
+ *
+ * Codificación: ids por diccionario, timestamps como delta respecto a la fila anterior
+ * y coordenadas como int en microgrados (la precisión original de datagrams.csv)
+ *
+ * Uso: java com.sitm.mio.common.ColumnarDatagramWriter datagrams.csv [datagrams.dgc]
+ */
+public class ColumnarDatagramWriter {
+
+    public static final String EXTENSION = ".dgc";
+
+    // Filas por bloque (~1.8 MB por bloque con 7 columnas int)
+    private static final int FILAS_POR_BLOQUE = 65536;
+
+    private final FileChannel canal;
+    private final ByteBuffer buffer;
+    private final int[][] columnas = new int[ColumnarDatagramReader.COLUMNAS][FILAS_POR_BLOQUE];
+    private final List<Long> offsetsBloques = new ArrayList<>();
+    private final List<String> simbolos = new ArrayList<>();
+    private int[] simboloLocal = new int[1024]; // Índice global -> índice del archivo (-1 = sin asignar)
+
+    private int filasBloque;
+    private long timestampBase;
+    private long timestampAnterior;
+    private long filas;
+
+    private ColumnarDatagramWriter(String rutaDestino) throws IOException {
+        this.canal = FileChannel.open(Paths.get(rutaDestino), StandardOpenOption.CREATE,
+                                      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(ColumnarDatagramReader.TAMANO_ENCABEZADO_BLOQUE +
+                                                FILAS_POR_BLOQUE * ColumnarDatagramReader.COLUMNAS * 4)
+                                .order(ByteOrder.LITTLE_ENDIAN);
+        Arrays.fill(simboloLocal, -1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Uso: ColumnarDatagramWriter <datagrams.csv> [destino" + EXTENSION + "]");
+            System.exit(1);
+        }
+        String destino = args.length > 1 ? args[1] : rutaPorDefecto(args[0]);
+
+        long inicio = System.currentTimeMillis();
+        long filas = convertir(args[0], destino);
+        System.out.println("✓ " + filas + " datagrams convertidos a " + destino +
+                         " (" + (System.currentTimeMillis() - inicio) + " ms)");
+    }
+
+    /**
+     * Ruta del archivo columnar junto al CSV (datagrams.csv -> datagrams.dgc)
+     */
+    public static String rutaPorDefecto(String rutaCsv) {
+        int punto = rutaCsv.lastIndexOf('.');
+        int separador = Math.max(rutaCsv.lastIndexOf('/'), rutaCsv.lastIndexOf('\\'));
+        String base = punto > separador ? rutaCsv.substring(0, punto) : rutaCsv;
+        return base + EXTENSION;
+    }
+
+    /**
+     * Convierte un datagrams.csv al formato columnar
+     *
+     * @return Número de datagrams escritos
+     */
+    public static long convertir(String rutaCsv, String rutaDestino) throws IOException {
+        try (MappedDatagramReader lector = new MappedDatagramReader(rutaCsv)) {
+            ColumnarDatagramWriter escritor = new ColumnarDatagramWriter(rutaDestino);
+            try {
+                escritor.canal.position(ColumnarDatagramReader.TAMANO_ENCABEZADO);
+                lector.recorrer(lector.getInicioDatos(), lector.getTamano(), escritor::agregar);
+                escritor.finalizar();
+            } finally {
+                escritor.canal.close();
+            }
+            System.out.println("Filas del CSV: " + lector.getContadores());
+            return escritor.filas;
+        }
+    }
+
+    private void agregar(DatagramProcessor.Datagram dg) throws IOException {
+        long timestamp = dg.getTimestamp();
+        long delta = timestamp - timestampAnterior;
+        if (filasBloque == FILAS_POR_BLOQUE ||
+            (filasBloque > 0 && (delta > Integer.MAX_VALUE || delta < Integer.MIN_VALUE))) {
+            // Bloque lleno, o el delta no cabe en un int: empezar un bloque nuevo con su propia base
+            escribirBloque();
+        }
+        if (filasBloque == 0) {
+            timestampBase = timestamp;
+            delta = 0;
+        }
+
+        int r = filasBloque++;
+        columnas[0][r] = simbolo(dg.getBusIndex());
+        columnas[1][r] = simbolo(dg.getRouteIndex());
+        columnas[2][r] = simbolo(dg.getStopIndex());
+        columnas[3][r] = (int) Math.round(dg.getLatitude() * 1000000.0);
+        columnas[4][r] = (int) Math.round(dg.getLongitude() * 1000000.0);
+        columnas[5][r] = (int) delta;
+        columnas[6][r] = dg.getSequence();
+        timestampAnterior = timestamp;
+        filas++;
+    }
+
+    /**
+     * Índice del símbolo en el diccionario del archivo (se agrega si es nuevo)
+     */
+    private int simbolo(int indiceGlobal) {
+        if (indiceGlobal >= simboloLocal.length) {
+            int anterior = simboloLocal.length;
+            simboloLocal = Arrays.copyOf(simboloLocal, Math.max(indiceGlobal + 1, anterior * 2));
+            Arrays.fill(simboloLocal, anterior, simboloLocal.length, -1);
+        }
+        int local = simboloLocal[indiceGlobal];
+        if (local < 0) {
+            local = simbolos.size();
+            simbolos.add(SymbolTable.global().nombre(indiceGlobal));
+            simboloLocal[indiceGlobal] = local;
+        }
+        return local;
+    }
+
+    private void escribirBloque() throws IOException {
+        if (filasBloque == 0) {
+            return;
+        }
+        offsetsBloques.add(canal.position());
+
+        buffer.clear();
+        buffer.putInt(filasBloque);
+        buffer.putInt(0); // Reservado
+        buffer.putLong(timestampBase);
+        for (int[] columna : columnas) {
+            for (int r = 0; r < filasBloque; r++) {
+                buffer.putInt(columna[r]);
+            }
+        }
+        buffer.flip();
+        escribir(buffer);
+        filasBloque = 0;
+    }
+
+    /**
+     * Escribe el último bloque, el diccionario, el índice de bloques y el encabezado
+     */
+    private void finalizar() throws IOException {
+        escribirBloque();
+
+        long offsetDiccionario = canal.position();
+        for (String simbolo : simbolos) {
+            byte[] bytes = simbolo.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("Identificador demasiado largo para el formato columnar: " + simbolo);
+            }
+            ByteBuffer entrada = ByteBuffer.allocate(2 + bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+            entrada.putShort((short) bytes.length).put(bytes).flip();
+            escribir(entrada);
+        }
+
+        long offsetIndice = canal.position();
+        ByteBuffer indice = ByteBuffer.allocate(offsetsBloques.size() * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long offset : offsetsBloques) {
+            indice.putLong(offset);
+        }
+        indice.flip();
+        escribir(indice);
+
+        ByteBuffer encabezado = ByteBuffer.allocate(ColumnarDatagramReader.TAMANO_ENCABEZADO)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+        encabezado.putInt(ColumnarDatagramReader.MAGIA);
+        encabezado.putInt(ColumnarDatagramReader.VERSION);
+        encabezado.putLong(filas);
+        encabezado.putInt(offsetsBloques.size());
+        encabezado.putInt(simbolos.size());
+        encabezado.putLong(offsetDiccionario);
+        encabezado.putLong(offsetIndice);
+        encabezado.flip();
+        canal.position(0);
+        escribir(encabezado);
+    }
+
+    private void escribir(ByteBuffer datos) throws IOException {
+        while (datos.hasRemaining()) {
+            canal.write(datos);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.sitm.mio.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Seguimiento incremental de un datagrams.csv que crece durante el día (modo "tail -f")
+ * OPTIMIZACIÓN: Recuerda el último offset procesado y pasa solo las líneas nuevas a un
+ * StreamingArcEngine (último datagram por trayecto), sin volver a leer lo ya procesado
+ *
+ * Se despierta con WatchService sobre el directorio del archivo y, como respaldo para sistemas
+ * de archivos sin notificaciones (unidades de red), revisa cada datagram.follow.intervaloMs
+ *
+ * Las filas de un trayecto más antiguas que la última procesada (llegadas fuera de orden) se
+ * descartan: los pares ya contados no se recalculan
+ */
+public class DatagramFileFollower implements Closeable {
+
+    /**
+     * Notificación de estadísticas actualizadas
+     */
+    public interface Listener {
+        void actualizado(Map<String, DatagramProcessor.SpeedStatistics> estadisticas, long filasNuevas);
+    }
+
+    private final String rutaArchivo;
+    private final Map<String, GraphNode> nodos;
+    private final ArcFilterPipeline filtros; // Compilados una vez: se conservan al reiniciar
+    private final long intervaloMs;
+
+    private MappedDatagramReader lector; // Abierto una vez: encabezados y formato se detectan una sola vez
+    private StreamingArcEngine motor;
+    private long offset;
+    private volatile boolean activo;
+
+    public DatagramFileFollower(String rutaArchivo, Map<String, GraphNode> nodos) {
+        this(rutaArchivo, nodos, ArcFilterPipeline.desdePropiedades());
+    }
+
+    public DatagramFileFollower(String rutaArchivo, Map<String, GraphNode> nodos, long intervaloMs) {
+        this(rutaArchivo, nodos, ArcFilterPipeline.desdePropiedades(), intervaloMs);
+    }
+
+    public DatagramFileFollower(String rutaArchivo, Map<String, GraphNode> nodos, ArcFilterPipeline filtros) {
+        this(rutaArchivo, nodos, filtros, Long.getLong("datagram.follow.intervaloMs", 1000L));
+    }
+
+    public DatagramFileFollower(String rutaArchivo, Map<String, GraphNode> nodos, ArcFilterPipeline filtros,
+                                long intervaloMs) {
+        this.rutaArchivo = rutaArchivo;
+        this.nodos = nodos;
+        this.filtros = filtros;
+        this.intervaloMs = Math.max(10, intervaloMs);
+        reiniciar();
+    }
+
+    /**
+     * Procesa las líneas completas agregadas desde la última llamada
+     * Si el archivo se truncó o fue reemplazado por uno más corto, se reinicia desde el principio
+     *
+     * @return Número de datagrams nuevos procesados
+     */
+    public synchronized long procesarNuevos() throws IOException {
+        File archivo = new File(rutaArchivo);
+        if (!archivo.exists() || archivo.length() == 0) {
+            return 0;
+        }
+        if (archivo.length() < offset) {
+            System.out.println("Archivo truncado o rotado, reiniciando seguimiento: " + rutaArchivo);
+            close();
+            reiniciar();
+        }
+        if (archivo.length() == offset) {
+            return 0;
+        }
+
+        if (lector == null) {
+            lector = new MappedDatagramReader(rutaArchivo);
+        } else {
+            lector.actualizarTamano();
+        }
+        long antes = motor.getProcesados();
+        offset = lector.recorrerLineasCompletas(offset, motor::agregar);
+        return motor.getProcesados() - antes;
+    }
+
+    private void reiniciar() {
+        this.motor = new StreamingArcEngine(nodos, filtros);
+        this.offset = 0;
+    }
+
+    /**
+     * Sigue el archivo hasta que se llame a detener(); notifica al listener después
+     * de cada actualización con filas nuevas (incluida la carga inicial)
+     */
+    public void seguir(Listener listener) throws IOException {
+        activo = true;
+        Path archivo = new File(rutaArchivo).getAbsoluteFile().toPath();
+        Path directorio = archivo.getParent();
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            try {
+                directorio.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException | UnsupportedOperationException e) {
+                // Sin notificaciones: queda solo el sondeo periódico
+                System.out.println("WatchService no disponible para " + directorio + ", usando sondeo");
+            }
+
+            while (activo) {
+                long nuevas = procesarNuevos();
+                if (nuevas > 0) {
+                    listener.actualizado(estadisticas(), nuevas);
+                }
+
+                // Esperar un evento del directorio o el intervalo de sondeo
+                WatchKey clave = watcher.poll(intervaloMs, TimeUnit.MILLISECONDS);
+                if (clave != null) {
+                    clave.pollEvents();
+                    clave.reset();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            activo = false;
+            close();
+        }
+    }
+
+    public void detener() {
+        activo = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (lector != null) {
+            lector.close();
+            lector = null;
+        }
+    }
+
+    /**
+     * Estadísticas actuales por arco (instantánea)
+     */
+    public synchronized Map<String, DatagramProcessor.SpeedStatistics> estadisticas() {
+        return motor.resultados();
+    }
+
+    /**
+     * Permanencias en parada actuales por (ruta, parada) (instantánea)
+     */
+    public synchronized ArcKeyMap<DatagramProcessor.DwellStatistics> permanencias() {
+        return motor.permanencias();
+    }
+
+    public synchronized long getOffset() { return offset; }
+    public synchronized long getFilasProcesadas() { return motor.getProcesados(); }
+    public synchronized long getFueraDeOrden() { return motor.getFueraDeOrden(); }
+    public boolean isActivo() { return activo; }
+    public String getRutaArchivo() { return rutaArchivo; }
+}
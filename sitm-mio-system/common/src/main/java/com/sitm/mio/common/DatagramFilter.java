@@ -0,0 +1,214 @@
+package com.sitm.mio.common;
+
+import java.time.LocalDateTime;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Filtros de un job evaluados por el lector al escanear (predicate pushdown)
+ * OPTIMIZACIÓN: MappedDatagramReader los evalúa sobre los bytes de cada línea antes de crear
+ * el Datagram; las filas descartadas no asignan memoria
+ *
+ * Filtros disponibles (los no configurados aceptan todo):
+ *   - rutas permitidas (lineId)
+ *   - rango de timestamp [desde, hasta) en milisegundos
+ *   - caja de coordenadas (latitud/longitud en grados)
+ *   - tipos de evento (eventType)
+ */
+public class DatagramFilter {
+
+    private final Set<String> rutas = new HashSet<>();
+    private final Set<Integer> eventTypes = new HashSet<>();
+    private long desde = Long.MIN_VALUE;
+    private long hasta = Long.MAX_VALUE;
+    private boolean conCaja;
+    private double latMin;
+    private double latMax;
+    private double lonMin;
+    private double lonMax;
+
+    // Rutas resueltas a índices de la SymbolTable global (se calcula al primer uso)
+    private volatile BitSet indicesRutas;
+
+    /**
+     * Crea un filtro que acepta todos los datagrams
+     */
+    public DatagramFilter() {
+    }
+
+    /**
+     * Crea el filtro a partir de propiedades del sistema:
+     *   datagram.filter.rutas=131,135
+     *   datagram.filter.desde / datagram.filter.hasta (epoch ms o "2019-05-27 06:00:00", zona datagram.timezone)
+     *   datagram.filter.caja=latMin,lonMin,latMax,lonMax
+     *   datagram.filter.eventTypes=0,3
+     */
+    public static DatagramFilter desdePropiedades() {
+        DatagramFilter filtro = new DatagramFilter();
+
+        String rutas = System.getProperty("datagram.filter.rutas", "").trim();
+        for (String ruta : rutas.split(",")) {
+            if (!ruta.trim().isEmpty()) {
+                filtro.rutas.add(ruta.trim());
+            }
+        }
+
+        String desde = System.getProperty("datagram.filter.desde", "").trim();
+        String hasta = System.getProperty("datagram.filter.hasta", "").trim();
+        filtro.rango(desde.isEmpty() ? Long.MIN_VALUE : parsearInstante(desde),
+                     hasta.isEmpty() ? Long.MAX_VALUE : parsearInstante(hasta));
+
+        String caja = System.getProperty("datagram.filter.caja", "").trim();
+        if (!caja.isEmpty()) {
+            String[] partes = caja.split(",");
+            if (partes.length != 4) {
+                throw new IllegalArgumentException("datagram.filter.caja debe ser latMin,lonMin,latMax,lonMax: " + caja);
+            }
+            filtro.caja(Double.parseDouble(partes[0].trim()), Double.parseDouble(partes[1].trim()),
+                        Double.parseDouble(partes[2].trim()), Double.parseDouble(partes[3].trim()));
+        }
+
+        String eventos = System.getProperty("datagram.filter.eventTypes", "").trim();
+        for (String evento : eventos.split(",")) {
+            if (!evento.trim().isEmpty()) {
+                filtro.eventTypes.add(Integer.parseInt(evento.trim()));
+            }
+        }
+        return filtro;
+    }
+
+    private static long parsearInstante(String valor) {
+        if (valor.matches("-?\\d+")) {
+            return Long.parseLong(valor);
+        }
+        return LocalDateTime.parse(valor.replace(' ', 'T'))
+            .atZone(TimestampParser.zonaConfigurada()).toInstant().toEpochMilli();
+    }
+
+    public DatagramFilter rutas(Collection<String> routeIds) {
+        rutas.addAll(routeIds);
+        indicesRutas = null;
+        return this;
+    }
+
+    /**
+     * Rango de timestamps [desde, hasta) en milisegundos Unix
+     */
+    public DatagramFilter rango(long desde, long hasta) {
+        this.desde = desde;
+        this.hasta = hasta;
+        return this;
+    }
+
+    /**
+     * Caja de coordenadas en grados decimales (bordes incluidos)
+     */
+    public DatagramFilter caja(double latMin, double lonMin, double latMax, double lonMax) {
+        this.conCaja = true;
+        this.latMin = Math.min(latMin, latMax);
+        this.latMax = Math.max(latMin, latMax);
+        this.lonMin = Math.min(lonMin, lonMax);
+        this.lonMax = Math.max(lonMin, lonMax);
+        return this;
+    }
+
+    public DatagramFilter eventTypes(Collection<Integer> tipos) {
+        eventTypes.addAll(tipos);
+        return this;
+    }
+
+    public boolean filtraRutas() { return !rutas.isEmpty(); }
+    public boolean filtraTiempo() { return desde != Long.MIN_VALUE || hasta != Long.MAX_VALUE; }
+    public boolean filtraCaja() { return conCaja; }
+    public boolean filtraEventTypes() { return !eventTypes.isEmpty(); }
+
+    public boolean esVacio() {
+        return !filtraRutas() && !filtraTiempo() && !filtraCaja() && !filtraEventTypes();
+    }
+
+    /**
+     * Evalúa la ruta por su índice en la SymbolTable global (sin comparar textos)
+     * Un índice negativo (ruta no registrada en la SymbolTable) no es una ruta del filtro
+     */
+    public boolean aceptaRuta(int routeIndex) {
+        if (rutas.isEmpty()) {
+            return true;
+        }
+        return routeIndex >= 0 && registrarRutas().get(routeIndex);
+    }
+
+    /**
+     * Registra las rutas del filtro en la SymbolTable global y retorna sus índices
+     * Tras llamarlo, una ruta que no está en la SymbolTable no pasa el filtro: el lector la
+     * descarta buscándola sin registrarla
+     */
+    BitSet registrarRutas() {
+        BitSet indices = indicesRutas;
+        if (indices == null) {
+            indices = new BitSet();
+            for (String ruta : rutas) {
+                indices.set(SymbolTable.global().intern(ruta));
+            }
+            indicesRutas = indices;
+        }
+        return indices;
+    }
+
+    public boolean aceptaRuta(String routeId) {
+        return rutas.isEmpty() || rutas.contains(routeId);
+    }
+
+    public boolean aceptaTimestamp(long timestamp) {
+        return timestamp >= desde && timestamp < hasta;
+    }
+
+    public boolean aceptaPosicion(double latitud, double longitud) {
+        return !conCaja || (latitud >= latMin && latitud <= latMax &&
+                            longitud >= lonMin && longitud <= lonMax);
+    }
+
+    public boolean aceptaEventType(long eventType) {
+        return eventTypes.isEmpty() || (eventType >= Integer.MIN_VALUE && eventType <= Integer.MAX_VALUE &&
+                                        eventTypes.contains((int) eventType));
+    }
+
+    /**
+     * Evalúa los filtros disponibles sobre un datagram ya construido (no incluye eventType)
+     */
+    public boolean acepta(DatagramProcessor.Datagram dg) {
+        return aceptaRuta(dg.getRouteIndex()) && aceptaTimestamp(dg.getTimestamp()) &&
+               aceptaPosicion(dg.getLatitude(), dg.getLongitude());
+    }
+
+    public Set<String> getRutas() { return rutas; }
+    public Set<Integer> getEventTypes() { return eventTypes; }
+    public long getDesde() { return desde; }
+    public long getHasta() { return hasta; }
+    public double getLatMin() { return latMin; }
+    public double getLatMax() { return latMax; }
+    public double getLonMin() { return lonMin; }
+    public double getLonMax() { return lonMax; }
+
+    @Override
+    public String toString() {
+        if (esVacio()) {
+            return "sin filtros";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (filtraRutas()) {
+            sb.append("rutas=").append(rutas).append(' ');
+        }
+        if (filtraTiempo()) {
+            sb.append("tiempo=[").append(desde).append(", ").append(hasta).append(") ");
+        }
+        if (filtraCaja()) {
+            sb.append(String.format("caja=[%.6f,%.6f]-[%.6f,%.6f] ", latMin, lonMin, latMax, lonMax));
+        }
+        if (filtraEventTypes()) {
+            sb.append("eventTypes=").append(eventTypes);
+        }
+        return sb.toString().trim();
+    }
+}
@@ -1,9 +1,9 @@
 package com.sitm.mio.common;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Procesador de datos de datagrams (GPS de buses)
@@ -13,21 +13,32 @@ public class DatagramProcessor {
     
     /**
      * Representa un datagram (registro de posición de bus)
+     * OPTIMIZACIÓN: busId, routeId y stopId se guardan como índices de la SymbolTable global
+     * (representación primitiva); los getters de texto resuelven el nombre en la tabla
      */
     public static class Datagram {
-        private String busId;
-        private String routeId;
-        private String stopId;
-        private double latitude;
-        private double longitude;
-        private long timestamp; // Timestamp en milisegundos
-        private int sequence; // Secuencia en la ruta
+        private final int busIndex;
+        private final int routeIndex;
+        private final int stopIndex;
+        private final double latitude;
+        private final double longitude;
+        private final long timestamp; // Timestamp en milisegundos
+        private final int sequence; // Secuencia en la ruta
         
         public Datagram(String busId, String routeId, String stopId,
                        double latitude, double longitude, long timestamp, int sequenceNumber) {
-            this.busId = busId;
-            this.routeId = routeId;
-            this.stopId = stopId;
+            this(SymbolTable.global().intern(busId), SymbolTable.global().intern(routeId),
+                 SymbolTable.global().intern(stopId), latitude, longitude, timestamp, sequenceNumber);
+        }
+        
+        /**
+         * Crea un datagram a partir de índices ya registrados en SymbolTable.global()
+         */
+        public Datagram(int busIndex, int routeIndex, int stopIndex,
+                       double latitude, double longitude, long timestamp, int sequenceNumber) {
+            this.busIndex = busIndex;
+            this.routeIndex = routeIndex;
+            this.stopIndex = stopIndex;
             this.latitude = latitude;
             this.longitude = longitude;
             this.timestamp = timestamp;
@@ -35,17 +46,31 @@ public class DatagramProcessor {
         }
         
         // Getters
-        public String getBusId() { return busId; }
-        public String getRouteId() { return routeId; }
-        public String getStopId() { return stopId; }
+        public String getBusId() { return SymbolTable.global().nombre(busIndex); }
+        public String getRouteId() { return SymbolTable.global().nombre(routeIndex); }
+        public String getStopId() { return SymbolTable.global().nombre(stopIndex); }
+        public int getBusIndex() { return busIndex; }
+        public int getRouteIndex() { return routeIndex; }
+        public int getStopIndex() { return stopIndex; }
         public double getLatitude() { return latitude; }
         public double getLongitude() { return longitude; }
         public long getTimestamp() { return timestamp; }
         public int getSequence() { return sequence; }
     }
     
+    /**
+     * Orden de trayectos: bus, ruta y timestamp
+     */
+    static final Comparator<Datagram> ORDEN_TRAYECTO = Comparator
+        .comparingInt(Datagram::getBusIndex)
+        .thenComparingInt(Datagram::getRouteIndex)
+        .thenComparingLong(Datagram::getTimestamp);
+    
     /**
      * Representa estadísticas de velocidad entre dos paradas
+     * Los tiempos se guardan en un ArcAccumulator: dos estadísticas del mismo arco se combinan
+     * de forma exacta (promedio, dispersión, mínimo y máximo) sin importar cómo se partió el cálculo
+     * La distribución (QuantileSketch) da p50/p85/p95; es null si solo se conoce el promedio
      */
     public static class SpeedStatistics {
         private String routeId;
@@ -55,6 +80,9 @@ public class DatagramProcessor {
         private double tiempoPromedio; // minutos
         private double velocidadPromedio; // km/h
         private int numMuestras; // Número de mediciones
+        private final ArcAccumulator tiempos; // Tiempos de viaje del arco (minutos)
+        private final QuantileSketch distribucion; // Distribución de tiempos (puede ser null)
+        private long claveArco = -1; // ArcKey, se calcula al primer uso
         
         public SpeedStatistics(String routeId, String origenStopId, String destinoStopId,
                              double distancia, double tiempoPromedio, double velocidadPromedio, int numMuestras) {
@@ -65,6 +93,45 @@ public class DatagramProcessor {
             this.tiempoPromedio = tiempoPromedio;
             this.velocidadPromedio = velocidadPromedio;
             this.numMuestras = numMuestras;
+            this.tiempos = ArcAccumulator.desdePromedio(tiempoPromedio, numMuestras);
+            this.distribucion = null;
+        }
+        
+        /**
+         * Estadística a partir del acumulador de tiempos; la velocidad se calcula con el promedio
+         * (0 si no hay distancia o tiempo: los filtros de velocidad se aplican después)
+         */
+        public SpeedStatistics(String routeId, String origenStopId, String destinoStopId,
+                             double distancia, ArcAccumulator tiempos) {
+            this(routeId, origenStopId, destinoStopId, distancia, tiempos, null);
+        }
+        
+        /**
+         * Estadística con acumulador y distribución de tiempos del arco
+         */
+        public SpeedStatistics(String routeId, String origenStopId, String destinoStopId,
+                             double distancia, ArcAccumulator tiempos, QuantileSketch distribucion) {
+            this.routeId = routeId;
+            this.origenStopId = origenStopId;
+            this.destinoStopId = destinoStopId;
+            this.distancia = distancia;
+            this.tiempos = tiempos;
+            this.distribucion = distribucion;
+            this.tiempoPromedio = tiempos.getPromedio();
+            this.velocidadPromedio = distancia > 0 && tiempoPromedio > 0 ? distancia / (tiempoPromedio / 60.0) : 0.0;
+            this.numMuestras = (int) Math.min(Integer.MAX_VALUE, tiempos.getMuestras());
+        }
+        
+        /**
+         * Combina con otra estadística del mismo arco (no modifica ninguna de las dos)
+         * Se conserva la distancia de esta estadística; la distribución solo se combina si
+         * ambas la tienen (si no, los cuantiles no representarían todas las muestras)
+         */
+        public SpeedStatistics combinar(SpeedStatistics otra) {
+            QuantileSketch combinada = distribucion != null && otra.distribucion != null
+                ? distribucion.copia().combinar(otra.distribucion) : null;
+            return new SpeedStatistics(routeId, origenStopId, destinoStopId, distancia,
+                                       tiempos.copia().combinar(otra.tiempos), combinada);
         }
         
         // Getters
@@ -75,11 +142,38 @@ public class DatagramProcessor {
         public double getTiempoPromedio() { return tiempoPromedio; }
         public double getVelocidadPromedio() { return velocidadPromedio; }
         public int getNumMuestras() { return numMuestras; }
+        public ArcAccumulator getTiempos() { return tiempos; }
+        public double getTiempoMinimo() { return tiempos.getMinimo(); }
+        public double getTiempoMaximo() { return tiempos.getMaximo(); }
+        public double getDesviacionTiempo() { return tiempos.getDesviacion(); }
+        public QuantileSketch getDistribucion() { return distribucion; }
+        
+        /**
+         * Clave empaquetada del arco (ArcKey) con los índices de la SymbolTable global
+         */
+        public long getClaveArco() {
+            if (claveArco < 0) {
+                claveArco = ArcKey.de(routeId, origenStopId, destinoStopId);
+            }
+            return claveArco;
+        }
+        
+        /**
+         * Tiempo de viaje del cuantil q (minutos); sin distribución se usa el promedio
+         */
+        public double getCuantilTiempo(double q) {
+            return distribucion != null ? distribucion.cuantil(q) : tiempoPromedio;
+        }
+        
+        public double getTiempoP50() { return getCuantilTiempo(0.50); }
+        public double getTiempoP85() { return getCuantilTiempo(0.85); }
+        public double getTiempoP95() { return getCuantilTiempo(0.95); }
     }
     
     /**
      * Carga datagrams desde un archivo CSV de forma eficiente usando streaming
      * OPTIMIZACIÓN: Lee línea por línea para no cargar todo en memoria
+     * El número de hilos de lectura se toma de datagram.reader.hilos (por defecto 1)
      * 
      * @param rutaArchivo Ruta al archivo datagrams.csv
      * @param batchSize Tamaño del lote para procesamiento (0 = cargar todo)
@@ -88,13 +182,56 @@ public class DatagramProcessor {
      */
     public static List<Datagram> cargarDatagrams(String rutaArchivo, int batchSize, 
                                                    BatchCallback batchCallback) throws IOException {
+        return cargarDatagrams(rutaArchivo, batchSize, MappedDatagramReader.hilosConfigurados(), batchCallback);
+    }
+    
+    /**
+     * Carga datagrams dividiendo el archivo en rangos de bytes que se parsean en paralelo
+     * Con más de un hilo el callback se invoca concurrentemente y debe ser thread-safe;
+     * los números de lote siguen siendo únicos pero no llegan en orden
+     * Los archivos en formato columnar (ColumnarDatagramWriter) se detectan por su marca
+     * y se leen secuencialmente sin parseo de texto
+     * 
+     * @param numHilos Número de rangos/hilos de lectura (1 = secuencial, <= 0 = núcleos disponibles)
+     */
+    public static List<Datagram> cargarDatagrams(String rutaArchivo, int batchSize, int numHilos,
+                                                   BatchCallback batchCallback) throws IOException {
+        return cargarDatagrams(rutaArchivo, batchSize, numHilos, null, null, batchCallback);
+    }
+    
+    /**
+     * Carga datagrams aplicando los filtros del job al escanear (predicate pushdown)
+     * Las filas descartadas no llegan a construirse como Datagram
+     * 
+     * @param filtro Filtros de ruta, tiempo, coordenadas y eventType (null = sin filtros)
+     * @param contadores Acumula filas aceptadas, filtradas y rechazadas por motivo (null = no reportar)
+     */
+    public static List<Datagram> cargarDatagrams(String rutaArchivo, int batchSize, int numHilos,
+                                                   DatagramFilter filtro, ParseCounters contadores,
+                                                   BatchCallback batchCallback) throws IOException {
+        if (ColumnarDatagramReader.esArchivoColumnar(rutaArchivo)) {
+            // Archivo ya convertido (ColumnarDatagramWriter): sin parseo de texto
+            // (las filas inválidas se descartaron al convertir)
+            if (batchSize > 0 && batchCallback != null) {
+                ColumnarDatagramReader.leerEnLotes(rutaArchivo, batchSize, filtro, batchCallback);
+                return new ArrayList<>();
+            }
+            return ColumnarDatagramReader.leerCompleto(rutaArchivo, filtro);
+        }
+        
         if (batchSize > 0 && batchCallback != null) {
             // Modo streaming: procesar en lotes
-            cargarDatagramsEnLotes(rutaArchivo, batchSize, batchCallback);
+            if (numHilos == 1) {
+                cargarDatagramsEnLotes(rutaArchivo, batchSize, filtro, contadores, batchCallback);
+            } else {
+                MappedDatagramReader.leerEnLotesParalelo(rutaArchivo, batchSize, numHilos, filtro,
+                                                         contadores, batchCallback);
+            }
             return new ArrayList<>(); // Retornar lista vacía en modo streaming
         } else {
             // Modo tradicional: cargar todo en memoria
-            return cargarDatagramsCompleto(rutaArchivo);
+            return numHilos == 1 ? cargarDatagramsCompleto(rutaArchivo, filtro, contadores) :
+                MappedDatagramReader.leerCompletoParalelo(rutaArchivo, numHilos, filtro, contadores);
         }
     }
     
@@ -102,7 +239,7 @@ public class DatagramProcessor {
      * Carga datagrams desde un archivo CSV (método tradicional - compatibilidad)
      */
     public static List<Datagram> cargarDatagrams(String rutaArchivo) throws IOException {
-        return cargarDatagramsCompleto(rutaArchivo);
+        return cargarDatagrams(rutaArchivo, 0, MappedDatagramReader.hilosConfigurados(), null);
     }
     
     /**
@@ -114,165 +251,20 @@ public class DatagramProcessor {
     
     /**
      * Carga datagrams en lotes usando streaming (OPTIMIZADO para grandes archivos)
+     * OPTIMIZACIÓN: Usa MappedDatagramReader (memoria mapeada, sin readLine ni split)
      */
-    private static void cargarDatagramsEnLotes(String rutaArchivo, int batchSize, 
+    private static void cargarDatagramsEnLotes(String rutaArchivo, int batchSize, DatagramFilter filtro,
+                                                 ParseCounters contadores,
                                                  BatchCallback callback) throws IOException {
-        List<Datagram> currentBatch = new ArrayList<>(batchSize);
-        int batchNumber = 0;
-        
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(new FileInputStream(rutaArchivo), StandardCharsets.UTF_8))) {
-            
-            String primeraLinea = br.readLine();
-            if (primeraLinea == null) {
-                throw new IOException("El archivo datagrams.csv está vacío");
-            }
-            
-            // Detectar si la primera línea es encabezados o datos
-            String[] primeraLineaCampos = parsearCSV(primeraLinea);
-            boolean tieneEncabezados = detectarSiTieneEncabezados(primeraLineaCampos);
-            
-            Map<String, Integer> indices;
-            String lineaDatos;
-            
-            if (tieneEncabezados) {
-                // La primera línea son encabezados
-                indices = mapearEncabezados(primeraLineaCampos);
-                lineaDatos = null; // Leeremos la siguiente línea
-                
-                // Validar columnas requeridas
-                if (!indices.containsKey("bus_id") || !indices.containsKey("route_id") || 
-                    !indices.containsKey("stop_id") || !indices.containsKey("timestamp")) {
-                    throw new IOException("El archivo datagrams.csv no tiene las columnas requeridas. " +
-                                        "Esperadas: busId (o bus_id), lineId (o line_id), stopId (o stop_id), " +
-                                        "datagramDate (o timestamp). " +
-                                        "Columnas encontradas: " + String.join(", ", primeraLineaCampos));
-                }
-            } else {
-                // No hay encabezados, usar orden predefinido
-                System.out.println("⚠ Archivo sin encabezados detectado. Usando orden predefinido de columnas.");
-                indices = crearIndicesSinEncabezados(primeraLineaCampos.length);
-                lineaDatos = primeraLinea; // La primera línea ya es un dato
-            }
-            
-            // Leer datos en lotes
-            // Si no hay encabezados, ya tenemos la primera línea como dato
-            if (lineaDatos != null) {
-                String[] campos = parsearCSV(lineaDatos);
-                procesarLineaComoDato(campos, indices, currentBatch, batchSize, callback, batchNumber++);
-            }
-            
-            String linea;
-            while ((linea = br.readLine()) != null) {
-                if (linea.trim().isEmpty()) continue;
-                
-                String[] campos = parsearCSV(linea);
-                procesarLineaComoDato(campos, indices, currentBatch, batchSize, callback, batchNumber);
-                if (currentBatch.size() >= batchSize) {
-                    batchNumber++;
-                }
-            }
-            
-            // Procesar último lote si no está vacío
-            if (!currentBatch.isEmpty()) {
-                callback.processBatch(currentBatch, batchNumber);
-            }
-        }
-    }
-    
-    /**
-     * Procesa una línea como dato (helper para evitar duplicación)
-     */
-    private static void procesarLineaComoDato(String[] campos, Map<String, Integer> indices,
-                                               List<Datagram> currentBatch, int batchSize,
-                                               BatchCallback callback, int batchNumber) {
-        try {
-            Datagram dg = parsearDatagram(campos, indices);
-            if (dg != null) {
-                currentBatch.add(dg);
-                
-                // Procesar lote cuando alcance el tamaño
-                if (currentBatch.size() >= batchSize) {
-                    callback.processBatch(new ArrayList<>(currentBatch), batchNumber);
-                    currentBatch.clear();
-                }
-            }
-        } catch (Exception e) {
-            // Ignorar líneas con errores
-        }
+        MappedDatagramReader.leerEnLotes(rutaArchivo, batchSize, filtro, contadores, callback);
     }
     
     /**
      * Carga todos los datagrams en memoria (método tradicional)
      */
-    private static List<Datagram> cargarDatagramsCompleto(String rutaArchivo) throws IOException {
-        List<Datagram> datagrams = new ArrayList<>();
-        
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(new FileInputStream(rutaArchivo), StandardCharsets.UTF_8))) {
-            
-            String primeraLinea = br.readLine();
-            if (primeraLinea == null) {
-                throw new IOException("El archivo datagrams.csv está vacío");
-            }
-            
-            // Detectar si la primera línea es encabezados o datos
-            String[] primeraLineaCampos = parsearCSV(primeraLinea);
-            boolean tieneEncabezados = detectarSiTieneEncabezados(primeraLineaCampos);
-            
-            Map<String, Integer> indices;
-            String lineaDatos;
-            
-            if (tieneEncabezados) {
-                // La primera línea son encabezados
-                indices = mapearEncabezados(primeraLineaCampos);
-                lineaDatos = null; // Leeremos la siguiente línea
-                
-                // Validar columnas requeridas
-                if (!indices.containsKey("bus_id") || !indices.containsKey("route_id") || 
-                    !indices.containsKey("stop_id") || !indices.containsKey("timestamp")) {
-                    throw new IOException("El archivo datagrams.csv no tiene las columnas requeridas. " +
-                                        "Esperadas: busId (o bus_id), lineId (o line_id), stopId (o stop_id), " +
-                                        "datagramDate (o timestamp). " +
-                                        "Columnas encontradas: " + String.join(", ", primeraLineaCampos));
-                }
-            } else {
-                // No hay encabezados, usar orden predefinido
-                System.out.println("⚠ Archivo sin encabezados detectado. Usando orden predefinido de columnas.");
-                indices = crearIndicesSinEncabezados(primeraLineaCampos.length);
-                lineaDatos = primeraLinea; // La primera línea ya es un dato
-            }
-            
-            // Leer datos
-            if (lineaDatos != null) {
-                String[] campos = parsearCSV(lineaDatos);
-                try {
-                    Datagram dg = parsearDatagram(campos, indices);
-                    if (dg != null) {
-                        datagrams.add(dg);
-                    }
-                } catch (Exception e) {
-                    // Ignorar líneas con errores
-                }
-            }
-            
-            String linea;
-            while ((linea = br.readLine()) != null) {
-                if (linea.trim().isEmpty()) continue;
-                
-                String[] campos = parsearCSV(linea);
-                try {
-                    Datagram dg = parsearDatagram(campos, indices);
-                    if (dg != null) {
-                        datagrams.add(dg);
-                    }
-                } catch (Exception e) {
-                    // Ignorar líneas con errores
-                }
-            }
-        }
-        
-        return datagrams;
+    private static List<Datagram> cargarDatagramsCompleto(String rutaArchivo, DatagramFilter filtro,
+                                                          ParseCounters contadores) throws IOException {
+        return MappedDatagramReader.leerCompleto(rutaArchivo, filtro, contadores);
     }
     
     /**
@@ -296,215 +288,239 @@ public class DatagramProcessor {
     
     /**
      * Calcula velocidades usando Fork/Join para procesamiento paralelo
+     * Particiona por bus (BusPartitionedArcTask): cada tarea tiene trayectos completos, y los límites
+     * de atípicos salen de los sketches ya combinados, así que las muestras aceptadas son las mismas
+     * que en el secuencial con cualquier número de particiones (las sumas solo cambian de orden)
      */
     private static Map<String, SpeedStatistics> calcularVelocidadesRealesParalelo(
             List<Datagram> datagrams, Map<String, GraphNode> nodos) {
-        
-        // Dividir datagrams en chunks para procesamiento paralelo
-        int chunkSize = Math.max(100, datagrams.size() / (Runtime.getRuntime().availableProcessors() * 2));
-        List<List<Datagram>> chunks = new ArrayList<>();
-        
-        for (int i = 0; i < datagrams.size(); i += chunkSize) {
-            int end = Math.min(i + chunkSize, datagrams.size());
-            chunks.add(datagrams.subList(i, end));
+        ArcFilterPipeline filtros = ArcFilterPipeline.desdePropiedades();
+        return porTexto(filtros.filtrarValidas(BusPartitionedArcTask.acumular(datagrams, nodos, filtros)));
+    }
+    
+    /**
+     * Acumula los tiempos por arco de un conjunto de datagrams sin aplicar los filtros de velocidad
+     * Es el parcial que se combina entre hilos, lotes y Workers
+     */
+    public static Map<String, SpeedStatistics> acumularArcos(List<Datagram> datagrams, Map<String, GraphNode> nodos) {
+        return acumularArcos(datagrams, nodos, null);
+    }
+    
+    /**
+     * Acumula los arcos y, en la misma pasada, el perfil por franja horaria (si perfil no es null)
+     */
+    public static Map<String, SpeedStatistics> acumularArcos(List<Datagram> datagrams, Map<String, GraphNode> nodos,
+                                                             SlottedArcProfile perfil) {
+        return recorrerTrayectos(datagrams, nodos, perfil).acumulados();
+    }
+    
+    /**
+     * Ordena por trayecto y recorre una sola vez; el colector queda con arcos, permanencias en
+     * parada y, si perfil no es null, el perfil por franja horaria
+     */
+    public static TrajectoryArcCollector recorrerTrayectos(List<Datagram> datagrams, Map<String, GraphNode> nodos,
+                                                          SlottedArcProfile perfil) {
+        return recorrerTrayectos(datagrams, nodos, perfil, ArcFilterPipeline.desdePropiedades());
+    }
+    
+    /**
+     * recorrerTrayectos con los filtros ya compilados del job (ej: los que el Master envía al Worker)
+     * Una sola pasada: no aplica la etapa de atípicos (el resultado es un parcial combinable)
+     */
+    public static TrajectoryArcCollector recorrerTrayectos(List<Datagram> datagrams, Map<String, GraphNode> nodos,
+                                                          SlottedArcProfile perfil, ArcFilterPipeline filtros) {
+        Datagram[] ordenados = datagrams.toArray(new Datagram[0]);
+        Arrays.sort(ordenados, ORDEN_TRAYECTO);
+        return recorrerOrdenados(ordenados, nodos, perfil, filtros, null);
+    }
+    
+    private static TrajectoryArcCollector recorrerOrdenados(Datagram[] ordenados, Map<String, GraphNode> nodos,
+                                                            SlottedArcProfile perfil, ArcFilterPipeline filtros,
+                                                            ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limites) {
+        TrajectoryArcCollector colector = new TrajectoryArcCollector(nodos, perfil, filtros, limites);
+        for (Datagram dg : ordenados) {
+            colector.agregar(dg);
+        }
+        return colector;
+    }
+    
+    /**
+     * Combina estadísticas parciales en el mapa destino (clave "routeId-origen-destino")
+     * Thread-safe si el destino es un ConcurrentHashMap
+     */
+    public static void combinarEn(Map<String, SpeedStatistics> destino, Collection<SpeedStatistics> parciales) {
+        for (SpeedStatistics parcial : parciales) {
+            String key = generarClaveArco(parcial.getRouteId(), parcial.getOrigenStopId(), parcial.getDestinoStopId());
+            destino.merge(key, parcial, SpeedStatistics::combinar);
         }
-        
-        // Procesar chunks en paralelo
-        Map<String, SpeedStatistics> resultadoFinal = new ConcurrentHashMap<>();
-        chunks.parallelStream().forEach(chunk -> {
-            Map<String, SpeedStatistics> parcial = calcularVelocidadesRealesSecuencial(chunk, nodos);
-            resultadoFinal.putAll(parcial);
-        });
-        
-        // Combinar estadísticas de arcos que aparecen en múltiples chunks
-        return combinarEstadisticas(resultadoFinal);
+    }
+    
+    /**
+     * Combina estadísticas parciales en un mapa por clave empaquetada (ArcKey)
+     * OPTIMIZACIÓN: No arma Strings por arco; no es thread-safe (usar bajo un lock)
+     */
+    public static void combinarEn(ArcKeyMap<SpeedStatistics> destino, Collection<SpeedStatistics> parciales) {
+        for (SpeedStatistics parcial : parciales) {
+            destino.merge(parcial.getClaveArco(), parcial, SpeedStatistics::combinar);
+        }
+    }
+    
+    /**
+     * Convierte un mapa por ArcKey al mapa por clave de texto "routeId-origen-destino" de los resultados
+     */
+    public static Map<String, SpeedStatistics> porTexto(ArcKeyMap<SpeedStatistics> estadisticas) {
+        Map<String, SpeedStatistics> resultado = new HashMap<>(estadisticas.size() * 2);
+        estadisticas.forEach((clave, s) ->
+            resultado.put(generarClaveArco(s.getRouteId(), s.getOrigenStopId(), s.getDestinoStopId()), s));
+        return resultado;
     }
     
     /**
      * Calcula velocidades de forma secuencial (método base)
+     * Ordena por bus, ruta y timestamp (cada trayecto queda contiguo) y recorre una vez, o dos
+     * con la etapa de atípicos (límites de cada arco con todas sus muestras, como BusPartitionedArcTask)
      */
     private static Map<String, SpeedStatistics> calcularVelocidadesRealesSecuencial(
             List<Datagram> datagrams, Map<String, GraphNode> nodos) {
         
-        // Agrupar datagrams por bus y ruta, ordenados por timestamp
-        Map<String, List<Datagram>> datagramsPorBus = new HashMap<>();
-        for (Datagram dg : datagrams) {
-            String key = dg.getBusId() + "-" + dg.getRouteId();
-            datagramsPorBus.putIfAbsent(key, new ArrayList<>());
-            datagramsPorBus.get(key).add(dg);
-        }
-        
-        // Ordenar por timestamp
-        for (List<Datagram> lista : datagramsPorBus.values()) {
-            lista.sort(Comparator.comparingLong(Datagram::getTimestamp));
-        }
-        
-        // Calcular tiempos entre paradas consecutivas
-        Map<String, List<Double>> tiemposPorArco = new HashMap<>(); // key: "routeId-origen-destino"
-        Map<String, Double> distanciasPorArco = new HashMap<>();
-        
-        for (List<Datagram> trayecto : datagramsPorBus.values()) {
-            for (int i = 0; i < trayecto.size() - 1; i++) {
-                Datagram origen = trayecto.get(i);
-                Datagram destino = trayecto.get(i + 1);
-                
-                // Solo procesar si son paradas diferentes en la misma ruta
-                if (origen.getRouteId().equals(destino.getRouteId()) && 
-                    !origen.getStopId().equals(destino.getStopId())) {
-                    
-                    String key = generarClaveArco(origen.getRouteId(), 
-                                                 origen.getStopId(), destino.getStopId());
-                    
-                    // Calcular tiempo en minutos
-                    long tiempoMs = destino.getTimestamp() - origen.getTimestamp();
-                    double tiempoMin = tiempoMs / (1000.0 * 60.0);
-                    
-                    // Filtros básicos para evitar cálculos absurdos
-                    // Valores por defecto razonables para transporte urbano
-                    double tiempoMinimo = Double.parseDouble(
-                        System.getProperty("datagram.filter.tiempoMinimo", "0.1")); // 6 segundos mínimo
-                    double tiempoMaximo = Double.parseDouble(
-                        System.getProperty("datagram.filter.tiempoMaximo", "120.0")); // 2 horas máximo
-                    
-                    // Solo procesar si el tiempo está en un rango razonable
-                    if (tiempoMin > tiempoMinimo && tiempoMin < tiempoMaximo) {
-                        tiemposPorArco.putIfAbsent(key, new ArrayList<>());
-                        tiemposPorArco.get(key).add(tiempoMin);
-                        
-                        // Calcular distancia si no está calculada
-                        if (!distanciasPorArco.containsKey(key)) {
-                            GraphNode nodoOrigen = nodos.get(origen.getStopId());
-                            GraphNode nodoDestino = nodos.get(destino.getStopId());
-                            
-                            if (nodoOrigen != null && nodoDestino != null) {
-                                double distancia = DistanceCalculator.calcularDistancia(
-                                    nodoOrigen, nodoDestino);
-                                distanciasPorArco.put(key, distancia);
-                            } else {
-                                // Si no se encuentran los nodos, usar coordenadas de los datagrams
-                                if (origen.getLatitude() != 0 && origen.getLongitude() != 0 &&
-                                    destino.getLatitude() != 0 && destino.getLongitude() != 0) {
-                                    // Crear nodos temporales desde las coordenadas de los datagrams
-                                    GraphNode tempOrigen = new GraphNode(
-                                        origen.getStopId(), "", "", 
-                                        origen.getLongitude(), origen.getLatitude());
-                                    GraphNode tempDestino = new GraphNode(
-                                        destino.getStopId(), "", "", 
-                                        destino.getLongitude(), destino.getLatitude());
-                                    double distancia = DistanceCalculator.calcularDistancia(
-                                        tempOrigen, tempDestino);
-                                    distanciasPorArco.put(key, distancia);
-                                } else {
-                                    // Si no hay coordenadas, poner distancia 0 (se calculará velocidad 0)
-                                    distanciasPorArco.put(key, 0.0);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+        ArcFilterPipeline filtros = ArcFilterPipeline.desdePropiedades();
+        Datagram[] ordenados = datagrams.toArray(new Datagram[0]);
+        Arrays.sort(ordenados, ORDEN_TRAYECTO);
+        TrajectoryArcCollector colector = recorrerOrdenados(ordenados, nodos, null, filtros, null);
+        if (filtros.aplicaAtipicos()) {
+            ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limites = filtros.limitesAtipicos(colector.acumuladosPorArco());
+            colector = recorrerOrdenados(ordenados, nodos, null, filtros, limites);
         }
+        return filtros.filtrarValidas(colector.acumulados());
+    }
+    
+    /**
+     * Calcula velocidades sobre datagrams en orden de llegada (timestamp) sin agrupar ni ordenar
+     * OPTIMIZACIÓN: StreamingArcEngine guarda solo el último datagram por (bus, ruta)
+     * Con la lista ordenada por timestamp el resultado es igual al de calcularVelocidadesReales
+     * (sin etapa de atípicos, que es lo predeterminado: el flujo no la aplica)
+     */
+    public static Map<String, SpeedStatistics> calcularVelocidadesEnFlujo(
+            Iterable<Datagram> datagramsPorTiempo, Map<String, GraphNode> nodos) {
         
-        // Calcular estadísticas promedio
-        // SIN FILTROS: Procesar todos los arcos sin restricciones
-        Map<String, SpeedStatistics> estadisticas = new HashMap<>();
-        
-        for (Map.Entry<String, List<Double>> entry : tiemposPorArco.entrySet()) {
-            String key = entry.getKey();
-            List<Double> tiempos = entry.getValue();
-            
-            // Calcular tiempo promedio
-            double tiempoPromedio = tiempos.stream()
-                .mapToDouble(Double::doubleValue)
-                .average()
-                .orElse(0.0);
-            
-            // Obtener distancia
-            double distancia = distanciasPorArco.getOrDefault(key, 0.0);
-            
-            // Filtros básicos de distancia
-            double distanciaMinima = Double.parseDouble(
-                System.getProperty("datagram.filter.distanciaMinima", "0.01")); // 10 metros mínimo
-            
-            // Calcular velocidad promedio
-            double velocidadPromedio = 0.0;
-            if (tiempoPromedio > 0 && distancia >= distanciaMinima) {
-                double tiempoEnHoras = tiempoPromedio / 60.0;
-                velocidadPromedio = distancia / tiempoEnHoras;
-                
-                // Filtros básicos de velocidad para evitar valores absurdos
-                double velocidadMinima = Double.parseDouble(
-                    System.getProperty("datagram.filter.velocidadMinima", "1.0")); // 1 km/h mínimo
-                double velocidadMaxima = Double.parseDouble(
-                    System.getProperty("datagram.filter.velocidadMaxima", "120.0")); // 120 km/h máximo (transporte urbano)
-                
-                // Si la velocidad está fuera del rango razonable, descartar
-                if (velocidadPromedio < velocidadMinima || velocidadPromedio > velocidadMaxima) {
-                    velocidadPromedio = 0.0; // Marcar como inválido
-                }
-            }
-            
-            // Parsear clave para obtener componentes
-            String[] partes = key.split("-");
-            if (partes.length >= 3) {
-                String routeId = partes[0];
-                String origenStopId = partes[1];
-                String destinoStopId = partes[2];
-                
-                // Solo agregar si tiene velocidad válida (filtros básicos aplicados)
-                if (velocidadPromedio > 0) {
-                    estadisticas.put(key, new SpeedStatistics(
-                        routeId, origenStopId, destinoStopId,
-                        distancia, tiempoPromedio, velocidadPromedio, tiempos.size()
-                    ));
-                }
-            }
+        StreamingArcEngine motor = new StreamingArcEngine(nodos);
+        for (Datagram dg : datagramsPorTiempo) {
+            motor.agregar(dg);
         }
-        
-        return estadisticas;
+        return motor.resultados();
     }
     
     /**
-     * Combina estadísticas de arcos que aparecen en múltiples chunks
+     * Calcula velocidades leyendo un archivo en orden de llegada (ej: el feed de un día) en una sola pasada
+     * Solo se mantienen en memoria un lote de lectura y el último datagram de cada trayecto;
+     * para archivos sin orden temporal usar calcularVelocidadesDesdeArchivo
+     * 
+     * @param filtro Filtros del job (null = sin filtros)
      */
-    private static Map<String, SpeedStatistics> combinarEstadisticas(
-            Map<String, SpeedStatistics> estadisticas) {
+    public static Map<String, SpeedStatistics> calcularVelocidadesEnFlujo(
+            String rutaArchivo, Map<String, GraphNode> nodos, DatagramFilter filtro) throws IOException {
         
-        // Agrupar por clave de arco y combinar muestras
-        Map<String, List<SpeedStatistics>> agrupadas = new HashMap<>();
-        for (SpeedStatistics stats : estadisticas.values()) {
-            String key = generarClaveArco(stats.getRouteId(), 
-                                         stats.getOrigenStopId(), 
-                                         stats.getDestinoStopId());
-            agrupadas.putIfAbsent(key, new ArrayList<>());
-            agrupadas.get(key).add(stats);
+        StreamingArcEngine motor = new StreamingArcEngine(nodos);
+        cargarDatagrams(rutaArchivo, 10000, 1, filtro, null, (batch, num) -> {
+            for (Datagram dg : batch) {
+                motor.agregar(dg);
+            }
+        });
+        if (motor.getFueraDeOrden() > 0) {
+            System.out.println("⚠ " + motor.getFueraDeOrden() + " datagrams fuera de orden descartados en " + rutaArchivo);
         }
+        return motor.resultados();
+    }
+    
+    /**
+     * Calcula velocidades de un archivo completo con memoria acotada
+     * OPTIMIZACIÓN: Ordenamiento externo (runs en disco + merge) y cálculo de arcos en una sola pasada;
+     * el heap solo necesita un run y un acumulador por arco, no el archivo completo
+     * Con la etapa de atípicos el merge se recorre dos veces (los runs siguen en disco)
+     */
+    public static Map<String, SpeedStatistics> calcularVelocidadesDesdeArchivo(
+            String rutaArchivo, Map<String, GraphNode> nodos) throws IOException {
         
-        // Combinar estadísticas
-        Map<String, SpeedStatistics> resultado = new HashMap<>();
-        for (Map.Entry<String, List<SpeedStatistics>> entry : agrupadas.entrySet()) {
-            List<SpeedStatistics> lista = entry.getValue();
-            if (lista.size() == 1) {
-                resultado.put(entry.getKey(), lista.get(0));
-            } else {
-                // Combinar múltiples estadísticas
-                SpeedStatistics primera = lista.get(0);
-                int totalMuestras = lista.stream().mapToInt(SpeedStatistics::getNumMuestras).sum();
-                double tiempoPromedioPonderado = lista.stream()
-                    .mapToDouble(s -> s.getTiempoPromedio() * s.getNumMuestras())
-                    .sum() / totalMuestras;
-                double distancia = primera.getDistancia(); // Misma distancia
-                double velocidadPromedio = distancia > 0 && tiempoPromedioPonderado > 0 ?
-                    distancia / (tiempoPromedioPonderado / 60.0) : 0.0;
-                
-                resultado.put(entry.getKey(), new SpeedStatistics(
-                    primera.getRouteId(), primera.getOrigenStopId(), primera.getDestinoStopId(),
-                    distancia, tiempoPromedioPonderado, velocidadPromedio, totalMuestras
-                ));
+        return calcularVelocidadesDesdeArchivo(rutaArchivo, nodos, null);
+    }
+    
+    /**
+     * Calcula velocidades de un archivo completo con memoria acotada, aplicando filtros al escanear
+     */
+    public static Map<String, SpeedStatistics> calcularVelocidadesDesdeArchivo(
+            String rutaArchivo, Map<String, GraphNode> nodos, DatagramFilter filtro) throws IOException {
+        
+        ArcFilterPipeline filtros = ArcFilterPipeline.desdePropiedades();
+        List<TrajectoryArcCollector> colector = new ArrayList<>(1);
+        cargarDatagramsOrdenados(rutaArchivo, filtro, null, sorter -> {
+            TrajectoryArcCollector primera = new TrajectoryArcCollector(nodos, null, filtros);
+            sorter.recorrerOrdenado(primera::agregar);
+            colector.add(primera);
+            if (filtros.aplicaAtipicos()) {
+                TrajectoryArcCollector segunda = new TrajectoryArcCollector(nodos, null, filtros,
+                    filtros.limitesAtipicos(primera.acumuladosPorArco()));
+                sorter.recorrerOrdenado(segunda::agregar);
+                colector.set(0, segunda);
+            }
+        });
+        return colector.get(0).resultados();
+    }
+    
+    /**
+     * Carga datagrams en lotes ordenados por (bus, ruta, timestamp) usando ordenamiento externo
+     * Cada trayecto queda contiguo: un lote corta como máximo los trayectos de sus extremos
+     */
+    public static void cargarDatagramsOrdenados(String rutaArchivo, int batchSize,
+                                                BatchCallback callback) throws IOException {
+        cargarDatagramsOrdenados(rutaArchivo, batchSize, null, null, callback);
+    }
+    
+    /**
+     * Carga datagrams en lotes ordenados aplicando los filtros del job al escanear
+     * 
+     * @param contadores Acumula filas aceptadas, filtradas y rechazadas por motivo (null = no reportar)
+     */
+    public static void cargarDatagramsOrdenados(String rutaArchivo, int batchSize, DatagramFilter filtro,
+                                                ParseCounters contadores,
+                                                BatchCallback callback) throws IOException {
+        cargarDatagramsOrdenados(rutaArchivo, filtro, contadores, sorter -> {
+            final List<List<Datagram>> actual = new ArrayList<>(1);
+            actual.add(new ArrayList<>(batchSize));
+            final int[] batchNumber = {0};
+            
+            sorter.recorrerOrdenado(dg -> {
+                List<Datagram> lote = actual.get(0);
+                lote.add(dg);
+                if (lote.size() >= batchSize) {
+                    callback.processBatch(lote, batchNumber[0]++);
+                    actual.set(0, new ArrayList<>(batchSize));
+                }
+            });
+            
+            if (!actual.get(0).isEmpty()) {
+                callback.processBatch(actual.get(0), batchNumber[0]);
             }
+        });
+    }
+    
+    /**
+     * Acción sobre un archivo ya volcado en el ordenamiento externo
+     */
+    private interface AccionOrdenada {
+        void ejecutar(ExternalDatagramSorter sorter) throws IOException;
+    }
+    
+    private static void cargarDatagramsOrdenados(String rutaArchivo, DatagramFilter filtro, ParseCounters contadores,
+                                                 AccionOrdenada accion) throws IOException {
+        try (ExternalDatagramSorter sorter = new ExternalDatagramSorter()) {
+            // Streaming: el sorter vuelca runs a disco a medida que llegan los lotes
+            cargarDatagrams(rutaArchivo, 10000, 1, filtro, contadores, (batch, num) -> {
+                for (Datagram dg : batch) {
+                    sorter.agregar(dg);
+                }
+            });
+            accion.ejecutar(sorter);
         }
-        
-        return resultado;
     }
     
     /**
@@ -544,6 +560,56 @@ public class DatagramProcessor {
         public int getNumMuestrasTotal() { return numMuestrasTotal; }
     }
     
+    /**
+     * Tiempo de permanencia (dwell) de los buses de una ruta en una parada (minutos)
+     * Una muestra es una visita: desde el primer datagram en la parada hasta el último antes de salir
+     * Se combina igual que SpeedStatistics (ArcAccumulator exacto y asociativo)
+     */
+    public static class DwellStatistics {
+        private final String routeId;
+        private final String stopId;
+        private final ArcAccumulator tiempos;
+        
+        public DwellStatistics(String routeId, String stopId, ArcAccumulator tiempos) {
+            this.routeId = routeId;
+            this.stopId = stopId;
+            this.tiempos = tiempos;
+        }
+        
+        /**
+         * Combina con otra estadística de la misma ruta y parada (no modifica ninguna de las dos)
+         */
+        public DwellStatistics combinar(DwellStatistics otra) {
+            return new DwellStatistics(routeId, stopId, tiempos.copia().combinar(otra.tiempos));
+        }
+        
+        /**
+         * Clave empaquetada (ArcKey con origen = destino = parada)
+         */
+        public long getClave() {
+            return ArcKey.de(routeId, stopId, stopId);
+        }
+        
+        public String getRouteId() { return routeId; }
+        public String getStopId() { return stopId; }
+        public ArcAccumulator getTiempos() { return tiempos; }
+        public long getNumVisitas() { return tiempos.getMuestras(); }
+        public double getTiempoPromedio() { return tiempos.getPromedio(); }
+        public double getTiempoMinimo() { return tiempos.getMinimo(); }
+        public double getTiempoMaximo() { return tiempos.getMaximo(); }
+        public double getDesviacionTiempo() { return tiempos.getDesviacion(); }
+    }
+    
+    /**
+     * Combina permanencias parciales por ruta y parada (no es thread-safe: usar bajo un lock)
+     */
+    public static void combinarPermanenciasEn(ArcKeyMap<DwellStatistics> destino,
+                                              Collection<DwellStatistics> parciales) {
+        for (DwellStatistics parcial : parciales) {
+            destino.merge(parcial.getClave(), parcial, DwellStatistics::combinar);
+        }
+    }
+    
     /**
      * Calcula velocidades promedio por ruta a partir de estadísticas de arcos
      * Usa promedio ponderado por distancia para obtener la velocidad real de la ruta
@@ -638,7 +704,8 @@ public class DatagramProcessor {
     }
     
     /**
-     * Calcula velocidades para un lote específico de datagrams (para procesamiento distribuido)
+     * Calcula velocidades para un lote específico de datagrams con los filtros de velocidad aplicados
+     * (para combinar lotes de forma exacta usar acumularArcos y filtrar al final)
      */
     public static Map<String, SpeedStatistics> calcularVelocidadesParaLote(
             List<Datagram> batch, Map<String, GraphNode> nodos) {
@@ -649,7 +716,7 @@ public class DatagramProcessor {
      * Detecta si la primera línea del CSV contiene encabezados o datos
      * Busca palabras clave típicas de encabezados (bus, route, stop, date, etc.)
      */
-    private static boolean detectarSiTieneEncabezados(String[] primeraLinea) {
+    static boolean detectarSiTieneEncabezados(String[] primeraLinea) {
         if (primeraLinea == null || primeraLinea.length == 0) {
             return false;
         }
@@ -674,13 +741,9 @@ public class DatagramProcessor {
         boolean todosSonNumeros = true;
         for (String campo : primeraLinea) {
             String campoLimpio = campo.replace("\"", "").trim();
-            if (!campoLimpio.isEmpty()) {
-                try {
-                    Double.parseDouble(campoLimpio);
-                } catch (NumberFormatException e) {
-                    todosSonNumeros = false;
-                    break;
-                }
+            if (!campoLimpio.isEmpty() && !esNumero(campoLimpio)) {
+                todosSonNumeros = false;
+                break;
             }
         }
         
@@ -693,6 +756,14 @@ public class DatagramProcessor {
         return coincidencias >= 2;
     }
     
+    /**
+     * Indica si el texto es un número decimal (sin lanzar NumberFormatException)
+     */
+    private static boolean esNumero(String texto) {
+        ByteBuffer bytes = ByteBuffer.wrap(texto.getBytes(StandardCharsets.US_ASCII));
+        return !Double.isNaN(MappedDatagramReader.parsearDouble(bytes, 0, bytes.limit(), Double.NaN));
+    }
+    
     /**
      * Crea un mapa de índices cuando no hay encabezados, usando un orden predefinido
      * Orden por defecto basado en estructura real del CSV:
@@ -708,6 +779,7 @@ public class DatagramProcessor {
      * - longitude: columna 5
      * - timestamp/datagramDate: columna 10
      * - sequence/tripId: columna 8
+     * - eventType: columna 0 (solo se usa con filtros de eventType)
      * 
      * Puedes configurar el orden usando propiedades del sistema:
      * - datagram.csv.column.busId=11
@@ -717,7 +789,7 @@ public class DatagramProcessor {
      * - datagram.csv.column.longitude=5
      * - datagram.csv.column.timestamp=10
      */
-    private static Map<String, Integer> crearIndicesSinEncabezados(int numColumnas) {
+    static Map<String, Integer> crearIndicesSinEncabezados(int numColumnas) {
         Map<String, Integer> indices = new HashMap<>();
         
         // Orden por defecto basado en estructura real: 
@@ -731,6 +803,7 @@ public class DatagramProcessor {
         int longitudeIdx = Integer.parseInt(System.getProperty("datagram.csv.column.longitude", "5"));
         int timestampIdx = Integer.parseInt(System.getProperty("datagram.csv.column.timestamp", "10"));
         int sequenceIdx = Integer.parseInt(System.getProperty("datagram.csv.column.sequence", "8"));
+        int eventTypeIdx = Integer.parseInt(System.getProperty("datagram.csv.column.eventType", "0"));
         
         // Validar que los índices estén dentro del rango
         if (busIdIdx >= 0 && busIdIdx < numColumnas) {
@@ -754,6 +827,9 @@ public class DatagramProcessor {
         if (sequenceIdx >= 0 && sequenceIdx < numColumnas) {
             indices.put("sequence", sequenceIdx);
         }
+        if (eventTypeIdx >= 0 && eventTypeIdx < numColumnas) {
+            indices.put("event_type", eventTypeIdx);
+        }
         
         System.out.println("Orden de columnas detectado (sin encabezados):");
         System.out.println("  Estructura esperada: eventType, registerdate, stopId, odometer, latitude, longitude, taskId, lineId, tripId, unknown1, datagramDate, busId");
@@ -766,6 +842,7 @@ public class DatagramProcessor {
         if (sequenceIdx >= 0) {
             System.out.println("  sequence/tripId: columna " + sequenceIdx);
         }
+        System.out.println("  eventType: columna " + eventTypeIdx);
         System.out.println("  (Total de columnas: " + numColumnas + ")");
         System.out.println();
         System.out.println("NOTA: Si el orden es incorrecto, puedes configurarlo con propiedades del sistema:");
@@ -776,6 +853,7 @@ public class DatagramProcessor {
         System.out.println("  -Ddatagram.csv.column.longitude=5");
         System.out.println("  -Ddatagram.csv.column.timestamp=10");
         System.out.println("  -Ddatagram.csv.column.sequence=8");
+        System.out.println("  -Ddatagram.csv.column.eventType=0");
         System.out.println();
         
         return indices;
@@ -786,7 +864,7 @@ public class DatagramProcessor {
      * Soporta estructura real: eventType, registerdate, stopId, odometer, latitude, 
      * longitude, taskId, lineId, tripId, unknown1, datagramDate, busId
      */
-    private static Map<String, Integer> mapearEncabezados(String[] encabezados) {
+    static Map<String, Integer> mapearEncabezados(String[] encabezados) {
         Map<String, Integer> indices = new HashMap<>();
         
         for (int i = 0; i < encabezados.length; i++) {
@@ -816,6 +894,9 @@ public class DatagramProcessor {
                 encabezado.matches(".*datagram.*date.*|.*timestamp.*|.*time.*")) {
                 indices.put("timestamp", i); // datagramDate se mapea a timestamp
             }
+            if (encabezado.equals("eventtype") || encabezado.equals("event_type")) {
+                indices.put("event_type", i);
+            }
             if (encabezado.equals("tripid") || encabezado.equals("trip_id") ||
                 encabezado.matches(".*trip.*id.*|.*sequence.*|.*order.*")) {
                 indices.put("sequence", i); // tripId se usa como secuencia
@@ -828,7 +909,7 @@ public class DatagramProcessor {
     /**
      * Parsea un archivo CSV considerando comillas
      */
-    private static String[] parsearCSV(String linea) {
+    static String[] parsearCSV(String linea) {
         List<String> campos = new ArrayList<>();
         boolean dentroComillas = false;
         StringBuilder campo = new StringBuilder();
@@ -847,156 +928,5 @@ public class DatagramProcessor {
         
         return campos.toArray(new String[0]);
     }
-    
-    /**
-     * Obtiene un campo del array usando el mapa de índices
-     */
-    private static String obtenerCampo(String[] campos, Map<String, Integer> indices, String nombre) {
-        Integer indice = indices.get(nombre);
-        if (indice != null && indice < campos.length) {
-            return campos[indice].replace("\"", "").trim();
-        }
-        return null;
-    }
-    
-    /**
-     * Parsea un double con valor por defecto
-     */
-    private static double parsearDouble(String[] campos, Map<String, Integer> indices, 
-                                       String nombre, double valorDefecto) {
-        String valor = obtenerCampo(campos, indices, nombre);
-        if (valor != null && !valor.isEmpty()) {
-            try {
-                return Double.parseDouble(valor);
-            } catch (NumberFormatException e) {
-                return valorDefecto;
-            }
-        }
-        return valorDefecto;
-    }
-    
-    /**
-     * Parsea un int con valor por defecto
-     */
-    private static int parsearInt(String[] campos, Map<String, Integer> indices, 
-                                 String nombre, int valorDefecto) {
-        String valor = obtenerCampo(campos, indices, nombre);
-        if (valor != null && !valor.isEmpty()) {
-            try {
-                return Integer.parseInt(valor);
-            } catch (NumberFormatException e) {
-                return valorDefecto;
-            }
-        }
-        return valorDefecto;
-    }
-    
-    /**
-     * Parsea un datagram desde un array de campos
-     * Adaptado para estructura real: busId, lineId, stopId, latitude, longitude, datagramDate
-     */
-    private static Datagram parsearDatagram(String[] campos, Map<String, Integer> indices) {
-        String busId = obtenerCampo(campos, indices, "bus_id");
-        String routeId = obtenerCampo(campos, indices, "route_id"); // lineId en el CSV
-        String stopId = obtenerCampo(campos, indices, "stop_id");
-        
-        // Las coordenadas están en microgrados (ej: 34761183 = 34.761183)
-        double latitude = parsearDouble(campos, indices, "latitude", 0.0);
-        double longitude = parsearDouble(campos, indices, "longitude", 0.0);
-        
-        // Convertir de microgrados a grados decimales
-        if (Math.abs(latitude) > 90) {
-            latitude = latitude / 1000000.0;
-        }
-        if (Math.abs(longitude) > 180) {
-            longitude = longitude / 1000000.0;
-        }
-        
-        // Timestamp desde datagramDate (formato: "2019-05-27 20:14:43")
-        long timestamp = parsearTimestamp(campos, indices);
-        
-        // Usar tripId como secuencia
-        int sequence = parsearInt(campos, indices, "sequence", 0);
-        
-        if (busId != null && routeId != null && stopId != null && timestamp > 0) {
-            return new Datagram(busId, routeId, stopId, 
-                             latitude, longitude, timestamp, sequence);
-        }
-        return null;
-    }
-    
-    /**
-     * Parsea timestamp desde datagramDate
-     * Formato esperado: "2019-05-27 20:14:43" (YYYY-MM-DD HH:MM:SS)
-     */
-    private static long parsearTimestamp(String[] campos, Map<String, Integer> indices) {
-        String valor = obtenerCampo(campos, indices, "timestamp");
-        if (valor == null || valor.isEmpty()) {
-            return 0;
-        }
-        
-        try {
-            // Intentar como milisegundos (timestamp Unix)
-            return Long.parseLong(valor);
-        } catch (NumberFormatException e) {
-            try {
-                // Intentar como segundos y convertir a milisegundos
-                return (long)(Double.parseDouble(valor) * 1000);
-            } catch (NumberFormatException e2) {
-                // Intentar parsear como fecha "2019-05-27 20:14:43"
-                try {
-                    return parsearFechaHora(valor);
-                } catch (Exception e3) {
-                    // Si no se puede parsear, retornar 0
-                    return 0;
-                }
-            }
-        }
-    }
-    
-    /**
-     * Parsea fecha/hora en formato "2019-05-27 20:14:43" a timestamp Unix
-     */
-    private static long parsearFechaHora(String fechaHora) {
-        try {
-            // Formato: "2019-05-27 20:14:43"
-            String[] partes = fechaHora.trim().split(" ");
-            if (partes.length != 2) {
-                return 0;
-            }
-            
-            String fecha = partes[0]; // "2019-05-27"
-            String hora = partes[1];  // "20:14:43"
-            
-            String[] fechaPartes = fecha.split("-");
-            String[] horaPartes = hora.split(":");
-            
-            if (fechaPartes.length != 3 || horaPartes.length != 3) {
-                return 0;
-            }
-            
-            int año = Integer.parseInt(fechaPartes[0]);
-            int mes = Integer.parseInt(fechaPartes[1]) - 1; // Mes es 0-based en Calendar
-            int dia = Integer.parseInt(fechaPartes[2]);
-            int horas = Integer.parseInt(horaPartes[0]);
-            int minutos = Integer.parseInt(horaPartes[1]);
-            int segundos = Integer.parseInt(horaPartes[2]);
-            
-            // Crear Calendar y convertir a timestamp
-            java.util.Calendar cal = java.util.Calendar.getInstance();
-            cal.set(java.util.Calendar.YEAR, año);
-            cal.set(java.util.Calendar.MONTH, mes);
-            cal.set(java.util.Calendar.DAY_OF_MONTH, dia);
-            cal.set(java.util.Calendar.HOUR_OF_DAY, horas);
-            cal.set(java.util.Calendar.MINUTE, minutos);
-            cal.set(java.util.Calendar.SECOND, segundos);
-            cal.set(java.util.Calendar.MILLISECOND, 0);
-            
-            return cal.getTimeInMillis();
-            
-        } catch (Exception e) {
-            return 0;
-        }
-    }
 }
 
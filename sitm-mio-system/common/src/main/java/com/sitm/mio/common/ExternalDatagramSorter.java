@@ -0,0 +1,184 @@
+package com.sitm.mio.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Ordenamiento externo de datagrams por (bus, ruta, timestamp)
+ * OPTIMIZACIÓN: Los datagrams se acumulan hasta filasPorRun, se ordenan en memoria y se vuelcan
+ * a disco como runs ordenados; el merge de k vías entrega un flujo ordenado leyendo un solo
+ * registro por run, así la memoria queda acotada sin importar el tamaño del archivo
+ *
+ * El orden es estable: a igual (bus, ruta, timestamp) se conserva el orden de llegada
+ *
+ * Configuración:
+ *   datagram.sort.filasPorRun  - datagrams por run en memoria (por defecto 1000000)
+ *   datagram.sort.dirTemporal  - directorio de los runs (por defecto java.io.tmpdir)
+ */
+public class ExternalDatagramSorter implements Closeable {
+
+    private static final int BUFFER_RUN = 64 * 1024;
+
+    private final int filasPorRun;
+    private final File dirTemporal;
+    private final List<File> runs = new ArrayList<>();
+    private DatagramProcessor.Datagram[] buffer;
+    private int filasBuffer;
+
+    public ExternalDatagramSorter() {
+        this(Integer.getInteger("datagram.sort.filasPorRun", 1000000),
+             new File(System.getProperty("datagram.sort.dirTemporal", System.getProperty("java.io.tmpdir"))));
+    }
+
+    public ExternalDatagramSorter(int filasPorRun, File dirTemporal) {
+        this.filasPorRun = Math.max(1, filasPorRun);
+        this.dirTemporal = dirTemporal;
+        this.buffer = new DatagramProcessor.Datagram[Math.min(this.filasPorRun, 1024)];
+    }
+
+    /**
+     * Agrega un datagram; si el run en memoria se llena, se ordena y se vuelca a disco
+     */
+    public void agregar(DatagramProcessor.Datagram dg) throws IOException {
+        if (filasBuffer == buffer.length) {
+            if (filasBuffer == filasPorRun) {
+                volcarRun();
+            } else {
+                buffer = Arrays.copyOf(buffer, Math.min(filasPorRun, buffer.length * 2));
+            }
+        }
+        buffer[filasBuffer++] = dg;
+    }
+
+    /**
+     * Entrega todos los datagrams agregados en orden (bus, ruta, timestamp)
+     * Si todo cupo en un run, se ordena en memoria sin tocar el disco
+     * Se puede llamar más de una vez (los runs quedan en disco hasta close)
+     */
+    public void recorrerOrdenado(MappedDatagramReader.DatagramSink sink) throws IOException {
+        if (runs.isEmpty()) {
+            Arrays.sort(buffer, 0, filasBuffer, DatagramProcessor.ORDEN_TRAYECTO);
+            for (int i = 0; i < filasBuffer; i++) {
+                sink.aceptar(buffer[i]);
+            }
+            return;
+        }
+
+        if (filasBuffer > 0) {
+            volcarRun();
+        }
+        buffer = null; // Liberar el run en memoria antes del merge
+
+        List<CursorRun> cursores = new ArrayList<>(runs.size());
+        PriorityQueue<CursorRun> cola = new PriorityQueue<>(runs.size(), (a, b) -> {
+            int c = DatagramProcessor.ORDEN_TRAYECTO.compare(a.actual, b.actual);
+            return c != 0 ? c : Integer.compare(a.numeroRun, b.numeroRun);
+        });
+        try {
+            for (int r = 0; r < runs.size(); r++) {
+                CursorRun cursor = new CursorRun(runs.get(r), r);
+                cursores.add(cursor);
+                if (cursor.avanzar()) {
+                    cola.add(cursor);
+                }
+            }
+
+            while (!cola.isEmpty()) {
+                CursorRun cursor = cola.poll();
+                sink.aceptar(cursor.actual);
+                if (cursor.avanzar()) {
+                    cola.add(cursor);
+                }
+            }
+        } finally {
+            for (CursorRun cursor : cursores) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Ordena el buffer y lo escribe como un run (registros de 40 bytes)
+     */
+    private void volcarRun() throws IOException {
+        Arrays.sort(buffer, 0, filasBuffer, DatagramProcessor.ORDEN_TRAYECTO);
+
+        File run = File.createTempFile("datagrams-run-", ".bin", dirTemporal);
+        run.deleteOnExit();
+        runs.add(run);
+        try (DataOutputStream salida = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run), BUFFER_RUN))) {
+            for (int i = 0; i < filasBuffer; i++) {
+                DatagramProcessor.Datagram dg = buffer[i];
+                salida.writeInt(dg.getBusIndex());
+                salida.writeInt(dg.getRouteIndex());
+                salida.writeInt(dg.getStopIndex());
+                salida.writeDouble(dg.getLatitude());
+                salida.writeDouble(dg.getLongitude());
+                salida.writeLong(dg.getTimestamp());
+                salida.writeInt(dg.getSequence());
+                buffer[i] = null;
+            }
+        }
+        filasBuffer = 0;
+    }
+
+    public int getNumRuns() { return runs.size(); }
+
+    /**
+     * Elimina los runs temporales
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            if (!run.delete()) {
+                run.deleteOnExit();
+            }
+        }
+        runs.clear();
+    }
+
+    /**
+     * Lector secuencial de un run: mantiene solo el registro actual
+     */
+    private static class CursorRun implements Closeable {
+        final int numeroRun;
+        final DataInputStream entrada;
+        DatagramProcessor.Datagram actual;
+
+        CursorRun(File run, int numeroRun) throws IOException {
+            this.numeroRun = numeroRun;
+            this.entrada = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_RUN));
+        }
+
+        boolean avanzar() throws IOException {
+            int bus;
+            try {
+                bus = entrada.readInt();
+            } catch (EOFException e) {
+                actual = null;
+                return false;
+            }
+            actual = new DatagramProcessor.Datagram(bus, entrada.readInt(), entrada.readInt(),
+                entrada.readDouble(), entrada.readDouble(), entrada.readLong(), entrada.readInt());
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            entrada.close();
+        }
+    }
+}
@@ -17,11 +17,15 @@ public class GraphAdapter {
     
     /**
      * Convierte un Grafo del proyecto original a una representación común
+     * Registra los stopId en la SymbolTable global (misma tabla que usan los datagrams)
+     * Para precalcular las distancias de los arcos del grafo: ArcDistanceTable.desdeGrafo
      */
     public static Map<String, GraphNode> convertirNodos(Grafo grafo) {
         Map<String, GraphNode> nodosComunes = new HashMap<>();
+        SymbolTable tabla = SymbolTable.global();
         
         for (Nodo nodo : grafo.obtenerNodos()) {
+            tabla.intern(nodo.getId());
             GraphNode graphNode = new GraphNode(
                 nodo.getId(),
                 nodo.getNombre(),
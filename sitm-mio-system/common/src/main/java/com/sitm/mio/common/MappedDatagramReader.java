@@ -0,0 +1,910 @@
+package com.sitm.mio.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lector de datagrams.csv sobre memoria mapeada (FileChannel.map)
+ * OPTIMIZACIÓN: Recorre los bytes crudos buscando delimitadores, sin readLine()
+ * ni split, y solo construye valores para las columnas del plan de encabezados
+ * Los filtros del job (DatagramFilter) se evalúan sobre los bytes antes de crear el Datagram
+ * Solo las filas aceptadas registran sus identificadores en la SymbolTable global (que no se vacía
+ * entre jobs): las filtradas o rechazadas no agregan símbolos
+ * Las filas inválidas se descartan sin excepciones y se cuentan por motivo (ParseCounters)
+ */
+public class MappedDatagramReader implements Closeable {
+
+    /**
+     * Destino de los datagrams leídos
+     */
+    public interface DatagramSink {
+        void aceptar(DatagramProcessor.Datagram datagram) throws IOException;
+    }
+
+    // Tamaño de cada ventana mapeada (un solo mapeo no puede superar 2 GB)
+    private static final long VENTANA_MAPEO = Long.getLong("datagram.reader.ventanaMb", 256L) * 1024 * 1024;
+
+    // Tamaño mínimo de un rango para que valga la pena un hilo adicional
+    private static final long RANGO_MINIMO = 1024L * 1024;
+
+    private static final byte COMA = ',';
+    private static final byte COMILLA = '"';
+    private static final byte FIN_LINEA = '\n';
+    private static final byte RETORNO = '\r';
+
+    private final String rutaArchivo;
+    private final FileChannel canal;
+    private long tamano;
+    private final PlanColumnas plan;
+    private final long inicioDatos;
+    private final TimestampParser.Formato formatoTimestamp;
+    private final ZoneId zona;
+    private final DatagramFilter filtro;
+    private final ParseCounters contadores;
+
+    /**
+     * Abre el archivo y detecta el plan de columnas a partir de la primera línea
+     */
+    public MappedDatagramReader(String rutaArchivo) throws IOException {
+        this(rutaArchivo, null, null);
+    }
+
+    /**
+     * Abre el archivo con filtros que se evalúan sobre los bytes de cada línea (null = sin filtros)
+     * 
+     * @param contadores Destino de los contadores de filas aceptadas y rechazadas (null = propios)
+     */
+    public MappedDatagramReader(String rutaArchivo, DatagramFilter filtro,
+                                ParseCounters contadores) throws IOException {
+        this.rutaArchivo = rutaArchivo;
+        this.filtro = filtro != null ? filtro : new DatagramFilter();
+        if (this.filtro.filtraRutas()) {
+            // Antes de leer: las rutas del filtro ya están en la SymbolTable cuando se buscan
+            this.filtro.registrarRutas();
+        }
+        this.contadores = contadores != null ? contadores : new ParseCounters();
+        this.canal = FileChannel.open(Paths.get(rutaArchivo), StandardOpenOption.READ);
+        try {
+            this.tamano = canal.size();
+            if (tamano == 0) {
+                throw new IOException("El archivo datagrams.csv está vacío");
+            }
+
+            // Leer la primera línea para detectar encabezados
+            MappedByteBuffer inicio = canal.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(tamano, VENTANA_MAPEO));
+            int finPrimera = buscarFinLinea(inicio, 0, inicio.limit());
+            byte[] bytesPrimera = new byte[finPrimera];
+            inicio.get(bytesPrimera);
+            String primeraLinea = new String(bytesPrimera, StandardCharsets.UTF_8);
+
+            String[] primeraLineaCampos = DatagramProcessor.parsearCSV(primeraLinea);
+            boolean tieneEncabezados = DatagramProcessor.detectarSiTieneEncabezados(primeraLineaCampos);
+
+            Map<String, Integer> indices;
+            if (tieneEncabezados) {
+                indices = DatagramProcessor.mapearEncabezados(primeraLineaCampos);
+
+                // Validar columnas requeridas
+                if (!indices.containsKey("bus_id") || !indices.containsKey("route_id") ||
+                    !indices.containsKey("stop_id") || !indices.containsKey("timestamp")) {
+                    throw new IOException("El archivo datagrams.csv no tiene las columnas requeridas. " +
+                                        "Esperadas: busId (o bus_id), lineId (o line_id), stopId (o stop_id), " +
+                                        "datagramDate (o timestamp). " +
+                                        "Columnas encontradas: " + String.join(", ", primeraLineaCampos));
+                }
+                // Los datos empiezan después del salto de línea de los encabezados
+                this.inicioDatos = Math.min(tamano, finPrimera + 1L);
+            } else {
+                // No hay encabezados, usar orden predefinido
+                System.out.println("⚠ Archivo sin encabezados detectado. Usando orden predefinido de columnas.");
+                indices = DatagramProcessor.crearIndicesSinEncabezados(primeraLineaCampos.length);
+                this.inicioDatos = 0; // La primera línea ya es un dato
+            }
+            this.plan = new PlanColumnas(indices);
+
+            // Detectar el formato del timestamp una sola vez por archivo
+            this.zona = TimestampParser.zonaConfigurada();
+            this.formatoTimestamp = detectarFormatoTimestamp(inicio);
+        } catch (IOException | RuntimeException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Carga datagrams en lotes desde el archivo mapeado
+     * Mantiene el contrato de BatchCallback: cada lote es una lista nueva
+     */
+    public static void leerEnLotes(String rutaArchivo, int batchSize, DatagramFilter filtro,
+                                   ParseCounters contadores,
+                                   DatagramProcessor.BatchCallback callback) throws IOException {
+        try (MappedDatagramReader lector = new MappedDatagramReader(rutaArchivo, filtro, contadores)) {
+            final List<List<DatagramProcessor.Datagram>> actual = new ArrayList<>(1);
+            actual.add(new ArrayList<>(batchSize));
+            final int[] batchNumber = {0};
+
+            lector.recorrer(lector.inicioDatos, lector.tamano, dg -> {
+                List<DatagramProcessor.Datagram> lote = actual.get(0);
+                lote.add(dg);
+                if (lote.size() >= batchSize) {
+                    callback.processBatch(lote, batchNumber[0]++);
+                    actual.set(0, new ArrayList<>(batchSize));
+                }
+            });
+
+            // Procesar último lote si no está vacío
+            if (!actual.get(0).isEmpty()) {
+                callback.processBatch(actual.get(0), batchNumber[0]);
+            }
+        }
+    }
+
+    /**
+     * Carga datagrams en lotes dividiendo el archivo en rangos de bytes alineados a saltos de línea
+     * OPTIMIZACIÓN: Cada rango se parsea en su propio hilo; los encabezados se detectan una sola vez
+     * 
+     * Cada rango arma sus propios lotes y los numera con un contador compartido, por lo que
+     * el callback se invoca desde varios hilos a la vez y debe ser thread-safe
+     * 
+     * @param numRangos Número de rangos/hilos (<= 0 = núcleos disponibles)
+     */
+    public static void leerEnLotesParalelo(String rutaArchivo, int batchSize, int numRangos,
+                                           DatagramFilter filtro, ParseCounters contadores,
+                                           DatagramProcessor.BatchCallback callback) throws IOException {
+        try (MappedDatagramReader lector = new MappedDatagramReader(rutaArchivo, filtro, contadores)) {
+            long[] limites = lector.dividirEnRangos(numRangos);
+            if (limites.length == 2) {
+                // Un solo rango: no hace falta pool de hilos
+                leerRangoEnLotes(lector, limites[0], limites[1], batchSize, new AtomicInteger(), callback);
+                return;
+            }
+
+            AtomicInteger batchNumber = new AtomicInteger();
+            lector.ejecutarPorRango(limites, (desde, hasta) -> {
+                leerRangoEnLotes(lector, desde, hasta, batchSize, batchNumber, callback);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Lee un rango armando lotes propios numerados con el contador compartido
+     */
+    private static void leerRangoEnLotes(MappedDatagramReader lector, long desde, long hasta, int batchSize,
+                                         AtomicInteger batchNumber,
+                                         DatagramProcessor.BatchCallback callback) throws IOException {
+        final List<List<DatagramProcessor.Datagram>> actual = new ArrayList<>(1);
+        actual.add(new ArrayList<>(batchSize));
+
+        lector.recorrer(desde, hasta, dg -> {
+            List<DatagramProcessor.Datagram> lote = actual.get(0);
+            lote.add(dg);
+            if (lote.size() >= batchSize) {
+                callback.processBatch(lote, batchNumber.getAndIncrement());
+                actual.set(0, new ArrayList<>(batchSize));
+            }
+        });
+
+        if (!actual.get(0).isEmpty()) {
+            callback.processBatch(actual.get(0), batchNumber.getAndIncrement());
+        }
+    }
+
+    /**
+     * Carga todos los datagrams en memoria parseando rangos en paralelo
+     * El resultado conserva el orden del archivo (los rangos se concatenan en orden)
+     */
+    public static List<DatagramProcessor.Datagram> leerCompletoParalelo(String rutaArchivo, int numRangos,
+                                                                      DatagramFilter filtro,
+                                                                      ParseCounters contadores) throws IOException {
+        try (MappedDatagramReader lector = new MappedDatagramReader(rutaArchivo, filtro, contadores)) {
+            long[] limites = lector.dividirEnRangos(numRangos);
+            List<List<DatagramProcessor.Datagram>> partes = lector.ejecutarPorRango(limites, (desde, hasta) -> {
+                List<DatagramProcessor.Datagram> parte = new ArrayList<>();
+                lector.recorrer(desde, hasta, parte::add);
+                return parte;
+            });
+
+            int total = 0;
+            for (List<DatagramProcessor.Datagram> parte : partes) {
+                total += parte.size();
+            }
+            List<DatagramProcessor.Datagram> datagrams = new ArrayList<>(total);
+            for (List<DatagramProcessor.Datagram> parte : partes) {
+                datagrams.addAll(parte);
+            }
+            return datagrams;
+        }
+    }
+
+    /**
+     * Tarea a ejecutar sobre un rango [desde, hasta) del archivo
+     */
+    private interface TareaRango<T> {
+        T ejecutar(long desde, long hasta) throws IOException;
+    }
+
+    /**
+     * Ejecuta una tarea por rango, cada una en su propio hilo, y retorna los resultados en orden
+     */
+    private <T> List<T> ejecutarPorRango(long[] limites, TareaRango<T> tarea) throws IOException {
+        int numRangos = limites.length - 1;
+        ExecutorService pool = Executors.newFixedThreadPool(numRangos, r -> {
+            Thread hilo = new Thread(r, "datagram-reader");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        try {
+            List<Future<T>> futuros = new ArrayList<>(numRangos);
+            for (int r = 0; r < numRangos; r++) {
+                final long desde = limites[r];
+                final long hasta = limites[r + 1];
+                futuros.add(pool.submit(() -> tarea.ejecutar(desde, hasta)));
+            }
+
+            List<T> resultados = new ArrayList<>(numRangos);
+            for (Future<T> futuro : futuros) {
+                resultados.add(futuro.get());
+            }
+            return resultados;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Lectura paralela interrumpida: " + rutaArchivo, e);
+        } catch (ExecutionException e) {
+            Throwable causa = e.getCause();
+            if (causa instanceof IOException) {
+                throw (IOException) causa;
+            }
+            if (causa instanceof RuntimeException) {
+                throw (RuntimeException) causa;
+            }
+            throw new IOException("Error leyendo " + rutaArchivo + ": " + causa.getMessage(), causa);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Divide la zona de datos en rangos cuyos límites caen al inicio de una línea
+     * 
+     * @param numRangos Número de rangos deseado (<= 0 = núcleos disponibles)
+     * @return Límites de los rangos: rango r = [limites[r], limites[r + 1])
+     */
+    long[] dividirEnRangos(int numRangos) throws IOException {
+        if (numRangos <= 0) {
+            numRangos = Runtime.getRuntime().availableProcessors();
+        }
+        long datos = tamano - inicioDatos;
+        numRangos = (int) Math.max(1, Math.min(numRangos, datos / RANGO_MINIMO));
+
+        long[] limites = new long[numRangos + 1];
+        limites[0] = inicioDatos;
+        for (int r = 1; r < numRangos; r++) {
+            long corte = Math.max(limites[r - 1], inicioDatos + datos * r / numRangos);
+            limites[r] = siguienteInicioLinea(corte);
+        }
+        limites[numRangos] = tamano;
+        return limites;
+    }
+
+    /**
+     * Retorna la posición del primer inicio de línea en o después de posicion
+     * (posicion - 1 debe ser un salto de línea; si no, se avanza hasta el siguiente)
+     */
+    private long siguienteInicioLinea(long posicion) throws IOException {
+        if (posicion <= inicioDatos) {
+            return inicioDatos;
+        }
+        long actual = posicion - 1;
+        while (actual < tamano) {
+            long longitud = Math.min(64 * 1024, tamano - actual);
+            MappedByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, actual, longitud);
+            int fin = buscarFinLinea(buffer, 0, (int) longitud);
+            if (fin < longitud) {
+                return actual + fin + 1;
+            }
+            actual += longitud;
+        }
+        return tamano;
+    }
+
+    /**
+     * Número de hilos de lectura configurado (datagram.reader.hilos; <= 0 = núcleos disponibles)
+     */
+    public static int hilosConfigurados() {
+        return Integer.getInteger("datagram.reader.hilos", 1);
+    }
+
+    /**
+     * Carga todos los datagrams del archivo mapeado en memoria
+     */
+    public static List<DatagramProcessor.Datagram> leerCompleto(String rutaArchivo, DatagramFilter filtro,
+                                                              ParseCounters contadores) throws IOException {
+        List<DatagramProcessor.Datagram> datagrams = new ArrayList<>();
+        try (MappedDatagramReader lector = new MappedDatagramReader(rutaArchivo, filtro, contadores)) {
+            lector.recorrer(lector.inicioDatos, lector.tamano, datagrams::add);
+        }
+        return datagrams;
+    }
+
+    /**
+     * Recorre las líneas completas que empiezan en [desde, hasta) y entrega cada datagram válido
+     * El archivo se mapea por ventanas; una línea partida entre ventanas se vuelve a mapear entera
+     * Los resultados de cada fila se cuentan en una instancia local que se combina al terminar
+     */
+    public void recorrer(long desde, long hasta, DatagramSink sink) throws IOException {
+        ParseCounters locales = new ParseCounters();
+        try {
+            recorrer(desde, hasta, sink, locales);
+        } finally {
+            contadores.combinar(locales);
+        }
+    }
+
+    private void recorrer(long desde, long hasta, DatagramSink sink, ParseCounters locales) throws IOException {
+        CacheSimbolos cache = new CacheSimbolos();
+        TimestampParser parserTimestamp = new TimestampParser(formatoTimestamp, zona);
+        int[] inicios = new int[plan.maxColumna + 1];
+        int[] fines = new int[plan.maxColumna + 1];
+        FilaParseada fila = new FilaParseada();
+
+        long posicion = desde;
+        while (posicion < hasta) {
+            long longitud = Math.min(VENTANA_MAPEO, tamano - posicion);
+            MappedByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, posicion, longitud);
+            int limite = (int) longitud;
+            boolean ultimaVentana = posicion + longitud >= tamano;
+
+            int i = 0;
+            while (i < limite && posicion + i < hasta) {
+                int fin = buscarFinLinea(buffer, i, limite);
+                if (fin == limite && !ultimaVentana) {
+                    // Línea incompleta: volver a mapear desde su inicio
+                    if (i == 0) {
+                        throw new IOException("Línea de más de " + VENTANA_MAPEO +
+                                            " bytes en " + rutaArchivo + " (offset " + posicion + ")");
+                    }
+                    break;
+                }
+
+                int estado = parsearLinea(buffer, i, fin, inicios, fines, cache, parserTimestamp, fila);
+                locales.registrar(estado);
+                if (estado == ParseCounters.ACEPTADA) {
+                    sink.aceptar(fila.crearDatagram());
+                }
+                i = fin + 1;
+            }
+            posicion += i;
+        }
+    }
+
+    /**
+     * Vuelve a leer el tamaño del archivo (para archivos que siguen creciendo)
+     * No es thread-safe respecto a recorridos en curso
+     */
+    public long actualizarTamano() throws IOException {
+        tamano = canal.size();
+        return tamano;
+    }
+
+    /**
+     * Recorre solo las líneas completas (terminadas en salto de línea) desde la posición dada
+     * Una última línea sin salto de línea puede estar a medio escribir y se deja para después
+     *
+     * @return Posición siguiente a la última línea completa procesada
+     */
+    public long recorrerLineasCompletas(long desde, DatagramSink sink) throws IOException {
+        desde = Math.max(desde, inicioDatos);
+        long hasta = finUltimaLineaCompleta(desde);
+        if (hasta > desde) {
+            recorrer(desde, hasta, sink);
+        }
+        return hasta;
+    }
+
+    /**
+     * Posición siguiente al último salto de línea del archivo (o desde si no hay ninguno después)
+     */
+    private long finUltimaLineaCompleta(long desde) throws IOException {
+        long fin = tamano;
+        while (fin > desde) {
+            long inicio = Math.max(desde, fin - 64 * 1024);
+            MappedByteBuffer buffer = canal.map(FileChannel.MapMode.READ_ONLY, inicio, fin - inicio);
+            for (int i = (int) (fin - inicio) - 1; i >= 0; i--) {
+                if (buffer.get(i) == FIN_LINEA) {
+                    return inicio + i + 1;
+                }
+            }
+            fin = inicio;
+        }
+        return desde;
+    }
+
+    /**
+     * Detecta el formato de timestamp a partir de la primera línea de datos no vacía
+     */
+    private TimestampParser.Formato detectarFormatoTimestamp(MappedByteBuffer buffer) {
+        int[] inicios = new int[plan.maxColumna + 1];
+        int[] fines = new int[plan.maxColumna + 1];
+        int limite = buffer.limit();
+
+        int i = (int) Math.min(inicioDatos, limite);
+        while (i < limite) {
+            int fin = buscarFinLinea(buffer, i, limite);
+            int numColumnas = separarCampos(buffer, i, fin, inicios, fines);
+            if (plan.timestamp < numColumnas) {
+                int i0 = recortarInicio(buffer, inicios[plan.timestamp], fines[plan.timestamp]);
+                int i1 = recortarFin(buffer, i0, fines[plan.timestamp]);
+                if (i0 < i1) {
+                    return TimestampParser.detectarFormato(buffer, i0, i1);
+                }
+            }
+            i = fin + 1;
+        }
+        return TimestampParser.Formato.DESCONOCIDO;
+    }
+
+    /**
+     * Separa las columnas de la línea [inicio, fin) hasta la última del plan
+     * Retorna el número de columnas encontradas (inicio/fin de cada una en inicios/fines)
+     */
+    private int separarCampos(MappedByteBuffer buffer, int inicio, int fin, int[] inicios, int[] fines) {
+        if (fin > inicio && buffer.get(fin - 1) == RETORNO) {
+            fin--;
+        }
+
+        int columna = 0;
+        int inicioCampo = inicio;
+        boolean dentroComillas = false;
+        for (int i = inicio; i < fin && columna <= plan.maxColumna; i++) {
+            byte b = buffer.get(i);
+            if (b == COMILLA) {
+                dentroComillas = !dentroComillas;
+            } else if (b == COMA && !dentroComillas) {
+                inicios[columna] = inicioCampo;
+                fines[columna] = i;
+                columna++;
+                inicioCampo = i + 1;
+            }
+        }
+        if (columna <= plan.maxColumna) {
+            inicios[columna] = inicioCampo;
+            fines[columna] = fin;
+            columna++;
+        }
+        return columna;
+    }
+
+    /**
+     * Parsea una línea [inicio, fin) del buffer sin lanzar excepciones
+     * Retorna ParseCounters.ACEPTADA (valores en fila), BLANCA, FILTRADA o el motivo de rechazo
+     */
+    private int parsearLinea(MappedByteBuffer buffer, int inicio, int fin, int[] inicios, int[] fines,
+                             CacheSimbolos cache, TimestampParser parserTimestamp, FilaParseada fila) {
+        int numColumnas = separarCampos(buffer, inicio, fin, inicios, fines);
+
+        // Línea en blanco
+        if (numColumnas == 1 && esBlanco(buffer, inicios[0], fines[0])) {
+            return ParseCounters.BLANCA;
+        }
+
+        if (plan.busId >= numColumnas || plan.routeId >= numColumnas ||
+            plan.stopId >= numColumnas || plan.timestamp >= numColumnas ||
+            esVacio(buffer, inicios[plan.busId], fines[plan.busId]) ||
+            esVacio(buffer, inicios[plan.routeId], fines[plan.routeId]) ||
+            esVacio(buffer, inicios[plan.stopId], fines[plan.stopId])) {
+            return ParseCounters.COLUMNA_FALTANTE;
+        }
+
+        // Filtros del job sobre los bytes, del más barato al más caro, antes de crear el Datagram
+        // La ruta se busca sin registrarla: una ruta ausente de la SymbolTable no es del filtro
+        int routeIndex = -1;
+        if (filtro.filtraRutas()) {
+            routeIndex = cache.buscar(buffer, inicios[plan.routeId], fines[plan.routeId]);
+            if (!filtro.aceptaRuta(routeIndex)) {
+                return ParseCounters.FILTRADA;
+            }
+        }
+        if (filtro.filtraEventTypes()) {
+            long eventType = plan.eventType >= 0 && plan.eventType < numColumnas ?
+                parsearLong(buffer, inicios[plan.eventType], fines[plan.eventType], Long.MIN_VALUE) : Long.MIN_VALUE;
+            if (!filtro.aceptaEventType(eventType)) {
+                return ParseCounters.FILTRADA;
+            }
+        }
+
+        int inicioTs = recortarInicio(buffer, inicios[plan.timestamp], fines[plan.timestamp]);
+        long timestamp = parserTimestamp.parsear(buffer, inicioTs,
+                                                 recortarFin(buffer, inicioTs, fines[plan.timestamp]));
+        if (timestamp <= 0) {
+            return ParseCounters.TIMESTAMP_INVALIDO;
+        }
+        if (!filtro.aceptaTimestamp(timestamp)) {
+            return ParseCounters.FILTRADA;
+        }
+
+        // Las coordenadas están en microgrados (ej: 34761183 = 34.761183)
+        // Una columna ausente o vacía vale 0 (sin coordenadas); un valor no numérico rechaza la fila
+        double latitude = parsearCoordenada(buffer, plan.latitude, numColumnas, inicios, fines);
+        double longitude = parsearCoordenada(buffer, plan.longitude, numColumnas, inicios, fines);
+
+        // Convertir de microgrados a grados decimales
+        if (Math.abs(latitude) > 90) {
+            latitude = latitude / 1000000.0;
+        }
+        if (Math.abs(longitude) > 180) {
+            longitude = longitude / 1000000.0;
+        }
+        if (Double.isNaN(latitude) || Double.isNaN(longitude) ||
+            Math.abs(latitude) > 90 || Math.abs(longitude) > 180) {
+            return ParseCounters.COORDENADA_INVALIDA;
+        }
+        if (!filtro.aceptaPosicion(latitude, longitude)) {
+            return ParseCounters.FILTRADA;
+        }
+
+        // Usar tripId como secuencia: ausente o vacía vale 0; un valor no numérico o fuera del rango
+        // de int rechaza la fila (antes se truncaba con el cast)
+        long sequence = 0;
+        if (plan.sequence >= 0 && plan.sequence < numColumnas &&
+            !esVacio(buffer, inicios[plan.sequence], fines[plan.sequence])) {
+            sequence = parsearLong(buffer, inicios[plan.sequence], fines[plan.sequence], Long.MIN_VALUE);
+            if (sequence < Integer.MIN_VALUE || sequence > Integer.MAX_VALUE) {
+                return ParseCounters.SECUENCIA_INVALIDA;
+            }
+        }
+        fila.sequence = (int) sequence;
+
+        // Fila aceptada: recién ahora se registran sus identificadores (ruta, bus y parada, en ese
+        // orden: los índices deciden el orden de ExternalDatagramSorter y con él los cortes de lote)
+        fila.routeIndex = routeIndex >= 0 ? routeIndex
+                                          : cache.indice(buffer, inicios[plan.routeId], fines[plan.routeId]);
+        fila.busIndex = cache.indice(buffer, inicios[plan.busId], fines[plan.busId]);
+        fila.stopIndex = cache.indice(buffer, inicios[plan.stopId], fines[plan.stopId]);
+        fila.latitude = latitude;
+        fila.longitude = longitude;
+        fila.timestamp = timestamp;
+        return ParseCounters.ACEPTADA;
+    }
+
+    /**
+     * Coordenada de la columna dada: 0 si la columna no existe o está vacía, NaN si no es numérica
+     */
+    private static double parsearCoordenada(MappedByteBuffer buffer, int columna, int numColumnas,
+                                            int[] inicios, int[] fines) {
+        if (columna < 0 || columna >= numColumnas || esVacio(buffer, inicios[columna], fines[columna])) {
+            return 0.0;
+        }
+        return parsearDouble(buffer, inicios[columna], fines[columna], Double.NaN);
+    }
+
+    /**
+     * Parsea un double directamente desde los bytes (signo, dígitos, punto decimal y exponente)
+     * Sin excepciones: un valor no numérico retorna valorDefecto
+     */
+    static double parsearDouble(ByteBuffer buffer, int inicio, int fin, double valorDefecto) {
+        int i = recortarInicio(buffer, inicio, fin);
+        int limite = recortarFin(buffer, i, fin);
+        if (i >= limite) {
+            return valorDefecto;
+        }
+
+        boolean negativo = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negativo = b == '-';
+            i++;
+        }
+
+        // Hasta 18 dígitos significativos en la mantisa; los demás solo ajustan el exponente
+        long mantisa = 0;
+        int digitos = 0;
+        int digitosLeidos = 0;
+        int exponente = 0;
+        boolean hayPunto = false;
+        for (; i < limite; i++) {
+            b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                digitosLeidos++;
+                if (digitos < 18) {
+                    mantisa = mantisa * 10 + (b - '0');
+                    if (mantisa > 0) {
+                        digitos++;
+                    }
+                    if (hayPunto) {
+                        exponente--;
+                    }
+                } else if (!hayPunto) {
+                    exponente++;
+                }
+            } else if (b == '.' && !hayPunto) {
+                hayPunto = true;
+            } else {
+                break;
+            }
+        }
+        if (digitosLeidos == 0) {
+            return valorDefecto;
+        }
+
+        if (i < limite && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+            i++;
+            boolean exponenteNegativo = false;
+            if (i < limite && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                exponenteNegativo = buffer.get(i) == '-';
+                i++;
+            }
+            int inicioExponente = i;
+            int valorExponente = 0;
+            for (; i < limite && buffer.get(i) >= '0' && buffer.get(i) <= '9'; i++) {
+                if (valorExponente < 10000) {
+                    valorExponente = valorExponente * 10 + (buffer.get(i) - '0');
+                }
+            }
+            if (i == inicioExponente) {
+                return valorDefecto;
+            }
+            exponente += exponenteNegativo ? -valorExponente : valorExponente;
+        }
+        if (i < limite) {
+            return valorDefecto;
+        }
+
+        // mantisa < 2^63 y 10^k exacto: con pocos decimales la división queda correctamente redondeada
+        double valor;
+        if (exponente == 0) {
+            valor = mantisa;
+        } else if (exponente < 0 && -exponente < POTENCIAS_10.length) {
+            valor = mantisa / POTENCIAS_10[-exponente];
+        } else if (exponente > 0 && exponente < POTENCIAS_10.length) {
+            valor = mantisa * POTENCIAS_10[exponente];
+        } else {
+            valor = mantisa * Math.pow(10, exponente);
+        }
+        return negativo ? -valor : valor;
+    }
+
+    /**
+     * Parsea un entero directamente desde los bytes
+     */
+    static long parsearLong(ByteBuffer buffer, int inicio, int fin, long valorDefecto) {
+        int i = recortarInicio(buffer, inicio, fin);
+        int limite = recortarFin(buffer, i, fin);
+        int inicioValor = i;
+        if (i >= limite) {
+            return valorDefecto;
+        }
+
+        boolean negativo = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negativo = b == '-';
+            i++;
+        }
+        if (i >= limite || limite - i > 18) {
+            return valorDefecto;
+        }
+
+        long valor = 0;
+        for (; i < limite; i++) {
+            b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return valorDefecto;
+            }
+            valor = valor * 10 + (b - '0');
+        }
+        return negativo ? -valor : valor;
+    }
+
+    private static final double[] POTENCIAS_10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+        1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    /**
+     * Recorta espacios y comillas al inicio de un campo
+     */
+    private static int recortarInicio(ByteBuffer buffer, int inicio, int fin) {
+        while (inicio < fin && esRecortable(buffer.get(inicio))) {
+            inicio++;
+        }
+        return inicio;
+    }
+
+    /**
+     * Recorta espacios y comillas al final de un campo
+     */
+    private static int recortarFin(ByteBuffer buffer, int inicio, int fin) {
+        while (fin > inicio && esRecortable(buffer.get(fin - 1))) {
+            fin--;
+        }
+        return fin;
+    }
+
+    private static boolean esRecortable(byte b) {
+        return b == COMILLA || (b >= 0 && b <= ' ');
+    }
+
+    /**
+     * Indica si el campo [inicio, fin) no tiene contenido fuera de espacios y comillas
+     */
+    private static boolean esVacio(MappedByteBuffer buffer, int inicio, int fin) {
+        return recortarInicio(buffer, inicio, fin) >= fin;
+    }
+
+    private static boolean esBlanco(MappedByteBuffer buffer, int inicio, int fin) {
+        for (int i = inicio; i < fin; i++) {
+            byte b = buffer.get(i);
+            if (b < 0 || b > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Busca el siguiente salto de línea a partir de inicio; retorna limite si no hay
+     */
+    private static int buscarFinLinea(MappedByteBuffer buffer, int inicio, int limite) {
+        for (int i = inicio; i < limite; i++) {
+            if (buffer.get(i) == FIN_LINEA) {
+                return i;
+            }
+        }
+        return limite;
+    }
+
+    public long getInicioDatos() { return inicioDatos; }
+    public ParseCounters getContadores() { return contadores; }
+    public long getTamano() { return tamano; }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    /**
+     * Valores de la última fila aceptada (reutilizado por cada rango: sin asignaciones por fila rechazada)
+     */
+    private static class FilaParseada {
+        int busIndex;
+        int routeIndex;
+        int stopIndex;
+        double latitude;
+        double longitude;
+        long timestamp;
+        int sequence;
+
+        DatagramProcessor.Datagram crearDatagram() {
+            return new DatagramProcessor.Datagram(busIndex, routeIndex, stopIndex,
+                                                  latitude, longitude, timestamp, sequence);
+        }
+    }
+
+    /**
+     * Índices de las columnas usadas (-1 = no presente)
+     */
+    static class PlanColumnas {
+        final int busId;
+        final int routeId;
+        final int stopId;
+        final int latitude;
+        final int longitude;
+        final int timestamp;
+        final int sequence;
+        final int eventType;
+        final int maxColumna;
+
+        PlanColumnas(Map<String, Integer> indices) {
+            this.busId = indices.getOrDefault("bus_id", Integer.MAX_VALUE);
+            this.routeId = indices.getOrDefault("route_id", Integer.MAX_VALUE);
+            this.stopId = indices.getOrDefault("stop_id", Integer.MAX_VALUE);
+            this.timestamp = indices.getOrDefault("timestamp", Integer.MAX_VALUE);
+            this.latitude = indices.getOrDefault("latitude", -1);
+            this.longitude = indices.getOrDefault("longitude", -1);
+            this.sequence = indices.getOrDefault("sequence", -1);
+            this.eventType = indices.getOrDefault("event_type", -1);
+
+            int max = 0;
+            for (int indice : indices.values()) {
+                max = Math.max(max, indice);
+            }
+            this.maxColumna = max;
+        }
+    }
+
+    /**
+     * Caché de símbolos por contenido de bytes (busId, lineId, stopId se repiten mucho)
+     * Resuelve el índice en la SymbolTable global sin crear un String cuando el valor ya fue visto
+     * Una instancia por hilo de lectura
+     */
+    private static class CacheSimbolos {
+        private static final int TAMANO = 4096;
+        private final SymbolTable tabla = SymbolTable.global();
+        private final int[] indices = new int[TAMANO];
+
+        CacheSimbolos() {
+            Arrays.fill(indices, -1);
+        }
+
+        /**
+         * Índice del valor, registrándolo en la SymbolTable si no existe
+         */
+        int indice(ByteBuffer buffer, int inicio, int fin) {
+            return resolver(buffer, inicio, fin, true);
+        }
+
+        /**
+         * Índice del valor o -1 si no está en la SymbolTable (no lo registra)
+         */
+        int buscar(ByteBuffer buffer, int inicio, int fin) {
+            return resolver(buffer, inicio, fin, false);
+        }
+
+        private int resolver(ByteBuffer buffer, int inicio, int fin, boolean registrar) {
+            inicio = recortarInicio(buffer, inicio, fin);
+            fin = recortarFin(buffer, inicio, fin);
+
+            int hash = 0;
+            boolean ascii = true;
+            for (int i = inicio; i < fin; i++) {
+                byte b = buffer.get(i);
+                ascii &= b >= 0;
+                hash = 31 * hash + b;
+            }
+            if (!ascii) {
+                byte[] bytes = new byte[fin - inicio];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = buffer.get(inicio + i);
+                }
+                String texto = new String(bytes, StandardCharsets.UTF_8);
+                return registrar ? tabla.intern(texto) : tabla.buscar(texto);
+            }
+
+            int slot = (hash ^ (hash >>> 16)) & (TAMANO - 1);
+            int existente = indices[slot];
+            if (existente >= 0 && iguales(tabla.nombre(existente), buffer, inicio, fin)) {
+                return existente;
+            }
+
+            char[] chars = new char[fin - inicio];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) buffer.get(inicio + i);
+            }
+            String texto = new String(chars);
+            int nuevo = registrar ? tabla.intern(texto) : tabla.buscar(texto);
+            if (nuevo >= 0) {
+                indices[slot] = nuevo;
+            }
+            return nuevo;
+        }
+
+        private static boolean iguales(String texto, ByteBuffer buffer, int inicio, int fin) {
+            if (texto.length() != fin - inicio) {
+                return false;
+            }
+            for (int i = 0; i < texto.length(); i++) {
+                if (texto.charAt(i) != buffer.get(inicio + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
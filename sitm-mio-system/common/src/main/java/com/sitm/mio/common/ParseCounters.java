@@ -0,0 +1,97 @@
+package com.sitm.mio.common;
+
+/**
+ * Contadores de filas rechazadas al parsear datagrams, por motivo
+ * OPTIMIZACIÓN: El parseo valida cada campo y retorna un código de estado en lugar de lanzar
+ * y capturar excepciones; un archivo con muchas filas sucias no paga el costo de crear
+ * excepciones (stack traces) por cada una, y el costo queda visible en el resultado del job
+ *
+ * Cada hilo de lectura usa su propia instancia y la combina al terminar su rango
+ */
+public class ParseCounters {
+
+    // Códigos de estado de una fila
+    public static final int ACEPTADA = -1;
+    public static final int BLANCA = -2;
+    public static final int FILTRADA = -3;
+
+    // Motivos de rechazo (índices de los contadores)
+    public static final int COLUMNA_FALTANTE = 0;
+    public static final int COORDENADA_INVALIDA = 1;
+    public static final int TIMESTAMP_INVALIDO = 2;
+    public static final int SECUENCIA_INVALIDA = 3;
+
+    private static final String[] NOMBRES = {
+        "columna faltante", "coordenada inválida", "timestamp inválido", "secuencia inválida"
+    };
+
+    private final long[] rechazos = new long[NOMBRES.length];
+    private long aceptadas;
+    private long filtradas;
+
+    /**
+     * Registra el resultado de una fila (ACEPTADA, BLANCA, FILTRADA o un motivo de rechazo)
+     * Sin sincronización: solo lo llama el hilo dueño de la instancia
+     */
+    public void registrar(int codigo) {
+        if (codigo >= 0) {
+            rechazos[codigo]++;
+        } else if (codigo == ACEPTADA) {
+            aceptadas++;
+        } else if (codigo == FILTRADA) {
+            filtradas++;
+        }
+    }
+
+    public synchronized void registrarRechazos(int motivo, long cantidad) {
+        rechazos[motivo] += cantidad;
+    }
+
+    /**
+     * Suma los contadores de otra instancia (ej: la de un rango leído en otro hilo)
+     */
+    public synchronized void combinar(ParseCounters otro) {
+        synchronized (otro) {
+            for (int m = 0; m < rechazos.length; m++) {
+                rechazos[m] += otro.rechazos[m];
+            }
+            aceptadas += otro.aceptadas;
+            filtradas += otro.filtradas;
+        }
+    }
+
+    public synchronized long getRechazos(int motivo) { return rechazos[motivo]; }
+    public synchronized long getColumnaFaltante() { return rechazos[COLUMNA_FALTANTE]; }
+    public synchronized long getCoordenadaInvalida() { return rechazos[COORDENADA_INVALIDA]; }
+    public synchronized long getTimestampInvalido() { return rechazos[TIMESTAMP_INVALIDO]; }
+    public synchronized long getSecuenciaInvalida() { return rechazos[SECUENCIA_INVALIDA]; }
+    public synchronized long getAceptadas() { return aceptadas; }
+    public synchronized long getFiltradas() { return filtradas; }
+
+    public synchronized long totalRechazadas() {
+        long total = 0;
+        for (long r : rechazos) {
+            total += r;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(aceptadas).append(" aceptadas, ").append(filtradas).append(" filtradas, ")
+          .append(totalRechazadas()).append(" rechazadas");
+        if (totalRechazadas() > 0) {
+            sb.append(" (");
+            boolean primero = true;
+            for (int m = 0; m < rechazos.length; m++) {
+                if (rechazos[m] > 0) {
+                    sb.append(primero ? "" : ", ").append(NOMBRES[m]).append(": ").append(rechazos[m]);
+                    primero = false;
+                }
+            }
+            sb.append(")");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package com.sitm.mio.common;
+
+import java.util.Arrays;
+
+/**
+ * Histograma con buckets logarítmicos para estimar cuantiles de tiempos de viaje (p50, p85, p95)
+ * OPTIMIZACIÓN: Cada muestra solo incrementa el contador de su bucket; dos sketches se combinan
+ * sumando contadores, por lo que los parciales de lotes y Workers se unen de forma exacta
+ *
+ * El bucket i cubre (gamma^(i-1), gamma^i] con gamma = (1 + a) / (1 - a): el cuantil estimado
+ * tiene error relativo de a como máximo (datagram.sketch.precision, por defecto 0.01 = 1%)
+ * Memoria acotada: con más de MAX_BUCKETS buckets se unen los más bajos (la cola alta, la que
+ * interesa para p85/p95, conserva la precisión)
+ */
+public class QuantileSketch {
+
+    public static final int MAX_BUCKETS = 2048;
+
+    private static final double PRECISION_POR_DEFECTO = Double.parseDouble(
+        System.getProperty("datagram.sketch.precision", "0.01"));
+
+    private final double gamma;
+    private final double logGamma;
+    private int indiceMinimo;     // Índice del bucket en conteos[0]
+    private int[] conteos;        // Buckets contiguos desde indiceMinimo
+    private long ceros;           // Muestras <= 0
+    private long muestras;
+
+    public QuantileSketch() {
+        this((1 + PRECISION_POR_DEFECTO) / (1 - PRECISION_POR_DEFECTO));
+    }
+
+    public QuantileSketch(double gamma) {
+        this.gamma = gamma;
+        this.logGamma = Math.log(gamma);
+        this.conteos = new int[0];
+    }
+
+    /**
+     * Reconstruye un sketch a partir de sus campos (ej: recibido por Ice)
+     */
+    public QuantileSketch(double gamma, int indiceMinimo, int[] conteos, long ceros) {
+        this(gamma);
+        this.indiceMinimo = indiceMinimo;
+        this.conteos = conteos.clone();
+        this.ceros = ceros;
+        this.muestras = ceros;
+        for (int c : conteos) {
+            muestras += c;
+        }
+    }
+
+    public void agregar(double valor) {
+        muestras++;
+        if (valor <= 0 || Double.isNaN(valor)) {
+            ceros++;
+            return;
+        }
+        int indice = (int) Math.ceil(Math.log(valor) / logGamma);
+        asegurarRango(indice, indice);
+        conteos[posicion(indice)]++;
+    }
+
+    /**
+     * Suma los contadores de otro sketch a este (deben tener el mismo gamma)
+     */
+    public QuantileSketch combinar(QuantileSketch otro) {
+        if (Double.compare(gamma, otro.gamma) != 0) {
+            throw new IllegalArgumentException("No se pueden combinar sketches con distinta precisión: " +
+                                               gamma + " y " + otro.gamma);
+        }
+        muestras += otro.muestras;
+        ceros += otro.ceros;
+        if (otro.conteos.length == 0) {
+            return this;
+        }
+        asegurarRango(otro.indiceMinimo, otro.indiceMinimo + otro.conteos.length - 1);
+        for (int i = 0; i < otro.conteos.length; i++) {
+            conteos[posicion(otro.indiceMinimo + i)] += otro.conteos[i];
+        }
+        return this;
+    }
+
+    public QuantileSketch copia() {
+        return new QuantileSketch(gamma, indiceMinimo, conteos, ceros);
+    }
+
+    /**
+     * Cuantil estimado (q entre 0 y 1); 0 si no hay muestras
+     */
+    public double cuantil(double q) {
+        if (muestras == 0) {
+            return 0.0;
+        }
+        int bucket = bucketDelRango((long) Math.floor(Math.max(0.0, Math.min(1.0, q)) * (muestras - 1)));
+        return bucket < 0 ? 0.0 : valor(bucket);
+    }
+
+    /**
+     * Desviación absoluta mediana (MAD) estimada: mediana de |x - p50|
+     * Recorre los buckets desde el de la mediana hacia afuera, de la desviación menor a la mayor
+     */
+    public double desviacionMediana() {
+        if (muestras == 0) {
+            return 0.0;
+        }
+        long rango = (muestras - 1) / 2;
+        int izquierda = bucketDelRango(rango);
+        double mediana = izquierda < 0 ? 0.0 : valor(izquierda);
+        int derecha = izquierda + 1;
+        boolean cerosPendientes = ceros > 0;
+        long acumulado = 0;
+        double desviacion = 0.0;
+        while (acumulado <= rango) {
+            double dIzquierda = izquierda >= 0 ? mediana - valor(izquierda) :
+                                cerosPendientes ? mediana : Double.POSITIVE_INFINITY;
+            double dDerecha = derecha < conteos.length ? valor(derecha) - mediana : Double.POSITIVE_INFINITY;
+            if (dIzquierda == Double.POSITIVE_INFINITY && dDerecha == Double.POSITIVE_INFINITY) {
+                break;
+            }
+            if (dIzquierda <= dDerecha) {
+                if (izquierda >= 0) {
+                    acumulado += conteos[izquierda--];
+                } else {
+                    acumulado += ceros;
+                    cerosPendientes = false;
+                }
+                desviacion = dIzquierda;
+            } else {
+                acumulado += conteos[derecha++];
+                desviacion = dDerecha;
+            }
+        }
+        return desviacion;
+    }
+
+    /**
+     * Posición del bucket que contiene la muestra de rango dado (-1 si cae en los ceros)
+     */
+    private int bucketDelRango(long rango) {
+        if (rango < ceros) {
+            return -1;
+        }
+        long acumulado = ceros;
+        for (int i = 0; i < conteos.length; i++) {
+            acumulado += conteos[i];
+            if (acumulado > rango) {
+                return i;
+            }
+        }
+        return conteos.length - 1;
+    }
+
+    /**
+     * Punto medio del bucket en escala relativa: error <= (gamma - 1) / (gamma + 1)
+     */
+    private double valor(int posicion) {
+        return 2 * Math.pow(gamma, indiceMinimo + posicion) / (gamma + 1);
+    }
+
+    /**
+     * Amplía los buckets para cubrir [desde, hasta]; si se supera MAX_BUCKETS los más bajos
+     * se acumulan en el primer bucket que se conserva
+     */
+    private void asegurarRango(int desde, int hasta) {
+        if (conteos.length == 0) {
+            indiceMinimo = Math.max(desde, hasta - MAX_BUCKETS + 1);
+            conteos = new int[Math.min(MAX_BUCKETS, hasta - desde + 1)];
+            return;
+        }
+        int maximoActual = indiceMinimo + conteos.length - 1;
+        int nuevoMinimo = Math.min(indiceMinimo, desde);
+        int nuevoMaximo = Math.max(maximoActual, hasta);
+        if (nuevoMinimo == indiceMinimo && nuevoMaximo == maximoActual) {
+            return;
+        }
+        nuevoMinimo = Math.max(nuevoMinimo, nuevoMaximo - MAX_BUCKETS + 1);
+
+        int[] nuevos = new int[nuevoMaximo - nuevoMinimo + 1];
+        for (int i = 0; i < conteos.length; i++) {
+            int indice = Math.max(indiceMinimo + i, nuevoMinimo);
+            nuevos[indice - nuevoMinimo] += conteos[i];
+        }
+        indiceMinimo = nuevoMinimo;
+        conteos = nuevos;
+    }
+
+    /**
+     * Posición de un bucket en el arreglo (los índices colapsados caen en el primero)
+     */
+    private int posicion(int indice) {
+        return Math.max(indice, indiceMinimo) - indiceMinimo;
+    }
+
+    public double getGamma() { return gamma; }
+    public int getIndiceMinimo() { return indiceMinimo; }
+    public int[] getConteos() { return Arrays.copyOf(conteos, conteos.length); }
+    public long getCeros() { return ceros; }
+    public long getMuestras() { return muestras; }
+}
@@ -0,0 +1,84 @@
+package com.sitm.mio.common;
+
+import DatagramProcessing.ArcSlotProfile;
+
+import java.time.ZoneId;
+
+/**
+ * Adaptador entre SlottedArcProfile y el ArcSlotProfile de Ice (Worker, Master y cliente)
+ * Patrón: Adapter
+ */
+public class SlotProfileAdapter {
+
+    /**
+     * Convierte el perfil por franja a ArcSlotProfile de Ice (solo celdas con muestras)
+     * Cada arco viaja con ruta, origen y destino por separado
+     *
+     * @param perfil Perfil a convertir; null produce un ArcSlotProfile vacío (minutosSlot 0)
+     */
+    public static ArcSlotProfile aIce(SlottedArcProfile perfil) {
+        if (perfil == null) {
+            return new ArcSlotProfile(0, 0, false, "", new String[0], new String[0], new String[0],
+                                      new double[0], new int[0], new long[0], new double[0]);
+        }
+        int numArcos = perfil.getNumArcos();
+        int numSlots = perfil.getNumSlots();
+        String[] routeIds = new String[numArcos];
+        String[] origenes = new String[numArcos];
+        String[] destinos = new String[numArcos];
+        double[] distancias = new double[numArcos];
+        int celdasConMuestras = 0;
+        for (int a = 0; a < numArcos; a++) {
+            long clave = perfil.getClaveArco(a);
+            routeIds[a] = ArcKey.routeId(clave);
+            origenes[a] = ArcKey.origenId(clave);
+            destinos[a] = ArcKey.destinoId(clave);
+            distancias[a] = perfil.getDistancia(a);
+            for (int f = 0; f < numSlots; f++) {
+                if (perfil.getMuestras(a, f) > 0) {
+                    celdasConMuestras++;
+                }
+            }
+        }
+        int[] celdas = new int[celdasConMuestras];
+        long[] muestras = new long[celdasConMuestras];
+        double[] sumas = new double[celdasConMuestras];
+        int i = 0;
+        for (int a = 0; a < numArcos; a++) {
+            for (int f = 0; f < numSlots; f++) {
+                if (perfil.getMuestras(a, f) > 0) {
+                    celdas[i] = a * numSlots + f;
+                    muestras[i] = perfil.getMuestras(a, f);
+                    sumas[i++] = perfil.getSumaTiempos(a, f);
+                }
+            }
+        }
+        return new ArcSlotProfile(perfil.getMinutosSlot(), perfil.getSlotsPorDia(), perfil.isSepararFinDeSemana(),
+                                  perfil.getZona().getId(), routeIds, origenes, destinos, distancias,
+                                  celdas, muestras, sumas);
+    }
+
+    /**
+     * Convierte un ArcSlotProfile de Ice al perfil común
+     *
+     * @return null si no trae perfil (minutosSlot 0)
+     */
+    public static SlottedArcProfile desdeIce(ArcSlotProfile perfil) {
+        if (perfil == null || perfil.minutosSlot <= 0) {
+            return null;
+        }
+        SlottedArcProfile resultado = new SlottedArcProfile(perfil.minutosSlot, perfil.finDeSemana,
+                                                            ZoneId.of(perfil.zona));
+        long[] claves = new long[perfil.routeIds.length];
+        for (int a = 0; a < claves.length; a++) {
+            claves[a] = ArcKey.de(perfil.routeIds[a], perfil.origenes[a], perfil.destinos[a]);
+        }
+        int numSlots = resultado.getNumSlots();
+        for (int i = 0; i < perfil.celdas.length; i++) {
+            int arco = perfil.celdas[i] / numSlots;
+            resultado.agregarCelda(claves[arco], perfil.distancias[arco], perfil.celdas[i] % numSlots,
+                                   perfil.muestras[i], perfil.sumaTiempos[i]);
+        }
+        return resultado;
+    }
+}
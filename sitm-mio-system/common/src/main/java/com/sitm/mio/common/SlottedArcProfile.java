@@ -0,0 +1,224 @@
+package com.sitm.mio.common;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Perfil de tiempos de viaje por arco y franja horaria (ej: 96 franjas de 15 minutos por tipo de día)
+ * OPTIMIZACIÓN: Muestras y sumas en arreglos primitivos densos [arco][franja] (aplanados en
+ * arco * numSlots + franja); se llena en la misma pasada del cálculo de arcos y se combina
+ * sumando celdas, así un análisis de hora pico o valle no requiere reprocesar el archivo
+ *
+ * Las filas se indexan por ArcKey (ruta, origen, destino) como los resultados de arcos
+ *
+ * La franja se toma del timestamp del datagram de origen en la zona datagram.timezone
+ * Propiedades (del cliente en jobs distribuidos: viajan con el job en SlotProfileConfig):
+ * - datagram.perfil.activo: calcular el perfil en jobs distribuidos (por defecto false)
+ * - datagram.perfil.minutosSlot: minutos por franja (por defecto 15)
+ * - datagram.perfil.finDeSemana: separar días hábiles y fin de semana (por defecto true)
+ *
+ * No es thread-safe: un perfil por colector; el Master combina bajo su propio lock
+ */
+public class SlottedArcProfile {
+
+    private final int minutosSlot;
+    private final int slotsPorDia;
+    private final boolean separarFinDeSemana;
+    private final int numSlots;
+    private final ZoneId zona;
+
+    private final ArcKeyMap<Integer> indiceArcos = new ArcKeyMap<>();
+    private int numArcos;
+    private long[] claves;          // ArcKey, por arco
+    private double[] distancias;    // km, por arco
+    private long[] muestras;        // [arco * numSlots + franja]
+    private double[] sumaTiempos;   // minutos, [arco * numSlots + franja]
+
+    // Caché del día del último timestamp (los datagrams de un trayecto son del mismo día casi siempre)
+    private long inicioDia = Long.MAX_VALUE;
+    private long finDia = Long.MIN_VALUE;
+    private int baseDia;
+
+    public SlottedArcProfile() {
+        this(Integer.getInteger("datagram.perfil.minutosSlot", 15),
+             Boolean.parseBoolean(System.getProperty("datagram.perfil.finDeSemana", "true")),
+             TimestampParser.zonaConfigurada());
+    }
+
+    public SlottedArcProfile(int minutosSlot, boolean separarFinDeSemana, ZoneId zona) {
+        if (minutosSlot <= 0 || 1440 % minutosSlot != 0) {
+            throw new IllegalArgumentException("minutosSlot debe dividir el día: " + minutosSlot);
+        }
+        this.minutosSlot = minutosSlot;
+        this.slotsPorDia = 1440 / minutosSlot;
+        this.separarFinDeSemana = separarFinDeSemana;
+        this.numSlots = separarFinDeSemana ? slotsPorDia * 2 : slotsPorDia;
+        this.zona = zona;
+        this.claves = new long[16];
+        this.distancias = new double[16];
+        this.muestras = new long[16 * numSlots];
+        this.sumaTiempos = new double[16 * numSlots];
+    }
+
+    /**
+     * Fila del arco (la crea si no existe)
+     */
+    public int indiceArco(long claveArco, double distancia) {
+        Integer indice = indiceArcos.get(claveArco);
+        if (indice != null) {
+            return indice;
+        }
+        int nuevo = numArcos++;
+        if (nuevo == distancias.length) {
+            int capacidad = distancias.length * 2;
+            claves = Arrays.copyOf(claves, capacidad);
+            distancias = Arrays.copyOf(distancias, capacidad);
+            muestras = Arrays.copyOf(muestras, capacidad * numSlots);
+            sumaTiempos = Arrays.copyOf(sumaTiempos, capacidad * numSlots);
+        }
+        claves[nuevo] = claveArco;
+        distancias[nuevo] = distancia;
+        indiceArcos.put(claveArco, nuevo);
+        return nuevo;
+    }
+
+    /**
+     * Franja de un timestamp: minutos del día local / minutosSlot (+ slotsPorDia en fin de semana)
+     */
+    public int slot(long timestamp) {
+        if (timestamp < inicioDia || timestamp >= finDia) {
+            LocalDate fecha = Instant.ofEpochMilli(timestamp).atZone(zona).toLocalDate();
+            inicioDia = fecha.atStartOfDay(zona).toInstant().toEpochMilli();
+            finDia = fecha.plusDays(1).atStartOfDay(zona).toInstant().toEpochMilli();
+            boolean finDeSemana = fecha.getDayOfWeek().getValue() >= 6;
+            baseDia = separarFinDeSemana && finDeSemana ? slotsPorDia : 0;
+        }
+        // Días con cambio de hora pueden tener más de 24 h: la última franja absorbe el exceso
+        int franja = (int) Math.min(slotsPorDia - 1, (timestamp - inicioDia) / (minutosSlot * 60000L));
+        return baseDia + franja;
+    }
+
+    public void agregar(int arco, int slot, double tiempo) {
+        int celda = arco * numSlots + slot;
+        muestras[celda]++;
+        sumaTiempos[celda] += tiempo;
+    }
+
+    /**
+     * Suma muestras ya agregadas a una celda (ej: celdas recibidas de un Worker)
+     */
+    public void agregarCelda(long claveArco, double distancia, int slot, long n, double suma) {
+        int celda = indiceArco(claveArco, distancia) * numSlots + slot;
+        muestras[celda] += n;
+        sumaTiempos[celda] += suma;
+    }
+
+    /**
+     * Suma las celdas de otro perfil con la misma configuración de franjas
+     */
+    public SlottedArcProfile combinar(SlottedArcProfile otro) {
+        if (otro.minutosSlot != minutosSlot || otro.separarFinDeSemana != separarFinDeSemana) {
+            throw new IllegalArgumentException("Perfiles con franjas distintas: " + this + " y " + otro);
+        }
+        for (int a = 0; a < otro.numArcos; a++) {
+            int fila = indiceArco(otro.claves[a], otro.distancias[a]) * numSlots;
+            int filaOtro = a * numSlots;
+            for (int s = 0; s < numSlots; s++) {
+                muestras[fila + s] += otro.muestras[filaOtro + s];
+                sumaTiempos[fila + s] += otro.sumaTiempos[filaOtro + s];
+            }
+        }
+        return this;
+    }
+
+    public long getMuestras(int arco, int slot) {
+        return muestras[arco * numSlots + slot];
+    }
+
+    public double getSumaTiempos(int arco, int slot) {
+        return sumaTiempos[arco * numSlots + slot];
+    }
+
+    /**
+     * Tiempo promedio (minutos) del arco en la franja; 0 sin muestras
+     */
+    public double getTiempoPromedio(int arco, int slot) {
+        long n = getMuestras(arco, slot);
+        return n > 0 ? getSumaTiempos(arco, slot) / n : 0.0;
+    }
+
+    /**
+     * Velocidad promedio (km/h) del arco en la franja; 0 sin muestras o sin distancia
+     */
+    public double getVelocidadPromedio(int arco, int slot) {
+        double tiempo = getTiempoPromedio(arco, slot);
+        return tiempo > 0 && distancias[arco] > 0 ? distancias[arco] / (tiempo / 60.0) : 0.0;
+    }
+
+    /**
+     * Velocidad (km/h) del arco en una ventana de franjas [desde, hasta) sumando sus celdas
+     * (ej: hora pico hábil 6:00-8:00 con franjas de 15 min = [24, 32))
+     */
+    public double getVelocidadVentana(int arco, int desde, int hasta) {
+        long n = 0;
+        double suma = 0;
+        for (int s = desde; s < hasta; s++) {
+            n += getMuestras(arco, s);
+            suma += getSumaTiempos(arco, s);
+        }
+        return n > 0 && suma > 0 && distancias[arco] > 0 ? distancias[arco] / (suma / n / 60.0) : 0.0;
+    }
+
+    /**
+     * Velocidad de toda la red en una ventana de franjas: distancia recorrida / tiempo total
+     */
+    public double getVelocidadRedVentana(int desde, int hasta) {
+        double distancia = 0;
+        double tiempo = 0;
+        for (int a = 0; a < numArcos; a++) {
+            for (int s = desde; s < hasta; s++) {
+                distancia += distancias[a] * getMuestras(a, s);
+                tiempo += getSumaTiempos(a, s);
+            }
+        }
+        return tiempo > 0 ? distancia / (tiempo / 60.0) : 0.0;
+    }
+
+    /**
+     * Fila del arco o -1 si no tiene muestras en el perfil
+     */
+    public int buscarArco(long claveArco) {
+        Integer indice = indiceArcos.get(claveArco);
+        return indice != null ? indice : -1;
+    }
+
+    /**
+     * Etiqueta legible de una franja (ej: "hábil 07:15", "fin de semana 18:00")
+     */
+    public String etiquetaSlot(int slot) {
+        int minutos = (slot % slotsPorDia) * minutosSlot;
+        String dia = !separarFinDeSemana ? "" : esFinDeSemana(slot) ? "fin de semana " : "hábil ";
+        return String.format("%s%02d:%02d", dia, minutos / 60, minutos % 60);
+    }
+
+    public boolean esFinDeSemana(int slot) {
+        return separarFinDeSemana && slot >= slotsPorDia;
+    }
+
+    public int getNumArcos() { return numArcos; }
+    public long getClaveArco(int arco) { return claves[arco]; }
+    public double getDistancia(int arco) { return distancias[arco]; }
+    public int getMinutosSlot() { return minutosSlot; }
+    public int getSlotsPorDia() { return slotsPorDia; }
+    public int getNumSlots() { return numSlots; }
+    public boolean isSepararFinDeSemana() { return separarFinDeSemana; }
+    public ZoneId getZona() { return zona; }
+
+    @Override
+    public String toString() {
+        return "SlottedArcProfile{arcos=" + numArcos + ", minutosSlot=" + minutosSlot +
+               ", finDeSemana=" + separarFinDeSemana + "}";
+    }
+}
@@ -0,0 +1,73 @@
+package com.sitm.mio.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cálculo de arcos en una sola pasada sobre datagrams en orden de llegada (por tiempo)
+ * OPTIMIZACIÓN: Solo guarda el último datagram de cada trayecto (bus, ruta); cuando llega el
+ * siguiente, el segmento se suma de inmediato al acumulador del arco. No se agrupan listas
+ * por bus ni se ordenan: la memoria crece con el número de buses, no con el de datagrams
+ *
+ * Sobre un flujo ordenado por timestamp produce lo mismo que calcularVelocidadesReales
+ * La etapa de atípicos necesita los límites de cada arco con todas sus muestras (dos pasadas):
+ * el motor nunca la aplica, y con atipicosK > 0 solo calcularVelocidadesReales la aplica
+ * Cuando el bus empieza otro viaje en la misma ruta, el colector corta el par (TripBoundaryDetector)
+ * y el nuevo datagram reemplaza al anterior: no queda estado por cada viaje terminado
+ * Las filas de un trayecto más antiguas que la última procesada (llegadas fuera de orden) se
+ * descartan y se cuentan: los pares ya sumados no se recalculan
+ */
+public class StreamingArcEngine {
+
+    private final TrajectoryArcCollector colector;
+    private final Map<Long, DatagramProcessor.Datagram> ultimoPorTrayecto = new HashMap<>(); // (bus << 32 | ruta)
+    private long procesados;
+    private long fueraDeOrden;
+
+    public StreamingArcEngine(Map<String, GraphNode> nodos) {
+        this(nodos, ArcFilterPipeline.desdePropiedades());
+    }
+
+    public StreamingArcEngine(Map<String, GraphNode> nodos, ArcFilterPipeline filtros) {
+        this.colector = new TrajectoryArcCollector(nodos, null, filtros.sinAtipicos());
+    }
+
+    /**
+     * Agrega el siguiente datagram del flujo
+     *
+     * @return false si se descartó por llegar fuera de orden dentro de su trayecto
+     */
+    public boolean agregar(DatagramProcessor.Datagram dg) {
+        procesados++;
+        long trayecto = ((long) dg.getBusIndex() << 32) | (dg.getRouteIndex() & 0xFFFFFFFFL);
+        DatagramProcessor.Datagram anterior = ultimoPorTrayecto.get(trayecto);
+        if (anterior != null && dg.getTimestamp() < anterior.getTimestamp()) {
+            fueraDeOrden++;
+            return false;
+        }
+        ultimoPorTrayecto.put(trayecto, dg);
+        if (anterior != null) {
+            colector.agregarPar(anterior, dg);
+        }
+        return true;
+    }
+
+    /**
+     * Estadísticas actuales por arco (se puede llamar mientras siguen llegando datos)
+     */
+    public Map<String, DatagramProcessor.SpeedStatistics> resultados() {
+        return colector.resultados();
+    }
+
+    /**
+     * Permanencias en parada por (ruta, parada) de las visitas ya cerradas
+     */
+    public ArcKeyMap<DatagramProcessor.DwellStatistics> permanencias() {
+        return colector.permanencias();
+    }
+
+    public long getProcesados() { return procesados; }
+    public long getFueraDeOrden() { return fueraDeOrden; }
+    public int getTrayectosActivos() { return ultimoPorTrayecto.size(); }
+    public long getLimitesDeViaje() { return colector.getLimitesDeViaje(); }
+}
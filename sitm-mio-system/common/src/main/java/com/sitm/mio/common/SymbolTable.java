@@ -0,0 +1,99 @@
+package com.sitm.mio.common;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tabla de símbolos compartida que asigna enteros densos a identificadores (busId, lineId, stopId)
+ * OPTIMIZACIÓN: Los datagrams guardan índices int en lugar de Strings y los agrupamientos
+ * pasan de búsquedas en mapas por texto a indexación de arreglos
+ *
+ * Los índices son densos (0, 1, 2, ...) y estables durante la vida del proceso.
+ * Las paradas del grafo se registran en la misma tabla (ver GraphAdapter.convertirNodos)
+ * Patrón: Singleton (tabla global) + Flyweight
+ *
+ * Límite: CAPACIDAD_MAXIMA (2^21 = 2.097.152) identificadores distintos por proceso, sumando
+ * buses, rutas y paradas de todos los jobs, porque ArcKey guarda cada índice en 21 bits. La
+ * tabla no se vacía entre jobs: un Master o Worker de larga vida que vea más identificadores
+ * debe reiniciarse. Los lectores solo registran los identificadores de filas aceptadas (ver
+ * MappedDatagramReader). Al superar el límite, intern falla con un mensaje explícito en lugar de
+ * producir índices que ArcKey no puede empaquetar
+ */
+public final class SymbolTable {
+
+    public static final int CAPACIDAD_MAXIMA = ArcKey.MAXIMO_INDICE + 1;
+
+    private static final SymbolTable GLOBAL = new SymbolTable();
+
+    private final Map<String, Integer> indices;
+    private volatile String[] nombres;
+    private int tamano;
+
+    public SymbolTable() {
+        this.indices = new ConcurrentHashMap<>();
+        this.nombres = new String[1024];
+        this.tamano = 0;
+    }
+
+    /**
+     * Tabla compartida por todo el proceso
+     */
+    public static SymbolTable global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Retorna el índice del identificador, asignando uno nuevo si no existe
+     *
+     * @throws IllegalStateException si la tabla ya tiene CAPACIDAD_MAXIMA identificadores
+     */
+    public int intern(String nombre) {
+        Integer indice = indices.get(nombre);
+        if (indice != null) {
+            return indice;
+        }
+        synchronized (this) {
+            indice = indices.get(nombre);
+            if (indice != null) {
+                return indice;
+            }
+            if (tamano == CAPACIDAD_MAXIMA) {
+                throw new IllegalStateException("SymbolTable llena: " + CAPACIDAD_MAXIMA +
+                    " identificadores distintos (buses, rutas y paradas) en este proceso, el máximo de " +
+                    "ArcKey (" + ArcKey.BITS + " bits por índice); no se pudo registrar '" + nombre +
+                    "'. Reinicie el proceso o procese menos identificadores distintos");
+            }
+            if (tamano == nombres.length) {
+                nombres = Arrays.copyOf(nombres, tamano * 2);
+            }
+            int nuevo = tamano++;
+            // Publicar el nombre antes que el índice para que nombre(nuevo) sea visible
+            nombres[nuevo] = nombre;
+            indices.put(nombre, nuevo);
+            return nuevo;
+        }
+    }
+
+    /**
+     * Retorna el índice del identificador o -1 si no está registrado
+     */
+    public int buscar(String nombre) {
+        Integer indice = indices.get(nombre);
+        return indice != null ? indice : -1;
+    }
+
+    /**
+     * Retorna el identificador asociado a un índice
+     */
+    public String nombre(int indice) {
+        return nombres[indice];
+    }
+
+    /**
+     * Número de identificadores registrados (cota superior exclusiva de los índices)
+     */
+    public synchronized int tamano() {
+        return tamano;
+    }
+}
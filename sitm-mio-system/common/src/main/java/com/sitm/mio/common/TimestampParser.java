@@ -0,0 +1,246 @@
+package com.sitm.mio.common;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+
+/**
+ * Parser de timestamps de datagrams sin asignaciones ni excepciones
+ * OPTIMIZACIÓN: El formato se detecta una vez por archivo; las fechas "2019-05-27 20:14:43"
+ * se convierten con aritmética de dígitos y una pequeña caché de días (epoch-day -> milisegundos)
+ *
+ * La zona horaria es explícita: datagram.timezone (por defecto America/Bogota, la del SITM-MIO),
+ * en lugar de la zona por defecto de la JVM
+ *
+ * No es thread-safe (por la caché): usar una instancia por hilo de lectura
+ */
+public class TimestampParser {
+
+    /**
+     * Formatos de timestamp soportados
+     */
+    public enum Formato {
+        FECHA_HORA,      // "2019-05-27 20:14:43" (opcionalmente con ".SSS")
+        EPOCH_MILIS,     // milisegundos Unix
+        EPOCH_SEGUNDOS,  // segundos Unix, con o sin decimales
+        DESCONOCIDO
+    }
+
+    private static final long MILIS_POR_DIA = 86400000L;
+    private static final int TAMANO_CACHE = 16; // Potencia de 2
+
+    private final ZoneId zona;
+    private final ZoneRules reglas;
+    private final Formato formato;
+
+    // Caché de días: clave yyyymmdd -> milisegundos UTC de la medianoche local
+    private final int[] clavesDia = new int[TAMANO_CACHE];
+    private final long[] medianocheDia = new long[TAMANO_CACHE];
+    private final boolean[] diaConTransicion = new boolean[TAMANO_CACHE];
+
+    public TimestampParser(Formato formato, ZoneId zona) {
+        this.formato = formato;
+        this.zona = zona;
+        this.reglas = zona.getRules();
+    }
+
+    /**
+     * Zona horaria configurada para interpretar fechas sin zona (datagram.timezone)
+     */
+    public static ZoneId zonaConfigurada() {
+        return ZoneId.of(System.getProperty("datagram.timezone", "America/Bogota"));
+    }
+
+    /**
+     * Detecta el formato de un valor de timestamp (se usa con la primera fila del archivo)
+     */
+    public static Formato detectarFormato(ByteBuffer buffer, int inicio, int fin) {
+        if (inicio >= fin) {
+            return Formato.DESCONOCIDO;
+        }
+        if (esFechaHora(buffer, inicio, fin)) {
+            return Formato.FECHA_HORA;
+        }
+        if (esNumero(buffer, inicio, fin, 0)) {
+            return Formato.EPOCH_MILIS;
+        }
+        return esNumero(buffer, inicio, fin, 1) ? Formato.EPOCH_SEGUNDOS : Formato.DESCONOCIDO;
+    }
+
+    /**
+     * Parsea el timestamp en [inicio, fin) (sin espacios ni comillas) a milisegundos Unix
+     * Usa el formato detectado para el archivo; solo si el valor no tiene la forma de ese formato
+     * (dígitos y separadores) se detecta el formato de ese valor
+     *
+     * @return Milisegundos Unix, o 0 si el valor no es un timestamp válido
+     */
+    public long parsear(ByteBuffer buffer, int inicio, int fin) {
+        Formato formatoValor = formato;
+        if (!coincide(formatoValor, buffer, inicio, fin)) {
+            formatoValor = detectarFormato(buffer, inicio, fin);
+        }
+
+        switch (formatoValor) {
+            case FECHA_HORA:
+                return parsearFechaHora(buffer, inicio, fin);
+            case EPOCH_MILIS:
+                return MappedDatagramReader.parsearLong(buffer, inicio, fin, 0);
+            case EPOCH_SEGUNDOS:
+                return (long) (MappedDatagramReader.parsearDouble(buffer, inicio, fin, 0.0) * 1000);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Verifica que el valor tenga la forma del formato (sin validar fechas ni rangos)
+     * Un entero en un archivo EPOCH_SEGUNDOS se lee como segundos, no como milisegundos
+     */
+    private static boolean coincide(Formato formato, ByteBuffer buffer, int inicio, int fin) {
+        switch (formato) {
+            case FECHA_HORA:
+                return esFechaHora(buffer, inicio, fin);
+            case EPOCH_MILIS:
+                return esNumero(buffer, inicio, fin, 0);
+            case EPOCH_SEGUNDOS:
+                return esNumero(buffer, inicio, fin, 1);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Verifica la forma "[+-]d+" con a lo sumo maxPuntos puntos decimales entre los dígitos
+     */
+    private static boolean esNumero(ByteBuffer buffer, int inicio, int fin, int maxPuntos) {
+        int i = inicio;
+        if (i < fin && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            i++;
+        }
+        int digitos = 0;
+        int puntos = 0;
+        for (; i < fin; i++) {
+            byte b = buffer.get(i);
+            if (b == '.') {
+                if (++puntos > maxPuntos) {
+                    return false;
+                }
+            } else if (b < '0' || b > '9') {
+                return false;
+            } else {
+                digitos++;
+            }
+        }
+        return digitos > 0;
+    }
+
+    /**
+     * Verifica la forma "dddd?dd?dd?dd?dd?dd" con fracción opcional ".d+"
+     */
+    private static boolean esFechaHora(ByteBuffer buffer, int inicio, int fin) {
+        int longitud = fin - inicio;
+        if (longitud < 19 || (longitud > 19 && (buffer.get(inicio + 19) != '.' || longitud == 20))) {
+            return false;
+        }
+        for (int i = 0; i < longitud; i++) {
+            byte b = buffer.get(inicio + i);
+            boolean separador = i == 4 || i == 7 || i == 10 || i == 13 || i == 16 || i == 19;
+            if (!separador && (b < '0' || b > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Convierte "2019-05-27 20:14:43[.SSS]" a milisegundos Unix en la zona configurada
+     */
+    private long parsearFechaHora(ByteBuffer buffer, int inicio, int fin) {
+        int año = digitos(buffer, inicio, 4);
+        int mes = digitos(buffer, inicio + 5, 2);
+        int dia = digitos(buffer, inicio + 8, 2);
+        int horas = digitos(buffer, inicio + 11, 2);
+        int minutos = digitos(buffer, inicio + 14, 2);
+        int segundos = digitos(buffer, inicio + 17, 2);
+
+        if (mes < 1 || mes > 12 || dia < 1 || dia > diasDelMes(año, mes) ||
+            horas > 23 || minutos > 59 || segundos > 59) {
+            return 0;
+        }
+
+        // Fracción de segundo: solo se usan los milisegundos
+        int milis = 0;
+        int escala = 100;
+        for (int i = inicio + 20; i < fin && escala > 0; i++) {
+            milis += (buffer.get(i) - '0') * escala;
+            escala /= 10;
+        }
+
+        int clave = año * 10000 + mes * 100 + dia;
+        int slot = (clave ^ (clave >>> 5)) & (TAMANO_CACHE - 1);
+        if (clavesDia[slot] != clave) {
+            cargarDia(slot, clave, año, mes, dia);
+        }
+
+        if (diaConTransicion[slot]) {
+            // Día con cambio de hora: resolver con las reglas completas de la zona
+            return LocalDateTime.of(año, mes, dia, horas, minutos, segundos)
+                .atZone(zona).toInstant().toEpochMilli() + milis;
+        }
+        return medianocheDia[slot] + (horas * 3600L + minutos * 60L + segundos) * 1000L + milis;
+    }
+
+    /**
+     * Calcula y guarda en la caché la medianoche local de un día
+     */
+    private void cargarDia(int slot, int clave, int año, int mes, int dia) {
+        long medianocheUtc = diasDesdeEpoch(año, mes, dia) * MILIS_POR_DIA;
+        int offsetInicio = reglas.getOffset(Instant.ofEpochMilli(medianocheUtc)).getTotalSeconds();
+        long medianoche = medianocheUtc - offsetInicio * 1000L;
+        int offsetFin = reglas.isFixedOffset() ? offsetInicio :
+            reglas.getOffset(Instant.ofEpochMilli(medianoche + MILIS_POR_DIA)).getTotalSeconds();
+        boolean transicion = offsetFin != offsetInicio ||
+            reglas.getOffset(Instant.ofEpochMilli(medianoche)).getTotalSeconds() != offsetInicio;
+
+        clavesDia[slot] = clave;
+        medianocheDia[slot] = medianoche;
+        diaConTransicion[slot] = transicion;
+    }
+
+    /**
+     * Días desde 1970-01-01 para una fecha del calendario gregoriano proléptico
+     */
+    static long diasDesdeEpoch(int año, int mes, int dia) {
+        long y = mes <= 2 ? año - 1 : año;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long añoDeEra = y - era * 400;
+        long diaDelAño = (153 * (mes + (mes > 2 ? -3 : 9)) + 2) / 5 + dia - 1;
+        long diaDeEra = añoDeEra * 365 + añoDeEra / 4 - añoDeEra / 100 + diaDelAño;
+        return era * 146097 + diaDeEra - 719468;
+    }
+
+    private static int diasDelMes(int año, int mes) {
+        switch (mes) {
+            case 2:
+                boolean bisiesto = (año % 4 == 0 && año % 100 != 0) || año % 400 == 0;
+                return bisiesto ? 29 : 28;
+            case 4: case 6: case 9: case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static int digitos(ByteBuffer buffer, int inicio, int cantidad) {
+        int valor = 0;
+        for (int i = 0; i < cantidad; i++) {
+            valor = valor * 10 + (buffer.get(inicio + i) - '0');
+        }
+        return valor;
+    }
+
+    public Formato getFormato() { return formato; }
+    public ZoneId getZona() { return zona; }
+}
@@ -0,0 +1,287 @@
+package com.sitm.mio.common;
+
+import java.util.Map;
+
+/**
+ * Calcula estadísticas por arco en una sola pasada sobre datagrams ordenados por (bus, ruta, timestamp)
+ * OPTIMIZACIÓN: Solo guarda el datagram anterior, un ArcAccumulator y un QuantileSketch (acotado) por arco;
+ * la memoria no depende del número de datagrams sino del número de arcos
+ *
+ * Cada trayecto se segmenta por viaje (TripBoundaryDetector): un par que cruza de un viaje al
+ * siguiente no forma arco ni permanencia, solo se cuenta en getLimitesDeViaje()
+ *
+ * Los filtros vienen compilados en un ArcFilterPipeline (el del job o el de las propiedades):
+ * rango de tiempo fijo y, solo si se pasan límites por arco (segunda pasada, ver
+ * ArcFilterPipeline.limitesAtipicos), descarte de atípicos; sin límites no se descarta ninguno
+ *
+ * Los pares consecutivos en la misma parada no forman arco: son la permanencia (dwell) del bus
+ * en la parada y se acumulan por (ruta, parada) en la misma pasada. Una visita se cierra cuando
+ * el bus sale hacia otra parada; las de más de datagram.filter.permanenciaMaxima minutos
+ * (por defecto 30, ej: terminales) se descartan
+ *
+ * El flujo puede venir de un arreglo ordenado en memoria o del merge de ExternalDatagramSorter
+ */
+public class TrajectoryArcCollector {
+
+    private final ArcDistanceTable distancias;
+    private final SlottedArcProfile perfil; // null si no se calcula el perfil por franja
+    private final ArcFilterPipeline filtros;
+    private final TripBoundaryDetector limitesViaje;
+    private final ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limitesAtipicos; // null = sin etapa de atípicos
+
+    private final ArcKeyMap<ArcoParcial> arcos = new ArcKeyMap<>(); // key: ArcKey(ruta, origen, destino)
+    private final ArcKeyMap<ArcAccumulator> permanencias = new ArcKeyMap<>(); // key: ArcKey(ruta, parada, parada)
+    private final ArcKeyMap<Visita> visitas = new ArcKeyMap<>(); // Visita en curso por trayecto (bus << 32 | ruta)
+    private DatagramProcessor.Datagram anterior;
+    private long limitesDeViaje;
+    private long descartadosPorTiempo;
+    private long descartadosAtipicos;
+
+    public TrajectoryArcCollector(Map<String, GraphNode> nodos) {
+        this(nodos, null);
+    }
+
+    /**
+     * Colector que además llena el perfil por franja horaria en la misma pasada
+     */
+    public TrajectoryArcCollector(Map<String, GraphNode> nodos, SlottedArcProfile perfil) {
+        this(nodos, perfil, ArcFilterPipeline.desdePropiedades());
+    }
+
+    /**
+     * Colector con los filtros ya compilados del job
+     */
+    public TrajectoryArcCollector(Map<String, GraphNode> nodos, SlottedArcProfile perfil,
+                                  ArcFilterPipeline filtros) {
+        this(nodos, perfil, filtros, null);
+    }
+
+    /**
+     * Colector de la segunda pasada: descarta los atípicos con los límites fijos de cada arco
+     */
+    public TrajectoryArcCollector(Map<String, GraphNode> nodos, SlottedArcProfile perfil, ArcFilterPipeline filtros,
+                                  ArcKeyMap<ArcFilterPipeline.LimitesAtipicos> limitesAtipicos) {
+        this.limitesAtipicos = limitesAtipicos;
+        this.distancias = ArcDistanceTable.para(nodos);
+        this.perfil = perfil;
+        this.filtros = filtros;
+        this.limitesViaje = filtros.detectorDeViaje();
+    }
+
+    /**
+     * Agrega el siguiente datagram del flujo ordenado
+     */
+    public void agregar(DatagramProcessor.Datagram destino) {
+        DatagramProcessor.Datagram origen = anterior;
+        anterior = destino;
+        if (origen != null) {
+            agregarPar(origen, destino);
+        }
+    }
+
+    /**
+     * Agrega un par de datagrams consecutivos de un trayecto (origen anterior a destino)
+     * Usado directamente cuando el estado por trayecto se lleva afuera (ej: DatagramFileFollower)
+     */
+    public void agregarPar(DatagramProcessor.Datagram origen, DatagramProcessor.Datagram destino) {
+        // Solo procesar pares del mismo trayecto (bus y ruta)
+        if (origen.getBusIndex() != destino.getBusIndex() ||
+            origen.getRouteIndex() != destino.getRouteIndex()) {
+            return;
+        }
+        // Cambio de viaje: se descarta la visita en curso (espera en terminal) y no hay arco
+        if (limitesViaje.esLimite(origen, destino)) {
+            limitesDeViaje++;
+            descartarVisita(origen);
+            return;
+        }
+        // Misma parada: el bus sigue detenido (permanencia); si no, sale y se cierra la visita
+        if (origen.getStopIndex() == destino.getStopIndex()) {
+            extenderVisita(origen, destino);
+            return;
+        }
+        cerrarVisita(origen);
+
+        // Calcular tiempo en minutos
+        long tiempoMs = destino.getTimestamp() - origen.getTimestamp();
+        double tiempoMin = tiempoMs / (1000.0 * 60.0);
+
+        // Solo procesar si el tiempo está en un rango razonable
+        if (!filtros.aceptaTiempo(tiempoMin)) {
+            descartadosPorTiempo++;
+            return;
+        }
+
+        long clave = ArcKey.empaquetar(origen.getRouteIndex(), origen.getStopIndex(), destino.getStopIndex());
+        ArcoParcial arco = arcos.get(clave);
+        if (arco == null) {
+            arco = new ArcoParcial(calcularDistancia(origen, destino),
+                                   limitesAtipicos != null ? limitesAtipicos.get(clave) : null);
+            arco.filaPerfil = perfil != null ? perfil.indiceArco(clave, arco.distancia) : -1;
+            arcos.put(clave, arco);
+        }
+        arco.distribucion.agregar(tiempoMin);
+        if (arco.limites != null && arco.limites.descarta(tiempoMin)) {
+            descartadosAtipicos++;
+            return;
+        }
+        arco.tiempos.agregar(tiempoMin);
+        if (perfil != null) {
+            perfil.agregar(arco.filaPerfil, perfil.slot(origen.getTimestamp()), tiempoMin);
+        }
+    }
+
+    /**
+     * Extiende la visita en curso del trayecto o abre una nueva si el origen no la continúa
+     */
+    private void extenderVisita(DatagramProcessor.Datagram origen, DatagramProcessor.Datagram destino) {
+        long trayecto = trayecto(origen);
+        Visita visita = visitas.get(trayecto);
+        if (visita == null) {
+            visita = new Visita();
+            visitas.put(trayecto, visita);
+        }
+        if (visita.parada != origen.getStopIndex() || visita.ultimo != origen.getTimestamp()) {
+            visita.parada = origen.getStopIndex();
+            visita.inicio = origen.getTimestamp();
+        }
+        visita.ultimo = destino.getTimestamp();
+    }
+
+    /**
+     * Suma la permanencia de la visita que termina en el datagram origen (si la hay)
+     */
+    private void cerrarVisita(DatagramProcessor.Datagram origen) {
+        Visita visita = visitas.get(trayecto(origen));
+        if (visita == null || visita.parada != origen.getStopIndex() || visita.ultimo != origen.getTimestamp()) {
+            return;
+        }
+        double minutos = (visita.ultimo - visita.inicio) / (1000.0 * 60.0);
+        if (filtros.aceptaPermanencia(minutos)) {
+            long clave = ArcKey.empaquetar(origen.getRouteIndex(), visita.parada, visita.parada);
+            ArcAccumulator acumulador = permanencias.get(clave);
+            if (acumulador == null) {
+                acumulador = new ArcAccumulator();
+                permanencias.put(clave, acumulador);
+            }
+            acumulador.agregar(minutos);
+        }
+        visita.parada = -1;
+    }
+
+    /**
+     * Olvida la visita que termina en el datagram origen sin sumarla
+     */
+    private void descartarVisita(DatagramProcessor.Datagram origen) {
+        Visita visita = visitas.get(trayecto(origen));
+        if (visita != null) {
+            visita.parada = -1;
+        }
+    }
+
+    private static long trayecto(DatagramProcessor.Datagram dg) {
+        return ((long) dg.getBusIndex() << 32) | (dg.getRouteIndex() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Distancia del arco: tabla precalculada del grafo o, si las paradas no están, las coordenadas de los datagrams
+     */
+    private double calcularDistancia(DatagramProcessor.Datagram origen, DatagramProcessor.Datagram destino) {
+        double distancia = distancias.distancia(origen.getStopIndex(), destino.getStopIndex());
+        if (!Double.isNaN(distancia)) {
+            return distancia;
+        }
+        if (origen.getLatitude() != 0 && origen.getLongitude() != 0 &&
+            destino.getLatitude() != 0 && destino.getLongitude() != 0) {
+            return DistanceCalculator.calcularDistancia(origen.getLatitude(), origen.getLongitude(),
+                                                        destino.getLatitude(), destino.getLongitude());
+        }
+        // Si no hay coordenadas, distancia 0 (se calculará velocidad 0)
+        return 0.0;
+    }
+
+    public SlottedArcProfile getPerfil() { return perfil; }
+    public long getLimitesDeViaje() { return limitesDeViaje; }
+    public long getDescartadosPorTiempo() { return descartadosPorTiempo; }
+    public long getDescartadosAtipicos() { return descartadosAtipicos; }
+    public ArcFilterPipeline getFiltros() { return filtros; }
+
+    /**
+     * Estadísticas por arco con velocidad válida (filtros de distancia y velocidad aplicados)
+     * No modifica los acumuladores: se puede llamar varias veces mientras llegan datos
+     */
+    public Map<String, DatagramProcessor.SpeedStatistics> resultados() {
+        return filtros.filtrarValidas(acumulados());
+    }
+
+    /**
+     * Estadísticas de todos los arcos sin filtros de velocidad (parciales combinables)
+     * Cada estadística lleva una copia del acumulador: el colector puede seguir recibiendo datos
+     */
+    public Map<String, DatagramProcessor.SpeedStatistics> acumulados() {
+        return DatagramProcessor.porTexto(acumuladosPorArco());
+    }
+
+    /**
+     * Igual que acumulados() pero por clave empaquetada (ArcKey), sin construir claves de texto
+     */
+    public ArcKeyMap<DatagramProcessor.SpeedStatistics> acumuladosPorArco() {
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> estadisticas = new ArcKeyMap<>(arcos.size());
+        arcos.forEach((clave, arco) -> estadisticas.put(clave, new DatagramProcessor.SpeedStatistics(
+            ArcKey.routeId(clave), ArcKey.origenId(clave), ArcKey.destinoId(clave), arco.distancia,
+            arco.tiempos.copia(), arco.distribucion.copia())));
+        return estadisticas;
+    }
+
+    /**
+     * Permanencias por (ruta, parada) de las visitas ya cerradas, con copia de los acumuladores
+     */
+    public ArcKeyMap<DatagramProcessor.DwellStatistics> permanencias() {
+        ArcKeyMap<DatagramProcessor.DwellStatistics> resultado = new ArcKeyMap<>(permanencias.size());
+        permanencias.forEach((clave, tiempos) -> resultado.put(clave, new DatagramProcessor.DwellStatistics(
+            ArcKey.routeId(clave), ArcKey.origenId(clave), tiempos.copia())));
+        return resultado;
+    }
+
+    /**
+     * Conserva los arcos con distancia mínima y velocidad promedio en rango, con los filtros de
+     * las propiedades del sistema (ver ArcFilterPipeline.filtrarValidas para los de un job)
+     */
+    public static Map<String, DatagramProcessor.SpeedStatistics> filtrarValidas(
+            Map<String, DatagramProcessor.SpeedStatistics> acumulados) {
+        return ArcFilterPipeline.desdePropiedades().filtrarValidas(acumulados);
+    }
+
+    /**
+     * filtrarValidas sobre un mapa por clave empaquetada (ArcKey)
+     */
+    public static ArcKeyMap<DatagramProcessor.SpeedStatistics> filtrarValidas(
+            ArcKeyMap<DatagramProcessor.SpeedStatistics> acumulados) {
+        return ArcFilterPipeline.desdePropiedades().filtrarValidas(acumulados);
+    }
+
+    /**
+     * Acumulador y distribución de tiempos de un arco
+     */
+    private static class ArcoParcial {
+        final double distancia;
+        final ArcAccumulator tiempos = new ArcAccumulator();
+        final QuantileSketch distribucion = new QuantileSketch();
+        final ArcFilterPipeline.LimitesAtipicos limites; // null = sin descarte de atípicos
+        int filaPerfil;
+
+        ArcoParcial(double distancia, ArcFilterPipeline.LimitesAtipicos limites) {
+            this.distancia = distancia;
+            this.limites = limites;
+        }
+    }
+
+    /**
+     * Visita en curso de un trayecto a una parada (parada = -1 si no hay)
+     */
+    private static class Visita {
+        int parada = -1;
+        long inicio;
+        long ultimo;
+    }
+}
@@ -0,0 +1,37 @@
+package com.sitm.mio.common;
+
+/**
+ * Detecta el límite entre dos viajes consecutivos de un mismo bus en una ruta
+ * OPTIMIZACIÓN: El segmento de un trayecto es (bus, viaje): la última parada de un viaje no se
+ * empareja con la primera del siguiente, así esos pares no dependen del filtro de tiempo máximo
+ * para descartarse y la espera en terminal no se cuenta como permanencia
+ *
+ * El viaje es el tripId que trae el datagram como secuencia. Si alguno de los dos no lo tiene
+ * (secuencia <= 0), se corta cuando el intervalo supera datagram.trip.gapMaximo minutos (por defecto 30)
+ */
+public final class TripBoundaryDetector {
+
+    private final long gapMaximoMs;
+
+    public TripBoundaryDetector() {
+        this(Double.parseDouble(System.getProperty("datagram.trip.gapMaximo", "30.0")));
+    }
+
+    public TripBoundaryDetector(double gapMaximoMinutos) {
+        this.gapMaximoMs = (long) (gapMaximoMinutos * 60_000);
+    }
+
+    /**
+     * true si origen y destino (consecutivos del mismo bus y ruta) pertenecen a viajes distintos
+     */
+    public boolean esLimite(DatagramProcessor.Datagram origen, DatagramProcessor.Datagram destino) {
+        if (tieneViaje(origen) && tieneViaje(destino)) {
+            return origen.getSequence() != destino.getSequence();
+        }
+        return destino.getTimestamp() - origen.getTimestamp() > gapMaximoMs;
+    }
+
+    private static boolean tieneViaje(DatagramProcessor.Datagram dg) {
+        return dg.getSequence() > 0;
+    }
+}
@@ -0,0 +1,131 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Combinación de ArcAccumulator contra la acumulación secuencial de las mismas muestras
+ */
+public class ArcAccumulatorTest {
+
+    @Test
+    public void combinarEsExactoConMuestrasRepresentables() {
+        // Múltiplos de 1/4 de minuto: sumas y cuadrados exactos en double, en cualquier orden
+        Random random = new Random(3);
+        double[] tiempos = new double[10000];
+        for (int i = 0; i < tiempos.length; i++) {
+            tiempos[i] = random.nextInt(400) / 4.0;
+        }
+        ArcAccumulator secuencial = acumular(tiempos, 0, tiempos.length);
+
+        assertIguales(secuencial, combinarEnArbol(tiempos, 7), 0.0);
+        assertIguales(secuencial, combinarEnOrdenInverso(tiempos, 13), 0.0);
+    }
+
+    @Test
+    public void combinarCoincideConLaAcumulacionSecuencial() {
+        Random random = new Random(11);
+        double[] tiempos = new double[10000];
+        for (int i = 0; i < tiempos.length; i++) {
+            tiempos[i] = Math.exp(1.5 + 0.7 * random.nextGaussian());
+        }
+        ArcAccumulator secuencial = acumular(tiempos, 0, tiempos.length);
+
+        // Solo cambia el orden de las sumas: diferencias de redondeo
+        assertIguales(secuencial, combinarEnArbol(tiempos, 7), 1e-12);
+        assertIguales(secuencial, combinarEnOrdenInverso(tiempos, 13), 1e-12);
+    }
+
+    @Test
+    public void combinarConAcumuladoresVacios() {
+        ArcAccumulator datos = acumular(new double[] {4.0, 1.5, 9.25}, 0, 3);
+
+        assertIguales(datos, new ArcAccumulator().combinar(datos), 0.0);
+        assertIguales(datos, datos.copia().combinar(new ArcAccumulator()), 0.0);
+
+        ArcAccumulator vacio = new ArcAccumulator().combinar(new ArcAccumulator());
+        assertEquals(0, vacio.getMuestras());
+        assertEquals(0.0, vacio.getMinimo(), 0.0);
+        assertEquals(0.0, vacio.getMaximo(), 0.0);
+        assertEquals(0.0, vacio.getVarianza(), 0.0);
+    }
+
+    @Test
+    public void reconstruidoDesdeSusCamposSeCombinaIgual() {
+        // Así llegan los parciales de los Workers por Ice
+        double[] tiempos = {2.0, 3.5, 3.5, 10.0, 0.25, 7.75};
+        ArcAccumulator primeraMitad = acumular(tiempos, 0, 3);
+        ArcAccumulator recibido = new ArcAccumulator(primeraMitad.getMuestras(), primeraMitad.getSuma(),
+                                                     primeraMitad.getSumaCuadrados(), primeraMitad.getMinimo(),
+                                                     primeraMitad.getMaximo());
+
+        assertIguales(acumular(tiempos, 0, tiempos.length), recibido.combinar(acumular(tiempos, 3, 6)), 0.0);
+        // Un acumulador vacío recibido con mínimo y máximo en 0 no contamina el resultado
+        ArcAccumulator vacioRecibido = new ArcAccumulator(0, 0.0, 0.0, 0.0, 0.0);
+        assertIguales(acumular(tiempos, 3, 6), vacioRecibido.combinar(acumular(tiempos, 3, 6)), 0.0);
+    }
+
+    private static ArcAccumulator acumular(double[] tiempos, int desde, int hasta) {
+        ArcAccumulator acumulador = new ArcAccumulator();
+        for (int i = desde; i < hasta; i++) {
+            acumulador.agregar(tiempos[i]);
+        }
+        return acumulador;
+    }
+
+    /**
+     * Parciales de tamaños distintos combinados por pares, como el Master al consolidar
+     */
+    private static ArcAccumulator combinarEnArbol(double[] tiempos, int partes) {
+        List<ArcAccumulator> nivel = parciales(tiempos, partes);
+        while (nivel.size() > 1) {
+            List<ArcAccumulator> siguiente = new ArrayList<>();
+            for (int i = 0; i + 1 < nivel.size(); i += 2) {
+                siguiente.add(nivel.get(i).combinar(nivel.get(i + 1)));
+            }
+            if (nivel.size() % 2 == 1) {
+                siguiente.add(nivel.get(nivel.size() - 1));
+            }
+            nivel = siguiente;
+        }
+        return nivel.get(0);
+    }
+
+    private static ArcAccumulator combinarEnOrdenInverso(double[] tiempos, int partes) {
+        List<ArcAccumulator> lista = parciales(tiempos, partes);
+        ArcAccumulator total = new ArcAccumulator();
+        for (int i = lista.size() - 1; i >= 0; i--) {
+            total.combinar(lista.get(i));
+        }
+        return total;
+    }
+
+    private static List<ArcAccumulator> parciales(double[] tiempos, int partes) {
+        List<ArcAccumulator> lista = new ArrayList<>(partes + 1);
+        lista.add(new ArcAccumulator()); // Un lote sin muestras del arco
+        int desde = 0;
+        for (int p = 1; p <= partes; p++) {
+            // Cortes desiguales: los parciales crecen con p
+            int hasta = (int) ((long) tiempos.length * p * p / ((long) partes * partes));
+            lista.add(acumular(tiempos, desde, hasta));
+            desde = hasta;
+        }
+        return lista;
+    }
+
+    private static void assertIguales(ArcAccumulator esperado, ArcAccumulator real, double errorRelativo) {
+        assertEquals(esperado.getMuestras(), real.getMuestras());
+        assertEquals(esperado.getSuma(), real.getSuma(), Math.abs(esperado.getSuma()) * errorRelativo);
+        assertEquals(esperado.getSumaCuadrados(), real.getSumaCuadrados(),
+                     Math.abs(esperado.getSumaCuadrados()) * errorRelativo);
+        assertEquals(esperado.getMinimo(), real.getMinimo(), 0.0);
+        assertEquals(esperado.getMaximo(), real.getMaximo(), 0.0);
+        assertEquals(esperado.getPromedio(), real.getPromedio(), Math.abs(esperado.getPromedio()) * errorRelativo);
+        assertEquals(esperado.getVarianza(), real.getVarianza(), Math.abs(esperado.getVarianza()) * 1e3 * errorRelativo);
+    }
+}
@@ -0,0 +1,67 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Registro por mapa de nodos y memorización de distancias de ArcDistanceTable
+ */
+public class ArcDistanceTableTest {
+
+    @Test
+    public void jobsIntercaladosConservanSuTabla() {
+        List<Map<String, GraphNode>> mapas = new ArrayList<>();
+        for (int job = 0; job < 3; job++) {
+            mapas.add(nodos("ADT-" + job));
+        }
+        ArcDistanceTable[] tablas = new ArcDistanceTable[mapas.size()];
+        for (int i = 0; i < mapas.size(); i++) {
+            tablas[i] = ArcDistanceTable.para(mapas.get(i));
+        }
+
+        // Lotes de los tres jobs alternados: cada uno reutiliza la tabla de su mapa
+        for (int vuelta = 0; vuelta < 3; vuelta++) {
+            for (int i = 0; i < mapas.size(); i++) {
+                assertSame(tablas[i], ArcDistanceTable.para(mapas.get(i)));
+            }
+        }
+        assertNotSame(tablas[0], ArcDistanceTable.para(nodos("ADT-0")));
+    }
+
+    @Test
+    public void memorizaLaDistanciaDeCadaPar() {
+        Map<String, GraphNode> nodos = nodos("ADT-M");
+        ArcDistanceTable tabla = ArcDistanceTable.para(nodos);
+        SymbolTable simbolos = SymbolTable.global();
+        int a = simbolos.buscar("ADT-M-0");
+        int b = simbolos.buscar("ADT-M-1");
+        double esperada = DistanceCalculator.calcularDistancia(nodos.get("ADT-M-0"), nodos.get("ADT-M-1"));
+
+        assertEquals(0, tabla.getParesCalculados());
+        assertEquals(esperada, tabla.distancia(a, b), 1e-12);
+        assertEquals(esperada, tabla.distancia(a, b), 1e-12);
+        assertEquals(1, tabla.getParesCalculados());
+        // El sentido contrario es otro par; una parada ausente no se memoriza
+        tabla.distancia(b, a);
+        assertTrue(Double.isNaN(tabla.distancia(a, simbolos.intern("ADT-M-fuera"))));
+        assertEquals(2, tabla.getParesCalculados());
+    }
+
+    private static Map<String, GraphNode> nodos(String prefijo) {
+        Map<String, GraphNode> nodos = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            String id = prefijo + "-" + i;
+            nodos.put(id, new GraphNode(id, id, "PARADA", -76.53 + 0.004 * i, 3.37 + 0.002 * i));
+        }
+        return nodos;
+    }
+}
@@ -0,0 +1,115 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Crecimiento y sondeo lineal de ArcKeyMap
+ */
+public class ArcKeyMapTest {
+
+    @Test
+    public void conservaTodasLasEntradasAlCrecer() {
+        ArcKeyMap<Long> mapa = new ArcKeyMap<>(1);
+        Map<Long, Long> esperado = new HashMap<>();
+        Random random = new Random(17);
+        while (esperado.size() < 20000) {
+            long clave = ArcKey.empaquetar(random.nextInt(ArcKey.MAXIMO_INDICE + 1),
+                                           random.nextInt(ArcKey.MAXIMO_INDICE + 1),
+                                           random.nextInt(ArcKey.MAXIMO_INDICE + 1));
+            mapa.put(clave, clave * 3);
+            esperado.put(clave, clave * 3);
+        }
+
+        assertEquals(esperado.size(), mapa.size());
+        for (Map.Entry<Long, Long> e : esperado.entrySet()) {
+            assertEquals(e.getValue(), mapa.get(e.getKey()));
+        }
+        Map<Long, Long> recorrido = new HashMap<>();
+        mapa.forEach(recorrido::put);
+        assertEquals(esperado, recorrido);
+    }
+
+    @Test
+    public void sondeoConClavesQueCaenEnLaMismaCelda() {
+        // Capacidad inicial 8: cuatro claves con la misma celda inicial (la última, para que el
+        // sondeo dé la vuelta al arreglo) no provocan crecimiento
+        List<Long> colisiones = clavesConCeldaInicial(8, 7, 5);
+        ArcKeyMap<String> mapa = new ArcKeyMap<>(4);
+        for (int i = 0; i < 4; i++) {
+            mapa.put(colisiones.get(i), "v" + i);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals("v" + i, mapa.get(colisiones.get(i)));
+        }
+        // Una clave ausente de la misma celda recorre toda la cadena y termina en una celda vacía
+        assertNull(mapa.get(colisiones.get(4)));
+
+        // Reemplazar y combinar una clave al final de la cadena no agrega entradas
+        mapa.put(colisiones.get(3), "nuevo");
+        mapa.merge(colisiones.get(2), "+", String::concat);
+        assertEquals(4, mapa.size());
+        assertEquals("nuevo", mapa.get(colisiones.get(3)));
+        assertEquals("v2+", mapa.get(colisiones.get(2)));
+
+        // La quinta clave fuerza el crecimiento; la cadena se redistribuye sin perder entradas
+        mapa.put(colisiones.get(4), "v4");
+        assertEquals(5, mapa.size());
+        assertEquals("v0", mapa.get(colisiones.get(0)));
+        assertEquals("v1", mapa.get(colisiones.get(1)));
+        assertEquals("v2+", mapa.get(colisiones.get(2)));
+        assertEquals("nuevo", mapa.get(colisiones.get(3)));
+        assertEquals("v4", mapa.get(colisiones.get(4)));
+    }
+
+    @Test
+    public void mergeCombinaLasClavesRepetidas() {
+        ArcKeyMap<Integer> a = new ArcKeyMap<>();
+        ArcKeyMap<Integer> b = new ArcKeyMap<>();
+        for (int i = 0; i < 1000; i++) {
+            a.merge(i, 1, Integer::sum);
+            b.merge(i / 2, 1, Integer::sum);
+        }
+
+        a.mergeAll(b, Integer::sum);
+
+        assertEquals(1000, a.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i < 500 ? 3 : 1), a.get(i));
+        }
+    }
+
+    @Test
+    public void aceptaLasClavesExtremas() {
+        ArcKeyMap<String> mapa = new ArcKeyMap<>();
+        mapa.put(0L, "cero");
+        mapa.put(Long.MAX_VALUE, "maxima");
+
+        assertEquals("cero", mapa.get(0L));
+        assertEquals("maxima", mapa.get(Long.MAX_VALUE));
+        assertNull(mapa.get(1L));
+    }
+
+    /**
+     * Busca claves cuya celda inicial es la dada (misma mezcla que ArcKeyMap)
+     */
+    private static List<Long> clavesConCeldaInicial(int capacidad, int celda, int cantidad) {
+        List<Long> claves = new ArrayList<>(cantidad);
+        for (long clave = 0; claves.size() < cantidad; clave++) {
+            long h = clave * 0x9E3779B97F4A7C15L;
+            if (((int) (h ^ (h >>> 32)) & (capacidad - 1)) == celda) {
+                claves.add(clave);
+            }
+        }
+        return claves;
+    }
+}
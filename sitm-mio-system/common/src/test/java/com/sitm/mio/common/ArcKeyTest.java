@@ -0,0 +1,71 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Empaquetado de claves de arco en los límites de los 21 bits por índice
+ */
+public class ArcKeyTest {
+
+    private static final int[] LIMITES = {0, 1, ArcKey.MAXIMO_INDICE - 1, ArcKey.MAXIMO_INDICE};
+
+    @Test
+    public void empaquetarYDesempaquetarConservaLosTresIndicesEnLosLimites() {
+        for (int ruta : LIMITES) {
+            for (int origen : LIMITES) {
+                for (int destino : LIMITES) {
+                    long clave = ArcKey.empaquetar(ruta, origen, destino);
+                    assertTrue("La clave debe ser no negativa (ArcKeyMap usa -1 como vacía)", clave >= 0);
+                    assertEquals(ruta, ArcKey.ruta(clave));
+                    assertEquals(origen, ArcKey.origen(clave));
+                    assertEquals(destino, ArcKey.destino(clave));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void losCamposNoSeSolapan() {
+        int max = ArcKey.MAXIMO_INDICE;
+        long soloRuta = ArcKey.empaquetar(max, 0, 0);
+        long soloOrigen = ArcKey.empaquetar(0, max, 0);
+        long soloDestino = ArcKey.empaquetar(0, 0, max);
+
+        assertEquals(0L, soloRuta & soloOrigen);
+        assertEquals(0L, soloOrigen & soloDestino);
+        assertEquals(0L, soloRuta & soloDestino);
+        assertEquals(ArcKey.empaquetar(max, max, max), soloRuta | soloOrigen | soloDestino);
+        assertEquals(Long.MAX_VALUE, ArcKey.empaquetar(max, max, max));
+    }
+
+    @Test
+    public void clavesVecinasSonDistintas() {
+        int max = ArcKey.MAXIMO_INDICE;
+        assertNotEquals(ArcKey.empaquetar(0, 0, max), ArcKey.empaquetar(0, 1, 0));
+        assertNotEquals(ArcKey.empaquetar(0, max, 0), ArcKey.empaquetar(1, 0, 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rechazaRutaFueraDeRango() {
+        ArcKey.empaquetar(ArcKey.MAXIMO_INDICE + 1, 0, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rechazaOrigenFueraDeRango() {
+        ArcKey.empaquetar(0, ArcKey.MAXIMO_INDICE + 1, 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rechazaDestinoFueraDeRango() {
+        ArcKey.empaquetar(0, 0, ArcKey.MAXIMO_INDICE + 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rechazaIndiceNegativo() {
+        ArcKey.empaquetar(0, -1, 0);
+    }
+}
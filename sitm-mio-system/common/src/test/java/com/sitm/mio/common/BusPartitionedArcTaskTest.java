@@ -0,0 +1,167 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * El cálculo de arcos no depende de cómo se parte: particiones de BusPartitionedArcTask,
+ * recorrido secuencial y motor en flujo
+ */
+public class BusPartitionedArcTaskTest {
+
+    private static final ArcFilterPipeline SIN_ATIPICOS =
+        new ArcFilterPipeline(0.1, 120.0, 30.0, 30.0, 0.01, 1.0, 120.0, 0, 30);
+    private static final ArcFilterPipeline CON_ATIPICOS =
+        new ArcFilterPipeline(0.1, 120.0, 30.0, 30.0, 0.01, 1.0, 120.0, 3.0, 30);
+
+    private static final Map<String, GraphNode> NODOS = new HashMap<>();
+
+    static {
+        for (int ruta = 0; ruta < 3; ruta++) {
+            for (int parada = 0; parada < 10; parada++) {
+                String id = parada(ruta, parada);
+                NODOS.put(id, new GraphNode(id, id, "PARADA", -76.53 + 0.004 * parada, 3.37 + 0.01 * ruta));
+            }
+        }
+    }
+
+    @Test
+    public void unaParticionYVariasDanLosMismosArcos() {
+        List<DatagramProcessor.Datagram> datagrams = trayectos(new Random(41), 60);
+        for (ArcFilterPipeline filtros : new ArcFilterPipeline[] {SIN_ATIPICOS, CON_ATIPICOS}) {
+            ArcKeyMap<DatagramProcessor.SpeedStatistics> una = BusPartitionedArcTask.acumular(datagrams, NODOS, filtros, 1);
+            for (int particiones : new int[] {2, 7, 64}) {
+                assertMismosArcos(DatagramProcessor.porTexto(una),
+                                  DatagramProcessor.porTexto(
+                                      BusPartitionedArcTask.acumular(datagrams, NODOS, filtros, particiones)));
+            }
+        }
+    }
+
+    @Test
+    public void laEtapaDeAtipicosDescartaLasMismasMuestrasConCualquierParticion() {
+        List<DatagramProcessor.Datagram> datagrams = trayectos(new Random(43), 60);
+        long todas = muestras(BusPartitionedArcTask.acumular(datagrams, NODOS, SIN_ATIPICOS, 5));
+        long aceptadasUna = muestras(BusPartitionedArcTask.acumular(datagrams, NODOS, CON_ATIPICOS, 1));
+
+        assertTrue("Los tiempos x10 deben quedar fuera de los límites", aceptadasUna < todas);
+        assertEquals(aceptadasUna, muestras(BusPartitionedArcTask.acumular(datagrams, NODOS, CON_ATIPICOS, 13)));
+    }
+
+    @Test
+    public void secuencialYParaleloCoincidenConLaEtapaDeAtipicos() {
+        // Hasta 1000 datagrams calcularVelocidadesReales recorre de forma secuencial
+        List<DatagramProcessor.Datagram> datagrams = trayectos(new Random(47), 12);
+        assertTrue(datagrams.size() <= 1000);
+        String anterior = System.setProperty("datagram.filter.atipicosK", "3.0");
+        try {
+            Map<String, DatagramProcessor.SpeedStatistics> secuencial =
+                DatagramProcessor.calcularVelocidadesReales(datagrams, NODOS);
+            Map<String, DatagramProcessor.SpeedStatistics> paralelo = DatagramProcessor.porTexto(
+                CON_ATIPICOS.filtrarValidas(BusPartitionedArcTask.acumular(datagrams, NODOS, CON_ATIPICOS, 4)));
+            assertMismosArcos(secuencial, paralelo);
+        } finally {
+            if (anterior == null) {
+                System.clearProperty("datagram.filter.atipicosK");
+            } else {
+                System.setProperty("datagram.filter.atipicosK", anterior);
+            }
+        }
+    }
+
+    @Test
+    public void secuencialYParaleloCoincidenConElFlujoPorTiempo() {
+        for (int buses : new int[] {12, 60}) {
+            List<DatagramProcessor.Datagram> datagrams = trayectos(new Random(53 + buses), buses);
+            List<DatagramProcessor.Datagram> porTiempo = new ArrayList<>(datagrams);
+            porTiempo.sort(Comparator.comparingLong(DatagramProcessor.Datagram::getTimestamp));
+
+            // 12 buses: recorrido secuencial; 60 buses: BusPartitionedArcTask
+            Map<String, DatagramProcessor.SpeedStatistics> reales =
+                DatagramProcessor.calcularVelocidadesReales(datagrams, NODOS);
+            assertFalse(reales.isEmpty());
+            assertMismosArcos(reales, DatagramProcessor.calcularVelocidadesEnFlujo(porTiempo, NODOS));
+        }
+    }
+
+    /**
+     * Buses que recorren su ruta tres veces (la secuencia es el viaje): 1 a 3 datagrams por parada
+     * (permanencia), tiempos entre paradas de 1,5 a 4 minutos con un 3% multiplicado por 10 y
+     * 40 minutos entre viajes.
+     * Los datagrams quedan mezclados entre buses, como llegan en un archivo
+     */
+    private static List<DatagramProcessor.Datagram> trayectos(Random random, int buses) {
+        List<DatagramProcessor.Datagram> datagrams = new ArrayList<>();
+        long inicio = 1_700_000_000_000L;
+        for (int bus = 0; bus < buses; bus++) {
+            int ruta = bus % 3;
+            long t = inicio + random.nextInt(600) * 1000L;
+            for (int viaje = 1; viaje <= 3; viaje++) {
+                for (int p = 0; p < 10; p++) {
+                    GraphNode nodo = NODOS.get(parada(ruta, p));
+                    int lecturas = 1 + random.nextInt(3);
+                    for (int l = 0; l < lecturas; l++) {
+                        datagrams.add(new DatagramProcessor.Datagram("BUS-" + bus, "RUTA-" + ruta, nodo.getId(),
+                                                                     nodo.getLatitud(), nodo.getLongitud(), t, viaje));
+                        t += 30_000L;
+                    }
+                    double minutos = 1.5 + 2.5 * random.nextDouble();
+                    if (random.nextInt(100) < 3) {
+                        minutos *= 10;
+                    }
+                    t += (long) (minutos * 60_000);
+                }
+                t += 40 * 60_000L;
+            }
+        }
+        // Mezcla determinística
+        for (int i = datagrams.size() - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            datagrams.set(i, datagrams.set(j, datagrams.get(i)));
+        }
+        return datagrams;
+    }
+
+    private static String parada(int ruta, int parada) {
+        return "PT-" + ruta + "-" + parada;
+    }
+
+    private static long muestras(ArcKeyMap<DatagramProcessor.SpeedStatistics> arcos) {
+        long[] total = {0};
+        arcos.forEach((clave, s) -> total[0] += s.getTiempos().getMuestras());
+        return total[0];
+    }
+
+    /**
+     * Mismas muestras por arco; las sumas solo cambian de orden (diferencias de redondeo)
+     */
+    private static void assertMismosArcos(Map<String, DatagramProcessor.SpeedStatistics> esperado,
+                                          Map<String, DatagramProcessor.SpeedStatistics> real) {
+        assertEquals(esperado.keySet(), real.keySet());
+        for (Map.Entry<String, DatagramProcessor.SpeedStatistics> e : esperado.entrySet()) {
+            DatagramProcessor.SpeedStatistics a = e.getValue();
+            DatagramProcessor.SpeedStatistics b = real.get(e.getKey());
+            String arco = e.getKey();
+            assertEquals(arco, a.getTiempos().getMuestras(), b.getTiempos().getMuestras());
+            assertEquals(arco, a.getTiempoMinimo(), b.getTiempoMinimo(), 0.0);
+            assertEquals(arco, a.getTiempoMaximo(), b.getTiempoMaximo(), 0.0);
+            assertEquals(arco, a.getTiempoPromedio(), b.getTiempoPromedio(), a.getTiempoPromedio() * 1e-12);
+            assertEquals(arco, a.getDistancia(), b.getDistancia(), 0.0);
+            assertNotNull(arco, b.getDistribucion());
+            assertEquals(arco, a.getDistribucion().getMuestras(), b.getDistribucion().getMuestras());
+            assertArrayEquals(arco, a.getDistribucion().getConteos(), b.getDistribucion().getConteos());
+        }
+    }
+}
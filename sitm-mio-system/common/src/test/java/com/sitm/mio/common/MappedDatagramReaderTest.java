@@ -0,0 +1,81 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Filtro de rutas sobre los bytes y registro de símbolos de MappedDatagramReader
+ */
+public class MappedDatagramReaderTest {
+
+    private static final String ENCABEZADO =
+        "eventType,registerdate,stopId,odometer,latitude,longitude,taskId,lineId,tripId,unknown1,datagramDate,busId";
+
+    @Test
+    public void lasFilasFiltradasORechazadasNoRegistranSimbolos() throws IOException {
+        File archivo = csv(
+            fila("MDR-P1", "MDR-R1", "MDR-B1", "2019-05-27 18:55:01"),
+            fila("MDR-P2", "MDR-R2", "MDR-B2", "2019-05-27 18:56:01"),   // Ruta fuera del filtro
+            fila("MDR-P3", "MDR-R1", "MDR-B3", "no-es-fecha"),           // Timestamp inválido
+            fila("MDR-P4", "MDR-R3", "MDR-B4", "no-es-fecha"));          // Ruta fuera y timestamp inválido
+        try {
+            ParseCounters contadores = new ParseCounters();
+            List<DatagramProcessor.Datagram> leidos = MappedDatagramReader.leerCompleto(
+                archivo.getPath(), new DatagramFilter().rutas(Arrays.asList("MDR-R1")), contadores);
+
+            assertEquals(1, leidos.size());
+            assertEquals("MDR-R1", leidos.get(0).getRouteId());
+            assertEquals(2, contadores.getFiltradas());
+            assertEquals(1, contadores.getTimestampInvalido());
+
+            SymbolTable simbolos = SymbolTable.global();
+            for (String id : new String[] {"MDR-R2", "MDR-R3", "MDR-P2", "MDR-P3", "MDR-P4",
+                                           "MDR-B2", "MDR-B3", "MDR-B4"}) {
+                assertEquals(id, -1, simbolos.buscar(id));
+            }
+            assertTrue(simbolos.buscar("MDR-P1") >= 0);
+        } finally {
+            assertTrue(archivo.delete());
+        }
+    }
+
+    @Test
+    public void sinFiltroDeRutasLaRutaSeRegistraAlAceptarLaFila() throws IOException {
+        File archivo = csv(
+            fila("MDS-P1", "MDS-R1", "MDS-B1", "2019-05-27 18:55:01"),
+            fila("MDS-P2", "MDS-R2", "MDS-B2", "no-es-fecha"));
+        try {
+            List<DatagramProcessor.Datagram> leidos =
+                MappedDatagramReader.leerCompleto(archivo.getPath(), null, null);
+
+            assertEquals(1, leidos.size());
+            assertEquals("MDS-R1", leidos.get(0).getRouteId());
+            assertEquals(-1, SymbolTable.global().buscar("MDS-R2"));
+        } finally {
+            assertTrue(archivo.delete());
+        }
+    }
+
+    private static String fila(String parada, String ruta, String bus, String fecha) {
+        return "0,27-May-19," + parada + ",100,3433999,-76474500,1," + ruta + ",7,-1," + fecha + "," + bus;
+    }
+
+    private static File csv(String... filas) throws IOException {
+        File archivo = File.createTempFile("datagrams-", ".csv");
+        StringBuilder contenido = new StringBuilder(ENCABEZADO).append('\n');
+        for (String fila : filas) {
+            contenido.append(fila).append('\n');
+        }
+        Files.write(archivo.toPath(), contenido.toString().getBytes(StandardCharsets.UTF_8));
+        return archivo;
+    }
+}
@@ -0,0 +1,188 @@
+package com.sitm.mio.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Combinación exacta, colapso de buckets y MAD de QuantileSketch
+ */
+public class QuantileSketchTest {
+
+    private static final double PRECISION = 0.01;
+    private static final double GAMMA = (1 + PRECISION) / (1 - PRECISION);
+    private static final double[] CUANTILES = {0.0, 0.01, 0.5, 0.85, 0.95, 1.0};
+
+    @Test
+    public void combinarEsIgualAUnSoloSketchConLasMismasMuestras() {
+        double[] muestras = tiemposDeViaje(new Random(13), 30000);
+        QuantileSketch unico = sketch(muestras);
+        QuantileSketch[] partes = {new QuantileSketch(GAMMA), new QuantileSketch(GAMMA), new QuantileSketch(GAMMA)};
+        for (int i = 0; i < muestras.length; i++) {
+            partes[i % partes.length].agregar(muestras[i]);
+        }
+
+        assertMismoSketch(unico, partes[0].copia().combinar(partes[1]).combinar(partes[2]));
+        assertMismoSketch(unico, partes[2].copia().combinar(partes[0]).combinar(partes[1]));
+    }
+
+    @Test
+    public void combinarConUnSketchVacioNoCambiaNada() {
+        QuantileSketch sketch = sketch(tiemposDeViaje(new Random(5), 1000));
+        QuantileSketch combinado = sketch.copia().combinar(new QuantileSketch(GAMMA));
+        assertMismoSketch(sketch, combinado);
+        assertMismoSketch(sketch, new QuantileSketch(GAMMA).combinar(sketch));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void combinarRechazaOtraPrecision() {
+        new QuantileSketch(GAMMA).combinar(new QuantileSketch(1.05));
+    }
+
+    @Test
+    public void colapsoDeBucketsConservaLasMuestrasYLaColaAlta() {
+        // Valores entre 1e-20 y 1e20: necesitarían unos 4600 buckets con 1% de precisión; los
+        // 2048 conservados cubren unas 17,8 décadas, desde ~1e2.2 (cerca del percentil 56)
+        Random random = new Random(29);
+        double[] muestras = new double[50000];
+        for (int i = 0; i < muestras.length; i++) {
+            muestras[i] = Math.pow(10, -20 + 40 * random.nextDouble());
+        }
+        QuantileSketch sketch = sketch(muestras);
+
+        assertTrue(sketch.getConteos().length <= QuantileSketch.MAX_BUCKETS);
+        assertEquals(muestras.length, sketch.getMuestras());
+        assertEquals(muestras.length, sketch.getCeros() + suma(sketch.getConteos()));
+
+        double[] ordenadas = muestras.clone();
+        Arrays.sort(ordenadas);
+        for (double q : new double[] {0.85, 0.95, 0.99, 1.0}) {
+            double exacto = cuantilExacto(ordenadas, q);
+            assertEquals("p" + q, exacto, sketch.cuantil(q), exacto * PRECISION);
+        }
+        // La cola baja cae en el primer bucket conservado: el cuantil se sobreestima, nunca se subestima
+        for (double q : new double[] {0.01, 0.5}) {
+            assertTrue("p" + q, sketch.cuantil(q) > cuantilExacto(ordenadas, q) * (1 + PRECISION));
+        }
+    }
+
+    @Test
+    public void elColapsoNoDependeDelOrdenNiDeLaCombinacion() {
+        Random random = new Random(31);
+        double[] muestras = new double[20000];
+        for (int i = 0; i < muestras.length; i++) {
+            muestras[i] = Math.pow(10, -20 + 40 * random.nextDouble());
+        }
+        double[] ascendentes = muestras.clone();
+        Arrays.sort(ascendentes);
+        double[] descendentes = new double[ascendentes.length];
+        for (int i = 0; i < ascendentes.length; i++) {
+            descendentes[i] = ascendentes[ascendentes.length - 1 - i];
+        }
+        // Cada mitad colapsa por su cuenta antes de combinarse
+        QuantileSketch bajos = sketch(Arrays.copyOfRange(ascendentes, 0, ascendentes.length / 2));
+        QuantileSketch altos = sketch(Arrays.copyOfRange(ascendentes, ascendentes.length / 2, ascendentes.length));
+
+        QuantileSketch referencia = sketch(muestras);
+        assertMismoSketch(referencia, sketch(ascendentes));
+        assertMismoSketch(referencia, sketch(descendentes));
+        assertMismoSketch(referencia, bajos.copia().combinar(altos));
+        assertMismoSketch(referencia, altos.copia().combinar(bajos));
+    }
+
+    @Test
+    public void desviacionMedianaContraMadExacta() {
+        Random random = new Random(7);
+        for (int caso = 0; caso < 4; caso++) {
+            double[] muestras = new double[caso == 0 ? 5 : 10001];
+            for (int i = 0; i < muestras.length; i++) {
+                switch (caso) {
+                    case 0:
+                        muestras[i] = new double[] {1, 2, 3, 4, 100}[i];
+                        break;
+                    case 1:
+                        muestras[i] = Math.max(0.1, 50 + 10 * random.nextGaussian());
+                        break;
+                    case 2:
+                        muestras[i] = Math.exp(1 + random.nextGaussian());
+                        break;
+                    default:
+                        // Un 30% de ceros (arcos sin tiempo medible) más una cola larga
+                        muestras[i] = random.nextDouble() < 0.3 ? 0.0 : 5 * random.nextDouble() / (1 - random.nextDouble());
+                        break;
+                }
+            }
+            double[] ordenadas = muestras.clone();
+            Arrays.sort(ordenadas);
+            double mediana = cuantilExacto(ordenadas, 0.5);
+            double[] desviaciones = new double[ordenadas.length];
+            for (int i = 0; i < ordenadas.length; i++) {
+                desviaciones[i] = Math.abs(ordenadas[i] - mediana);
+            }
+            Arrays.sort(desviaciones);
+            double mad = cuantilExacto(desviaciones, 0.5);
+
+            // Cada valor del sketch tiene error relativo <= PRECISION: |x - p50| se mueve como
+            // mucho PRECISION * (x + p50), con x cerca de p50 + MAD
+            double tolerancia = PRECISION * (2 * mediana + mad) + 1e-9;
+            assertEquals("caso " + caso, mad, sketch(muestras).desviacionMediana(), tolerancia);
+        }
+    }
+
+    @Test
+    public void sketchVacioRetornaCero() {
+        QuantileSketch sketch = new QuantileSketch(GAMMA);
+        assertEquals(0.0, sketch.cuantil(0.5), 0.0);
+        assertEquals(0.0, sketch.desviacionMediana(), 0.0);
+    }
+
+    private static QuantileSketch sketch(double[] muestras) {
+        QuantileSketch sketch = new QuantileSketch(GAMMA);
+        for (double m : muestras) {
+            sketch.agregar(m);
+        }
+        return sketch;
+    }
+
+    /**
+     * Tiempos de viaje en minutos (log-normales) con algunos ceros
+     */
+    private static double[] tiemposDeViaje(Random random, int cantidad) {
+        double[] tiempos = new double[cantidad];
+        for (int i = 0; i < cantidad; i++) {
+            tiempos[i] = random.nextInt(50) == 0 ? 0.0 : Math.exp(1.5 + 0.7 * random.nextGaussian());
+        }
+        return tiempos;
+    }
+
+    /**
+     * Mismo criterio de rango que QuantileSketch.cuantil
+     */
+    private static double cuantilExacto(double[] ordenadas, double q) {
+        return ordenadas[(int) Math.floor(q * (ordenadas.length - 1))];
+    }
+
+    private static long suma(int[] conteos) {
+        long total = 0;
+        for (int c : conteos) {
+            total += c;
+        }
+        return total;
+    }
+
+    private static void assertMismoSketch(QuantileSketch esperado, QuantileSketch real) {
+        assertEquals(esperado.getMuestras(), real.getMuestras());
+        assertEquals(esperado.getCeros(), real.getCeros());
+        assertEquals(esperado.getIndiceMinimo(), real.getIndiceMinimo());
+        assertArrayEquals(esperado.getConteos(), real.getConteos());
+        for (double q : CUANTILES) {
+            assertEquals("p" + q, esperado.cuantil(q), real.cuantil(q), 0.0);
+        }
+        assertEquals(esperado.desviacionMediana(), real.desviacionMediana(), 0.0);
+    }
+}
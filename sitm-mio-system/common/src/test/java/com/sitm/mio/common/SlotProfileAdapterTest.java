@@ -0,0 +1,48 @@
+package com.sitm.mio.common;
+
+import DatagramProcessing.ArcSlotProfile;
+import org.junit.Test;
+
+import java.time.ZoneId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ida y vuelta de SlottedArcProfile por el ArcSlotProfile de Ice
+ */
+public class SlotProfileAdapterTest {
+
+    @Test
+    public void idsConGuionNoSeConfundenAlCruzarIce() {
+        // Con una clave "routeId-origen-destino" ambos arcos serían "R-1-A-B"
+        long primero = ArcKey.de("R-1", "A", "B");
+        long segundo = ArcKey.de("R", "1-A", "B");
+        SlottedArcProfile perfil = new SlottedArcProfile(15, true, ZoneId.of("America/Bogota"));
+        perfil.agregarCelda(primero, 1.5, 30, 4, 10.0);
+        perfil.agregarCelda(segundo, 0.8, 100, 2, 3.0);
+
+        ArcSlotProfile ice = SlotProfileAdapter.aIce(perfil);
+        SlottedArcProfile recibido = SlotProfileAdapter.desdeIce(ice);
+
+        assertEquals(2, recibido.getNumArcos());
+        int a = recibido.buscarArco(primero);
+        int b = recibido.buscarArco(segundo);
+        assertTrue(a >= 0 && b >= 0 && a != b);
+        assertEquals(4, recibido.getMuestras(a, 30));
+        assertEquals(10.0, recibido.getSumaTiempos(a, 30), 0.0);
+        assertEquals(1.5, recibido.getDistancia(a), 0.0);
+        assertEquals(2, recibido.getMuestras(b, 100));
+        assertEquals(0.8, recibido.getDistancia(b), 0.0);
+        assertTrue(recibido.isSepararFinDeSemana());
+        assertEquals("America/Bogota", recibido.getZona().getId());
+    }
+
+    @Test
+    public void sinPerfilViajaVacioYVuelveNull() {
+        ArcSlotProfile ice = SlotProfileAdapter.aIce(null);
+        assertEquals(0, ice.minutosSlot);
+        assertNull(SlotProfileAdapter.desdeIce(ice));
+    }
+}
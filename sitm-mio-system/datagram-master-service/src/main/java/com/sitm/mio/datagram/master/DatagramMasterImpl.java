@@ -1,30 +1,69 @@
 package com.sitm.mio.datagram.master;
 
 import DatagramProcessing.*;
+import com.sitm.mio.common.ArcAccumulator;
+import com.sitm.mio.common.ArcFilterPipeline;
+import com.sitm.mio.common.ArcKeyMap;
+import com.sitm.mio.common.DatagramFileFollower;
+import com.sitm.mio.common.DatagramProcessor;
+import com.sitm.mio.common.MappedDatagramReader;
+import com.sitm.mio.common.ParseCounters;
+import com.sitm.mio.common.QuantileSketch;
+import com.sitm.mio.common.SlotProfileAdapter;
+import com.sitm.mio.common.SlottedArcProfile;
 import com.zeroc.Ice.Current;
 
+import java.time.ZoneId;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementación del servicio Master para procesamiento distribuido de datagrams
  * Patrón: Master-Worker, Asynchronous Queuing
+ * OPTIMIZACIÓN: Cada job tiene un CompletableFuture que se completa cuando termina su último lote;
+ * no hay hilos esperando con sleep y los clientes suscritos (JobCallback) reciben el avance y el fin
  */
 public class DatagramMasterImpl implements DatagramMaster {
     
-    private final Map<String, DatagramWorkerPrx> workers;
+    private final Map<String, WorkerSlot> workers;
     private final Map<String, JobStatus> jobs;
-    private final BlockingQueue<BatchTask> pendingBatches;
+    private final BlockingDeque<BatchTask> pendingBatches;
+    private final Semaphore lotesEnMemoria; // Lotes en cola o en vuelo (se libera al combinar el resultado)
+    private final Deque<EnvioEnEspera> enviosEnEspera = new ArrayDeque<>(); // submitBatch sin permiso (lock propio)
+    private final Object capacidad = new Object(); // Se notifica al recibir créditos o al terminar una pausa
+    private static final long PAUSA_BASE_MS = 1000;   // Pausa después del primer fallo seguido
+    private static final long PAUSA_MAXIMA_MS = 30000; // Tope del backoff exponencial
+    private final long esperaSinWorkersMs; // Tiempo sin workers utilizables antes de fallar los jobs
+    private long sinWorkersDesde = -1;     // Desde cuándo no hay workers utilizables (monitor capacidad)
+    private final int intentosPorLote; // Intentos de un lote antes de marcar su job como FAILED
+    
     private final ExecutorService executorService;
+    private final ExecutorService mergeExecutor; // Convierte y combina los resultados de los lotes
     private final AtomicInteger jobCounter;
     private volatile boolean running;
     
     public DatagramMasterImpl() {
         this.workers = new ConcurrentHashMap<>();
         this.jobs = new ConcurrentHashMap<>();
-        this.pendingBatches = new LinkedBlockingQueue<>();
+        this.pendingBatches = new LinkedBlockingDeque<>();
+        this.lotesEnMemoria = new Semaphore(Math.max(1, Integer.getInteger("datagram.master.lotesEnMemoria", 256)));
+        this.intentosPorLote = Math.max(1, Integer.getInteger("datagram.master.intentosPorLote", 3));
+        this.esperaSinWorkersMs = Math.max(1000, Long.getLong("datagram.master.esperaSinWorkersMs", 60000L));
         this.executorService = Executors.newCachedThreadPool();
+        // Los callbacks AMI llegan por el pool cliente de Ice (un hilo por defecto): la conversión
+        // y la combinación se pasan a este pool para no frenar las demás respuestas y para que
+        // los segmentos del StripedResultMerger tengan varios hilos combinando a la vez.
+        // Cola sin límite: cada resultado en espera ya tiene su permiso de lotesEnMemoria
+        int hilosCombinacion = Math.max(1, Integer.getInteger("datagram.master.hilosCombinacion",
+                                                              Runtime.getRuntime().availableProcessors()));
+        AtomicInteger hilos = new AtomicInteger(0);
+        this.mergeExecutor = Executors.newFixedThreadPool(hilosCombinacion, r -> {
+            Thread hilo = new Thread(r, "master-combinar-" + hilos.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
         this.jobCounter = new AtomicInteger(0);
         this.running = true;
         
@@ -33,11 +72,18 @@ public class DatagramMasterImpl implements DatagramMaster {
     }
     
     @Override
-    public String registerWorker(DatagramWorkerPrx worker, Current current) {
+    public String registerWorker(DatagramWorkerPrx worker, WorkerCapacity capacidad, Current current) {
         String workerId = "worker-" + UUID.randomUUID().toString().substring(0, 8);
-        workers.put(workerId, worker);
+        // Un crédito por lugar anunciado: el Worker recibe lotes en paralelo desde el registro
+        WorkerSlot slot = new WorkerSlot(workerId, worker, capacidad);
+        synchronized (this.capacidad) {
+            slot.creditos = slot.slots;
+            workers.put(workerId, slot);
+            this.capacidad.notifyAll();
+        }
         System.out.println("Worker registrado: " + workerId + " desde " + 
-                          current.con.toString());
+                          current.con.toString() + " (" + capacidad.cores + " núcleos, " +
+                          capacidad.memoriaMb + " MB, " + slot.slots + " lugares)");
         return workerId;
     }
     
@@ -48,7 +94,8 @@ public class DatagramMasterImpl implements DatagramMaster {
     }
     
     @Override
-    public String processFile(String filePath, GraphNode[] nodes, int batchSize, Current current) {
+    public String processFile(String filePath, GraphNode[] nodes, int batchSize, DatagramFilter filter,
+                              ArcFilterConfig filtros, SlotProfileConfig perfil, Current current) {
         String jobId = "job-" + jobCounter.incrementAndGet();
         
         // Crear job
@@ -56,13 +103,16 @@ public class DatagramMasterImpl implements DatagramMaster {
         job.jobId = jobId;
         job.filePath = filePath;
         job.totalBatches = 0;
-        job.completedBatches = 0;
         job.status = "PROCESSING";
-        job.results = new ConcurrentHashMap<>();
+        job.results = new ArcKeyMap<>();
+        job.filtro = convertirFiltro(filter);
+        compilarFiltros(job, filtros, true);
+        prepararPerfil(job, perfil);
         jobs.put(jobId, job);
         
         System.out.println("Iniciando procesamiento distribuido: " + jobId + 
-                         " (archivo: " + filePath + ", batchSize: " + batchSize + ")");
+                         " (archivo: " + filePath + ", batchSize: " + batchSize + ", " + job.filtro + ")");
+        System.out.println("Filtros de arcos: " + job.pipeline);
         
         // Procesar archivo en lotes de forma asíncrona
         executorService.submit(() -> {
@@ -70,8 +120,7 @@ public class DatagramMasterImpl implements DatagramMaster {
                 procesarArchivoEnLotes(job, filePath, nodes, batchSize);
             } catch (Exception e) {
                 System.err.println("Error procesando archivo: " + e.getMessage());
-                job.status = "FAILED";
-                job.errorMessage = e.getMessage();
+                finalizarJob(job, "FAILED", e.getMessage());
             }
         });
         
@@ -83,18 +132,101 @@ public class DatagramMasterImpl implements DatagramMaster {
         JobStatus job = jobs.get(jobId);
         if (job == null) return -1;
         
-        if (job.totalBatches == 0) return 0;
-        return (int)((job.completedBatches * 100.0) / job.totalBatches);
+        int progreso = job.totalBatches == 0 ? 0 : (int)((job.completedBatches.get() * 100.0) / job.totalBatches);
+        // 100 solo al terminar: con processFile totalBatches crece mientras el Master lee el archivo
+        return "COMPLETED".equals(job.status) ? 100 : Math.min(progreso, 99);
+    }
+    
+    @Override
+    public JobInfo getJobInfo(String jobId, Current current) {
+        JobStatus job = jobs.get(jobId);
+        if (job == null) {
+            return new JobInfo("", "", 0, 0, 0);
+        }
+        synchronized (job) {
+            return new JobInfo(job.status, job.errorMessage != null ? job.errorMessage : "",
+                               job.completedBatches.get(), job.totalBatches, job.paradasDesconocidas.get());
+        }
+    }
+    
+    @Override
+    public boolean subscribeJob(String jobId, JobCallbackPrx callback, Current current) {
+        JobStatus job = jobs.get(jobId);
+        if (job == null || callback == null) {
+            return false;
+        }
+        // Responder por la conexión del cliente: no necesita endpoints propios
+        JobCallbackPrx observador = current.con != null ? callback.ice_fixed(current.con) : callback;
+        job.observadores.add(observador);
+        // Se ejecuta una sola vez: ahora si el job ya terminó o cuando termine
+        job.terminado.thenAccept(estado -> notificarFin(job, observador, estado));
+        return true;
     }
     
     @Override
     public SpeedStatistics[] getJobResults(String jobId, Current current) {
         JobStatus job = jobs.get(jobId);
-        if (job == null || !"COMPLETED".equals(job.status)) {
+        if (job == null || !("COMPLETED".equals(job.status) || "FOLLOWING".equals(job.status))) {
             return new SpeedStatistics[0];
         }
         
-        return job.results.values().toArray(new SpeedStatistics[0]);
+        // Los parciales de los Workers se combinaron sin filtros: los filtros de velocidad
+        // se aplican una sola vez sobre el total
+        consolidar(job);
+        List<DatagramProcessor.SpeedStatistics> validas;
+        synchronized (job) {
+            validas = job.pipeline.filtrarValidas(job.results).valores();
+        }
+        SpeedStatistics[] resultado = new SpeedStatistics[validas.size()];
+        int i = 0;
+        for (DatagramProcessor.SpeedStatistics s : validas) {
+            resultado[i++] = convertirEstadistica(s);
+        }
+        return resultado;
+    }
+    
+    @Override
+    public RejectedRows getJobRejectedRows(String jobId, Current current) {
+        JobStatus job = jobs.get(jobId);
+        if (job == null) {
+            return new RejectedRows();
+        }
+        ParseCounters r = job.rechazos;
+        return new RejectedRows(r.getColumnaFaltante(), r.getCoordenadaInvalida(),
+                                r.getTimestampInvalido(), r.getSecuenciaInvalida());
+    }
+    
+    @Override
+    public ArcSlotProfile getJobSlotProfile(String jobId, Current current) {
+        JobStatus job = jobs.get(jobId);
+        if (job == null) {
+            return SlotProfileAdapter.aIce(null);
+        }
+        consolidar(job);
+        synchronized (job) {
+            return SlotProfileAdapter.aIce(job.perfil);
+        }
+    }
+    
+    @Override
+    public DwellStatistics[] getJobDwellResults(String jobId, Current current) {
+        JobStatus job = jobs.get(jobId);
+        if (job == null) {
+            return new DwellStatistics[0];
+        }
+        consolidar(job);
+        List<DatagramProcessor.DwellStatistics> permanencias;
+        synchronized (job) {
+            permanencias = job.permanencias.valores();
+        }
+        DwellStatistics[] resultado = new DwellStatistics[permanencias.size()];
+        int i = 0;
+        for (DatagramProcessor.DwellStatistics p : permanencias) {
+            resultado[i++] = new DwellStatistics(p.getRouteId(), p.getStopId(), p.getNumVisitas(),
+                                                 p.getTiempos().getSuma(), p.getTiempos().getSumaCuadrados(),
+                                                 p.getTiempoMinimo(), p.getTiempoMaximo());
+        }
+        return resultado;
     }
     
     @Override
@@ -103,7 +235,69 @@ public class DatagramMasterImpl implements DatagramMaster {
     }
     
     @Override
-    public String startJob(GraphNode[] nodes, int totalBatches, Current current) {
+    public int getWorkerSlots(Current current) {
+        int total = 0;
+        for (WorkerSlot worker : workers.values()) {
+            total += worker.slots;
+        }
+        return total;
+    }
+    
+    @Override
+    public String followFile(String filePath, GraphNode[] nodes, ArcFilterConfig filtros, Current current) {
+        String jobId = "job-" + jobCounter.incrementAndGet();
+        
+        JobStatus job = new JobStatus();
+        job.jobId = jobId;
+        job.filePath = filePath;
+        job.totalBatches = 0;
+        job.status = "FOLLOWING";
+        job.results = new ArcKeyMap<>();
+        compilarFiltros(job, filtros, false);
+        job.follower = new DatagramFileFollower(filePath, convertirNodos(nodes), job.pipeline);
+        jobs.put(jobId, job);
+        
+        System.out.println("Siguiendo archivo de forma incremental: " + jobId + " (archivo: " + filePath + ")");
+        
+        // Las filas nuevas llegan poco a poco: se procesan en el Master sin repartir lotes
+        executorService.submit(() -> {
+            try {
+                job.follower.seguir((estadisticas, filasNuevas) -> {
+                    ArcKeyMap<DatagramProcessor.SpeedStatistics> porArco = new ArcKeyMap<>(estadisticas.size());
+                    DatagramProcessor.combinarEn(porArco, estadisticas.values());
+                    ArcKeyMap<DatagramProcessor.DwellStatistics> permanencias = job.follower.permanencias();
+                    synchronized (job) {
+                        job.results = porArco;
+                        job.permanencias = permanencias;
+                    }
+                    System.out.println("Job " + jobId + ": " + filasNuevas + " datagrams nuevos, " +
+                                     estadisticas.size() + " arcos");
+                });
+                finalizarJob(job, "COMPLETED", null);
+            } catch (Exception e) {
+                System.err.println("Error siguiendo archivo: " + e.getMessage());
+                finalizarJob(job, "FAILED", e.getMessage());
+            }
+        });
+        
+        return jobId;
+    }
+    
+    @Override
+    public void stopFollowing(String jobId, Current current) {
+        JobStatus job = jobs.get(jobId);
+        if (job == null || job.follower == null) {
+            System.err.println("Job de seguimiento no encontrado: " + jobId);
+            return;
+        }
+        job.follower.detener();
+        finalizarJob(job, "COMPLETED", null);
+        System.out.println("Seguimiento detenido: " + jobId);
+    }
+    
+    @Override
+    public String startJob(GraphNode[] nodes, int totalBatches, DatagramFilter filter, ArcFilterConfig filtros,
+                           SlotProfileConfig perfil, Current current) {
         String jobId = "job-" + jobCounter.incrementAndGet();
         
         // Crear job
@@ -111,97 +305,102 @@ public class DatagramMasterImpl implements DatagramMaster {
         job.jobId = jobId;
         job.filePath = null; // No hay archivo, el cliente envía los lotes
         job.totalBatches = totalBatches;
-        job.completedBatches = 0;
         job.status = "PROCESSING";
-        job.results = new ConcurrentHashMap<>();
+        job.results = new ArcKeyMap<>();
         // Guardar los nodos del grafo para usar en los lotes
         job.nodes = nodes;
+        job.filtro = convertirFiltro(filter);
+        compilarFiltros(job, filtros, true);
+        prepararPerfil(job, perfil);
         jobs.put(jobId, job);
         
         System.out.println("Iniciando job sin archivo: " + jobId + 
-                         " (totalBatches: " + totalBatches + ")");
+                         " (totalBatches: " + totalBatches + ", " + job.filtro + ")");
         
         return jobId;
     }
     
     @Override
-    public boolean submitBatch(String jobId, Datagram[] batch, int batchNumber, Current current) {
+    public CompletionStage<Boolean> submitBatchAsync(String jobId, Datagram[] batch, int batchNumber,
+                                                     Current current) {
         JobStatus job = jobs.get(jobId);
         if (job == null) {
             System.err.println("Job no encontrado: " + jobId);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         
         if (!"PROCESSING".equals(job.status)) {
             System.err.println("Job no está en estado PROCESSING: " + jobId);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         
         // Usar los nodos guardados en el job
         GraphNode[] nodesArray = job.nodes;
         if (nodesArray == null) {
             System.err.println("Job no tiene nodos del grafo: " + jobId);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         
-        // Convertir Datagram[] a List<Datagram>
-        List<Datagram> batchList = new ArrayList<>();
-        for (Datagram dg : batch) {
-            batchList.add(dg);
+        // Convertir Datagram[] a List<Datagram>, descartando lo que el filtro del job no acepta
+        // (el cliente ya filtra al leer; eventType no viaja en el Datagram de Ice)
+        com.sitm.mio.common.DatagramFilter filtro = job.filtro;
+        boolean sinFiltros = filtro == null || filtro.esVacio();
+        Datagram[] aceptados = batch;
+        if (!sinFiltros) {
+            List<Datagram> batchList = new ArrayList<>(batch.length);
+            for (Datagram dg : batch) {
+                if (filtro.aceptaRuta(dg.routeId) && filtro.aceptaTimestamp(dg.timestamp) &&
+                    filtro.aceptaPosicion(dg.latitude, dg.longitude)) {
+                    batchList.add(dg);
+                }
+            }
+            aceptados = batchList.toArray(new Datagram[0]);
         }
         
         // Crear tarea de lote
         String batchId = jobId + "-batch-" + batchNumber;
-        BatchTask task = new BatchTask(batchId, jobId, batchList, nodesArray);
-        
-        // Enviar a la cola de procesamiento
-        pendingBatches.offer(task);
+        BatchTask task = new BatchTask(batchId, jobId, aceptados, nodesArray, job.filtrosIce, job.perfilIce);
+        synchronized (job) {
+            job.lotesRecibidos++;
+        }
         
         System.out.println("Lote recibido: " + batchId + " (" + batch.length + " datagrams)");
         
-        return true;
+        // Enviar a la cola de procesamiento; si el Master ya tiene el máximo de lotes en memoria, la
+        // respuesta espera un permiso (la presión llega al cliente sin bloquear el hilo de Ice)
+        return encolarAsync(task);
     }
     
     @Override
-    public void completeJob(String jobId, Current current) {
+    public void completeJob(String jobId, RejectedRows rejected, Current current) {
         JobStatus job = jobs.get(jobId);
         if (job == null) {
             System.err.println("Job no encontrado: " + jobId);
             return;
         }
         
-        System.out.println("Job marcado como completado (esperando procesamiento): " + jobId);
+        // Filas que el cliente descartó al leer el archivo
+        sumarRechazos(job, rejected);
         
-        // Iniciar monitoreo del job en un hilo separado
-        executorService.submit(() -> {
-            try {
-                // Esperar a que todos los lotes se completen
-                while (job.completedBatches < job.totalBatches) {
-                    Thread.sleep(1000);
-                }
-                
-                job.status = "COMPLETED";
-                System.out.println("Job completado: " + jobId + 
-                                 " (" + job.totalBatches + " lotes procesados)");
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                job.status = "FAILED";
-                job.errorMessage = "Interrumpido";
-            }
-        });
+        // El total de startJob es una estimación del cliente: el job termina con los lotes recibidos
+        synchronized (job) {
+            job.totalBatches = job.lotesRecibidos;
+        }
+        System.out.println("Job marcado como completado (esperando procesamiento): " + jobId);
+        cerrarLotes(job);
     }
     
     /**
      * Procesa un archivo dividiéndolo en lotes
+     * OPTIMIZACIÓN: Usa MappedDatagramReader; con datagram.reader.hilos > 1 el archivo se divide
+     * en rangos de bytes alineados a líneas que se parsean en paralelo (encabezados detectados una vez)
+     * Con datagram.master.ordenarLotes=true (por defecto false) los lotes salen del ordenamiento externo:
+     * cada trayecto queda en un lote, pero el archivo se lee con un solo hilo y no se envía ningún
+     * lote hasta haberlo volcado completo; sin ordenar, los lotes se envían mientras se lee en paralelo
+     * Los filtros del job se evalúan al escanear: las filas descartadas no se ordenan ni se envían
      */
     private void procesarArchivoEnLotes(JobStatus job, String filePath, 
                                        GraphNode[] nodes, int batchSize) throws java.lang.Exception {
-        List<Datagram> currentBatch = new ArrayList<>(batchSize);
-        int batchNumber = 0;
-        
-        // Convertir GraphNodeList a mapa para DatagramProcessor
-        Map<String, com.sitm.mio.common.GraphNode> nodeMap = convertirNodes(nodes);
-        
         // Leer archivo y crear lotes
         // Soporta rutas locales, UNC (\\server\share) y unidades de red
         java.io.File archivo = new java.io.File(filePath);
@@ -211,110 +410,184 @@ public class DatagramMasterImpl implements DatagramMaster {
             System.out.println("Intentando acceder como ruta de red...");
         }
         
-        try (java.io.BufferedReader br = new java.io.BufferedReader(
-                new java.io.InputStreamReader(
-                    new java.io.FileInputStream(filePath), 
-                    java.nio.charset.StandardCharsets.UTF_8))) {
-            
-            String primeraLinea = br.readLine();
-            if (primeraLinea == null) {
-                throw new Exception("Archivo vacío");
+        DatagramProcessor.BatchCallback encolar = (batch, batchNumber) -> {
+            String batchId = job.jobId + "-batch-" + batchNumber;
+            BatchTask task = new BatchTask(batchId, job.jobId, convertirDatagrams(batch), nodes, job.filtrosIce,
+                                           job.perfilIce);
+            synchronized (job) {
+                job.totalBatches++;
             }
-            
-            // Detectar si la primera línea es encabezados o datos
-            String[] primeraLineaCampos = parsearCSV(primeraLinea);
-            boolean tieneEncabezados = detectarSiTieneEncabezados(primeraLineaCampos);
-            
-            Map<String, Integer> indices;
-            String lineaDatos;
-            
-            if (tieneEncabezados) {
-                // La primera línea son encabezados
-                indices = mapearEncabezados(primeraLineaCampos);
-                lineaDatos = null; // Leeremos la siguiente línea
-            } else {
-                // No hay encabezados, usar orden predefinido
-                System.out.println("⚠ Archivo sin encabezados detectado. Usando orden predefinido de columnas.");
-                indices = crearIndicesSinEncabezados(primeraLineaCampos.length);
-                lineaDatos = primeraLinea; // La primera línea ya es un dato
+            encolar(task);
+        };
+        
+        if (Boolean.parseBoolean(System.getProperty("datagram.master.ordenarLotes", "false"))) {
+            // Lotes en orden (bus, ruta, timestamp) con ordenamiento externo: los trayectos
+            // no quedan repartidos entre lotes y la memoria del master queda acotada
+            DatagramProcessor.cargarDatagramsOrdenados(filePath, batchSize, job.filtro, job.rechazos, encolar);
+        } else {
+            // Cada rango del archivo entrega sus propios lotes numerados (callback concurrente)
+            DatagramProcessor.cargarDatagrams(filePath, batchSize, MappedDatagramReader.hilosConfigurados(),
+                                              job.filtro, job.rechazos, encolar);
+        }
+        System.out.println("Job " + job.jobId + " - filas leídas: " + job.rechazos);
+        
+        // El job termina cuando se complete el último lote encolado (ver verificarTerminado)
+        cerrarLotes(job);
+    }
+    
+    /**
+     * Marca que el job ya no recibirá más lotes y lo finaliza si todos están completos
+     */
+    private void cerrarLotes(JobStatus job) {
+        synchronized (job) {
+            job.lotesCerrados = true;
+        }
+        verificarTerminado(job);
+    }
+    
+    /**
+     * Notifica el avance (si cambió el porcentaje) y finaliza el job cuando se completó su último lote
+     */
+    private void verificarTerminado(JobStatus job) {
+        int completados;
+        int total;
+        boolean avance;
+        boolean completo;
+        synchronized (job) {
+            completados = job.completedBatches.get();
+            total = job.totalBatches;
+            int porcentaje = total > 0 ? (int) ((completados * 100L) / total) : 0;
+            avance = porcentaje != job.ultimoPorcentaje;
+            job.ultimoPorcentaje = porcentaje;
+            completo = job.lotesCerrados && completados >= total;
+        }
+        if (avance) {
+            for (JobCallbackPrx observador : job.observadores) {
+                observador.jobProgressAsync(job.jobId, completados, total)
+                    .whenComplete((r, error) -> quitarObservadorSiFalla(job, observador, error));
             }
-            
-            // Leer datos
-            if (lineaDatos != null) {
-                String[] campos = parsearCSV(lineaDatos);
-                try {
-                    Datagram dg = parsearDatagram(campos, indices);
-                    if (dg != null) {
-                        currentBatch.add(dg);
-                        if (currentBatch.size() >= batchSize) {
-                            String batchId = job.jobId + "-batch-" + batchNumber++;
-                            BatchTask task = new BatchTask(batchId, job.jobId, 
-                                                          new ArrayList<>(currentBatch), nodes);
-                            pendingBatches.offer(task);
-                            job.totalBatches++;
-                            currentBatch.clear();
-                        }
-                    }
-                } catch (Exception e) {
-                    // Ignorar líneas con errores
-                }
+        }
+        if (completo) {
+            finalizarJob(job, "COMPLETED", null);
+        }
+    }
+    
+    /**
+     * Fija el estado final y completa el future del job (solo la primera vez)
+     * Los callbacks suscritos reciben jobCompleted desde el future
+     */
+    private void finalizarJob(JobStatus job, String estado, String error) {
+        // Todos los lotes ya están en los segmentos: los resultados finales quedan en el job
+        consolidar(job);
+        synchronized (job) {
+            if (job.terminado.isDone()) {
+                return;
             }
-            
-            String linea;
-            while ((linea = br.readLine()) != null) {
-                if (linea.trim().isEmpty()) continue;
-                
-                String[] campos = parsearCSV(linea);
-                
-                try {
-                    Datagram dg = parsearDatagram(campos, indices);
-                    if (dg != null) {
-                        currentBatch.add(dg);
-                        
-                        if (currentBatch.size() >= batchSize) {
-                            // Enviar lote para procesamiento
-                            String batchId = job.jobId + "-batch-" + batchNumber++;
-                            BatchTask task = new BatchTask(batchId, job.jobId, 
-                                                          new ArrayList<>(currentBatch), nodes);
-                            pendingBatches.offer(task);
-                            job.totalBatches++;
-                            currentBatch.clear();
-                        }
-                    }
-                } catch (Exception e) {
-                    // Ignorar líneas con errores
+            job.status = estado;
+            job.errorMessage = error;
+        }
+        if ("COMPLETED".equals(estado)) {
+            System.out.println("Job completado: " + job.jobId +
+                             " (" + job.completedBatches.get() + " lotes procesados, " +
+                             job.rechazos.totalRechazadas() + " filas inválidas)");
+        } else if ("FAILED".equals(estado)) {
+            System.err.println("Job fallido: " + job.jobId + " (" + error + ")");
+        }
+        job.terminado.complete(estado);
+    }
+    
+    /**
+     * Envía jobCompleted a un callback suscrito (asíncrono: no bloquea el hilo que termina el job)
+     */
+    private void notificarFin(JobStatus job, JobCallbackPrx observador, String estado) {
+        String error = job.errorMessage != null ? job.errorMessage : "";
+        observador.jobCompletedAsync(job.jobId, estado, error)
+            .whenComplete((r, e) -> job.observadores.remove(observador));
+    }
+    
+    private void quitarObservadorSiFalla(JobStatus job, JobCallbackPrx observador, Throwable error) {
+        if (error != null && job.observadores.remove(observador)) {
+            System.err.println("Job " + job.jobId + ": callback del cliente no disponible (" + error + ")");
+        }
+    }
+    
+    /**
+     * Encola un lote nuevo; bloquea mientras haya datagram.master.lotesEnMemoria lotes sin terminar
+     */
+    private void encolar(BatchTask task) {
+        lotesEnMemoria.acquireUninterruptibly();
+        pendingBatches.offerLast(task);
+    }
+    
+    /**
+     * Encola un lote de submitBatch sin bloquear: sin permiso libre, el lote queda en espera y la
+     * respuesta se completa cuando liberarPermiso le pasa uno (en orden de llegada)
+     */
+    private CompletableFuture<Boolean> encolarAsync(BatchTask task) {
+        synchronized (enviosEnEspera) {
+            if (enviosEnEspera.isEmpty() && lotesEnMemoria.tryAcquire()) {
+                pendingBatches.offerLast(task);
+                return CompletableFuture.completedFuture(true);
+            }
+            EnvioEnEspera envio = new EnvioEnEspera(task);
+            enviosEnEspera.offerLast(envio);
+            return envio.respuesta;
+        }
+    }
+    
+    /**
+     * Libera el permiso de un lote terminado o descartado; si hay envíos en espera, el permiso pasa
+     * directamente al primero (los de jobs ya terminados se rechazan y el permiso sigue al siguiente)
+     */
+    private void liberarPermiso() {
+        EnvioEnEspera envio;
+        List<EnvioEnEspera> rechazados = new ArrayList<>(0);
+        synchronized (enviosEnEspera) {
+            while ((envio = enviosEnEspera.pollFirst()) != null) {
+                JobStatus job = jobs.get(envio.task.jobId);
+                if (job != null && !job.terminado.isDone()) {
+                    pendingBatches.offerLast(envio.task);
+                    break;
                 }
+                rechazados.add(envio);
             }
-            
-            // Procesar último lote
-            if (!currentBatch.isEmpty()) {
-                String batchId = job.jobId + "-batch-" + batchNumber++;
-                BatchTask task = new BatchTask(batchId, job.jobId, 
-                                              currentBatch, nodes);
-                pendingBatches.offer(task);
-                job.totalBatches++;
+            if (envio == null) {
+                lotesEnMemoria.release();
             }
         }
-        
-        // Esperar a que todos los lotes se completen
-        while (job.completedBatches < job.totalBatches) {
-            Thread.sleep(1000);
+        // Las respuestas se envían fuera del lock
+        if (envio != null) {
+            envio.respuesta.complete(true);
+        }
+        for (EnvioEnEspera r : rechazados) {
+            r.respuesta.complete(false);
         }
-        
-        job.status = "COMPLETED";
-        System.out.println("Job completado: " + job.jobId + 
-                         " (" + job.totalBatches + " lotes procesados)");
     }
     
     /**
-     * Dispatcher de lotes a workers disponibles
+     * Dispatcher de lotes a workers con créditos
+     * OPTIMIZACIÓN: Un solo hilo envía los lotes con processBatchAsync (AMI); los resultados llegan
+     * por callback, así los hilos del Master no crecen con la cola ni con el número de lotes en vuelo
      */
     private void startBatchDispatcher() {
         executorService.submit(() -> {
             while (running) {
                 try {
-                    BatchTask task = pendingBatches.take();
-                    dispatchBatch(task);
+                    BatchTask task = pendingBatches.takeFirst();
+                    JobStatus job = jobs.get(task.jobId);
+                    if (job == null || job.terminado.isDone()) {
+                        // Job fallido (o eliminado): sus lotes pendientes ya no se envían
+                        liberarPermiso();
+                        continue;
+                    }
+                    WorkerSlot worker = reservarWorker();
+                    if (worker == null) {
+                        liberarPermiso();
+                        finalizarJob(job, "FAILED", "Ningún worker utilizable durante " +
+                                     esperaSinWorkersMs / 1000 + " s");
+                        continue;
+                    }
+                    dispatchBatch(task, worker);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -324,299 +597,359 @@ public class DatagramMasterImpl implements DatagramMaster {
     }
     
     /**
-     * Distribuye un lote a un worker disponible
+     * Envía un lote de forma asíncrona; el resultado se convierte y combina en mergeExecutor
      */
-    private void dispatchBatch(BatchTask task) {
-        DatagramWorkerPrx worker = selectAvailableWorker();
-        
-        if (worker != null) {
-            executorService.submit(() -> {
+    private void dispatchBatch(BatchTask task, WorkerSlot worker) {
+        CompletableFuture<BatchResult> respuesta;
+        try {
+            respuesta = worker.proxy.processBatchAsync(task.batch, task.nodes, task.filtros, task.perfil);
+        } catch (Exception e) {
+            respuesta = new CompletableFuture<>();
+            respuesta.completeExceptionally(e);
+        }
+        respuesta.whenCompleteAsync((result, error) -> {
+            liberarWorker(worker, error == null ? result : null);
+            String fallo = error != null ? String.valueOf(error.getMessage())
+                         : !result.success ? "el worker reportó: " + result.errorMessage : null;
+            ResultadoDeLote convertido = null;
+            if (fallo == null) {
+                // Toda la conversión antes de tocar el job: si falla, no hay nada que deshacer
                 try {
-                    BatchResult result = worker.processBatch(
-                        task.batch.toArray(new Datagram[0]), 
-                        task.nodes
-                    );
-                    
-                    // Procesar resultado
-                    JobStatus job = jobs.get(task.jobId);
-                    if (job != null) {
-                        for (SpeedStatistics stats : result.statistics) {
-                            String key = stats.routeId + "-" + stats.origenStopId + "-" + stats.destinoStopId;
-                            // Combinar estadísticas si ya existen
-                            if (job.results.containsKey(key)) {
-                                SpeedStatistics existing = job.results.get(key);
-                                // Combinar muestras
-                                int totalMuestras = existing.numMuestras + stats.numMuestras;
-                                double tiempoPromedio = (existing.tiempoPromedio * existing.numMuestras + 
-                                                        stats.tiempoPromedio * stats.numMuestras) / totalMuestras;
-                                double velocidadPromedio = stats.distancia > 0 && tiempoPromedio > 0 ?
-                                    stats.distancia / (tiempoPromedio / 60.0) : 0.0;
-                                
-                                job.results.put(key, new SpeedStatistics(
-                                    stats.routeId, stats.origenStopId, stats.destinoStopId,
-                                    stats.distancia, tiempoPromedio, velocidadPromedio, totalMuestras
-                                ));
-                            } else {
-                                job.results.put(key, stats);
-                            }
-                        }
-                        job.completedBatches++;
-                    }
-                } catch (Exception e) {
-                    System.err.println("Error procesando lote " + task.batchId + ": " + e.getMessage());
-                    // Reintentar
-                    pendingBatches.offer(task);
+                    convertido = convertirResultado(result);
+                } catch (RuntimeException e) {
+                    fallo = "resultado inválido: " + e.getMessage();
                 }
-            });
-        } else {
-            // No hay workers disponibles, reintentar más tarde
-            pendingBatches.offer(task);
+            }
+            if (fallo != null) {
+                System.err.println("Error procesando lote " + task.batchId + " en " + worker.id + ": " + fallo);
+                reintentarOFallar(task, fallo);
+                return;
+            }
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+                procesarResultado(task, convertido);
+            } finally {
+                liberarPermiso();
             }
-        }
+        }, mergeExecutor);
     }
     
     /**
-     * Selecciona un worker disponible (round-robin)
+     * Reencola un lote fallido antes que los lotes nuevos (conserva su lugar en lotesEnMemoria);
+     * después de datagram.master.intentosPorLote intentos el job termina como FAILED
      */
-    private DatagramWorkerPrx selectAvailableWorker() {
-        for (DatagramWorkerPrx worker : workers.values()) {
-            try {
-                if (worker.isAvailable()) {
-                    return worker;
-                }
-            } catch (Exception e) {
-                // Worker no disponible, continuar
-            }
+    private void reintentarOFallar(BatchTask task, String fallo) {
+        if (++task.intentos < intentosPorLote) {
+            pendingBatches.offerFirst(task);
+            return;
+        }
+        liberarPermiso();
+        JobStatus job = jobs.get(task.jobId);
+        if (job != null) {
+            finalizarJob(job, "FAILED", "Lote " + task.batchId + " falló " + task.intentos + " veces: " + fallo);
         }
-        return null;
     }
     
     /**
-     * Convierte GraphNodeList a mapa
+     * Convierte un BatchResult a tipos comunes (sin tocar el estado de ningún job)
      */
-    private Map<String, com.sitm.mio.common.GraphNode> convertirNodes(GraphNode[] nodes) {
-        Map<String, com.sitm.mio.common.GraphNode> map = new HashMap<>();
-        for (GraphNode node : nodes) {
-            map.put(node.id, new com.sitm.mio.common.GraphNode(
-                node.id, node.nombre, node.tipo, node.longitud, node.latitud
-            ));
+    private ResultadoDeLote convertirResultado(BatchResult result) {
+        List<DatagramProcessor.SpeedStatistics> parciales = new ArrayList<>(result.statistics.length);
+        for (SpeedStatistics stats : result.statistics) {
+            parciales.add(convertirEstadistica(stats));
         }
-        return map;
+        // Un lote sin celdas no aporta perfil
+        SlottedArcProfile perfil = result.perfil == null || result.perfil.celdas.length == 0
+            ? null : SlotProfileAdapter.desdeIce(result.perfil);
+        return new ResultadoDeLote(parciales, convertirPermanencias(result.permanencias),
+                                   perfil, result.rejected, result.unknownStops);
     }
     
-    // Métodos auxiliares para parsear CSV (simplificados)
-    private String[] parsearCSV(String linea) {
-        return linea.split(",");
+    /**
+     * Combina el resultado ya convertido de un lote en su job
+     * OPTIMIZACIÓN: La combinación se hace en un segmento libre del StripedResultMerger del job;
+     * los callbacks de lotes de distintos workers no compiten por el lock del job (se consolida
+     * al leer los resultados o al terminar)
+     */
+    private void procesarResultado(BatchTask task, ResultadoDeLote resultado) {
+        JobStatus job = jobs.get(task.jobId);
+        if (job == null || job.terminado.isDone()) {
+            return;
+        }
+        sumarRechazos(job, resultado.rechazos);
+        job.paradasDesconocidas.addAndGet(resultado.paradasDesconocidas);
+        // Combinar los acumuladores por arco (exacto y asociativo: el orden
+        // de llegada de los lotes no cambia el resultado)
+        job.parciales.combinar(resultado.parciales, resultado.permanencias, resultado.perfil);
+        job.completedBatches.incrementAndGet();
+        verificarTerminado(job);
     }
     
     /**
-     * Detecta si la primera línea del CSV contiene encabezados o datos
+     * Pasa lo combinado en los segmentos del job a sus resultados (exacto, en cualquier momento)
      */
-    private boolean detectarSiTieneEncabezados(String[] primeraLinea) {
-        if (primeraLinea == null || primeraLinea.length == 0) {
-            return false;
+    private void consolidar(JobStatus job) {
+        StripedResultMerger.Parcial parcial = job.parciales.vaciar();
+        if (parcial == null) {
+            return;
         }
-        
-        String[] palabrasClave = {"bus", "route", "line", "stop", "date", "time", "timestamp", 
-                                  "lat", "lon", "lng", "longitude", "latitude", "id", "trip"};
-        
-        int coincidencias = 0;
-        for (String campo : primeraLinea) {
-            String campoLower = campo.replace("\"", "").trim().toLowerCase();
-            for (String clave : palabrasClave) {
-                if (campoLower.contains(clave)) {
-                    coincidencias++;
-                    break;
-                }
+        synchronized (job) {
+            job.results.mergeAll(parcial.resultados, DatagramProcessor.SpeedStatistics::combinar);
+            job.permanencias.mergeAll(parcial.permanencias, DatagramProcessor.DwellStatistics::combinar);
+            if (parcial.perfil != null && job.perfil != null) {
+                job.perfil.combinar(parcial.perfil);
             }
         }
-        
-        // Si todos son números, definitivamente son datos
-        boolean todosSonNumeros = true;
-        for (String campo : primeraLinea) {
-            String campoLimpio = campo.replace("\"", "").trim();
-            if (!campoLimpio.isEmpty()) {
-                try {
-                    Double.parseDouble(campoLimpio);
-                } catch (NumberFormatException e) {
-                    todosSonNumeros = false;
-                    break;
+    }
+    
+    /**
+     * Consume un crédito del worker menos cargado: menor proporción de lotes en vuelo sobre sus
+     * lugares (enVuelo / slots), así un worker de 2 lugares libre se prefiere a uno de 16 con 13
+     * ocupados; a igualdad, el de más créditos. Los workers son pocos: se recorren todos
+     * OPTIMIZACIÓN: Los créditos llegan con cada BatchResult, así el Master sabe qué workers tienen
+     * lugar sin llamar a isAvailable antes de cada lote (cero RTT extra por lote)
+     * Espera (sin sondear) hasta que llegue un crédito o termine una pausa
+     *
+     * @return null si durante datagram.master.esperaSinWorkersMs no hubo ningún worker utilizable
+     *         (ninguno registrado o todos en pausa por fallos)
+     */
+    private WorkerSlot reservarWorker() throws InterruptedException {
+        synchronized (capacidad) {
+            while (true) {
+                long ahora = System.currentTimeMillis();
+                long proximaReanudacion = Long.MAX_VALUE;
+                boolean hayUtilizables = false;
+                WorkerSlot elegido = null;
+                for (WorkerSlot worker : workers.values()) {
+                    if (worker.pausadoHasta > ahora) {
+                        proximaReanudacion = Math.min(proximaReanudacion, worker.pausadoHasta);
+                        continue;
+                    }
+                    hayUtilizables = true;
+                    if (worker.creditos > 0 && (elegido == null || menosCargado(worker, elegido))) {
+                        elegido = worker;
+                    }
+                }
+                if (elegido != null) {
+                    elegido.creditos--;
+                    elegido.enVuelo++;
+                    return elegido;
+                }
+                if (hayUtilizables) {
+                    // Workers ocupados: esperar créditos sin límite
+                    sinWorkersDesde = -1;
+                    capacidad.wait(proximaReanudacion == Long.MAX_VALUE ? 0 : proximaReanudacion - ahora);
+                    continue;
                 }
+                if (sinWorkersDesde < 0) {
+                    sinWorkersDesde = ahora;
+                }
+                long limite = sinWorkersDesde + esperaSinWorkersMs;
+                if (ahora >= limite) {
+                    return null;
+                }
+                capacidad.wait(Math.min(proximaReanudacion, limite) - ahora);
             }
         }
-        
-        if (todosSonNumeros) {
-            return false;
-        }
-        
-        return coincidencias >= 2;
     }
     
     /**
-     * Crea un mapa de índices cuando no hay encabezados, usando un orden predefinido
-     * Orden por defecto basado en estructura real del CSV:
-     * 0: eventType, 1: registerdate, 2: stopId, 3: odometer, 4: latitude, 
-     * 5: longitude, 6: taskId, 7: lineId, 8: tripId, 9: unknown1, 
-     * 10: datagramDate, 11: busId
+     * a está menos cargado que b: compara enVuelo / slots sin dividir; a igualdad, más créditos
      */
-    private Map<String, Integer> crearIndicesSinEncabezados(int numColumnas) {
-        Map<String, Integer> indices = new HashMap<>();
-        
-        // Orden por defecto basado en estructura real
-        int busIdIdx = Integer.parseInt(System.getProperty("datagram.csv.column.busId", "11"));
-        int routeIdIdx = Integer.parseInt(System.getProperty("datagram.csv.column.routeId", "7"));
-        int stopIdIdx = Integer.parseInt(System.getProperty("datagram.csv.column.stopId", "2"));
-        int latitudeIdx = Integer.parseInt(System.getProperty("datagram.csv.column.latitude", "4"));
-        int longitudeIdx = Integer.parseInt(System.getProperty("datagram.csv.column.longitude", "5"));
-        int timestampIdx = Integer.parseInt(System.getProperty("datagram.csv.column.timestamp", "10"));
-        int sequenceIdx = Integer.parseInt(System.getProperty("datagram.csv.column.sequence", "8"));
-        
-        if (busIdIdx >= 0 && busIdIdx < numColumnas) {
-            indices.put("bus_id", busIdIdx);
+    private static boolean menosCargado(WorkerSlot a, WorkerSlot b) {
+        long cargaA = (long) a.enVuelo * b.slots;
+        long cargaB = (long) b.enVuelo * a.slots;
+        return cargaA < cargaB || (cargaA == cargaB && a.creditos > b.creditos);
+    }
+    
+    /**
+     * Devuelve los créditos del lote al worker; si la llamada falló, el worker recupera su crédito
+     * pero queda en pausa con backoff exponencial (1 s, 2 s, 4 s... hasta 30 s) según sus fallos
+     * seguidos. Nunca se retira: un fallo transitorio (pool lleno, timeout) no lo deja sin lotes
+     * y el primer lote que complete después de la pausa reinicia el backoff
+     *
+     * @param result Resultado del lote, o null si la llamada falló
+     */
+    private void liberarWorker(WorkerSlot worker, BatchResult result) {
+        synchronized (capacidad) {
+            worker.enVuelo--;
+            if (result == null) {
+                worker.creditos++;
+                int exponente = Math.min(++worker.fallosSeguidos - 1, 5);
+                long pausa = Math.min(PAUSA_BASE_MS << exponente, PAUSA_MAXIMA_MS);
+                worker.pausadoHasta = System.currentTimeMillis() + pausa;
+                if (worker.fallosSeguidos > 1) {
+                    System.err.println("Worker " + worker.id + " en pausa " + pausa + " ms después de " +
+                                       worker.fallosSeguidos + " fallos seguidos");
+                }
+            } else {
+                worker.creditos += Math.max(0, result.creditos);
+                worker.fallosSeguidos = 0;
+            }
+            capacidad.notifyAll();
         }
-        if (routeIdIdx >= 0 && routeIdIdx < numColumnas) {
-            indices.put("route_id", routeIdIdx);
+    }
+    
+    /**
+     * Convierte un lote de DatagramProcessor.Datagram a Datagram de Ice
+     */
+    private Datagram[] convertirDatagrams(List<DatagramProcessor.Datagram> batch) {
+        Datagram[] result = new Datagram[batch.size()];
+        int i = 0;
+        for (DatagramProcessor.Datagram dg : batch) {
+            result[i++] = new Datagram(dg.getBusId(), dg.getRouteId(), dg.getStopId(),
+                                       dg.getLatitude(), dg.getLongitude(),
+                                       dg.getTimestamp(), dg.getSequence());
         }
-        if (stopIdIdx >= 0 && stopIdIdx < numColumnas) {
-            indices.put("stop_id", stopIdIdx);
+        return result;
+    }
+    
+    /**
+     * Convierte GraphNode de Ice al mapa de GraphNode común
+     */
+    private Map<String, com.sitm.mio.common.GraphNode> convertirNodos(GraphNode[] nodes) {
+        Map<String, com.sitm.mio.common.GraphNode> map = new HashMap<>();
+        for (GraphNode node : nodes) {
+            map.put(node.id, new com.sitm.mio.common.GraphNode(
+                node.id, node.nombre, node.tipo, node.longitud, node.latitud
+            ));
         }
-        if (latitudeIdx >= 0 && latitudeIdx < numColumnas) {
-            indices.put("latitude", latitudeIdx);
+        return map;
+    }
+    
+    /**
+     * Suma filas inválidas reportadas por el cliente o un Worker a los contadores del job
+     */
+    private void sumarRechazos(JobStatus job, RejectedRows rejected) {
+        if (rejected == null) {
+            return;
         }
-        if (longitudeIdx >= 0 && longitudeIdx < numColumnas) {
-            indices.put("longitude", longitudeIdx);
+        // Solo los motivos con filas: la mayoría de los lotes no toma el lock de los contadores
+        sumarRechazos(job, ParseCounters.COLUMNA_FALTANTE, rejected.missingColumn);
+        sumarRechazos(job, ParseCounters.COORDENADA_INVALIDA, rejected.badCoordinate);
+        sumarRechazos(job, ParseCounters.TIMESTAMP_INVALIDO, rejected.badTimestamp);
+        sumarRechazos(job, ParseCounters.SECUENCIA_INVALIDA, rejected.badSequence);
+    }
+    
+    private void sumarRechazos(JobStatus job, int motivo, long cantidad) {
+        if (cantidad > 0) {
+            job.rechazos.registrarRechazos(motivo, cantidad);
         }
-        if (timestampIdx >= 0 && timestampIdx < numColumnas) {
-            indices.put("timestamp", timestampIdx);
+    }
+    
+    /**
+     * Convierte permanencias de Ice (parcial de un Worker) a DwellStatistics comunes
+     */
+    private List<DatagramProcessor.DwellStatistics> convertirPermanencias(DwellStatistics[] permanencias) {
+        List<DatagramProcessor.DwellStatistics> result = new ArrayList<>();
+        if (permanencias == null) {
+            return result;
         }
-        if (sequenceIdx >= 0 && sequenceIdx < numColumnas) {
-            indices.put("sequence", sequenceIdx);
+        for (DwellStatistics p : permanencias) {
+            result.add(new DatagramProcessor.DwellStatistics(p.routeId, p.stopId,
+                new ArcAccumulator(p.numVisitas, p.sumaTiempos, p.sumaCuadrados, p.tiempoMinimo, p.tiempoMaximo)));
         }
-        
-        System.out.println("⚠ Archivo sin encabezados - Orden de columnas:");
-        System.out.println("  Estructura esperada: eventType, registerdate, stopId, odometer, latitude, longitude, taskId, lineId, tripId, unknown1, datagramDate, busId");
-        System.out.println("  busId: " + busIdIdx + ", routeId/lineId: " + routeIdIdx + 
-                         ", stopId: " + stopIdIdx + ", lat: " + latitudeIdx + 
-                         ", lon: " + longitudeIdx + ", timestamp/datagramDate: " + timestampIdx + 
-                         ", sequence/tripId: " + sequenceIdx);
-        
-        return indices;
+        return result;
     }
     
-    private Map<String, Integer> mapearEncabezados(String[] encabezados) {
-        Map<String, Integer> indices = new HashMap<>();
-        for (int i = 0; i < encabezados.length; i++) {
-            String enc = encabezados[i].replace("\"", "").trim().toLowerCase();
-            if (enc.equals("busid") || enc.equals("bus_id") || enc.matches(".*bus.*id.*")) {
-                indices.put("bus_id", i);
-            }
-            if (enc.equals("lineid") || enc.equals("line_id") || 
-                enc.matches(".*line.*id.*|.*route.*id.*")) {
-                indices.put("route_id", i); // lineId se mapea a route_id
-            }
-            if (enc.equals("stopid") || enc.equals("stop_id") || enc.matches(".*stop.*id.*")) {
-                indices.put("stop_id", i);
-            }
-            if (enc.equals("latitude") || enc.equals("lat")) {
-                indices.put("latitude", i);
-            }
-            if (enc.equals("longitude") || enc.equals("lon") || enc.equals("lng")) {
-                indices.put("longitude", i);
-            }
-            if (enc.equals("datagramdate") || enc.equals("datagram_date") ||
-                enc.matches(".*datagram.*date.*|.*timestamp.*|.*time.*")) {
-                indices.put("timestamp", i); // datagramDate se mapea a timestamp
-            }
-            if (enc.equals("tripid") || enc.equals("trip_id") ||
-                enc.matches(".*trip.*id.*|.*sequence.*|.*order.*")) {
-                indices.put("sequence", i); // tripId se usa como secuencia
-            }
+    /**
+     * Compila los filtros de arcos del job una sola vez y su forma Ice, que viaja con cada lote
+     * para que todos los Workers filtren igual. Los filtros vienen del cliente (sus propiedades
+     * datagram.filter.*); solo si no llegan se usan las propiedades del Master
+     *
+     * @param distribuido Lotes repartidos entre Workers: sin etapa de atípicos (ver ArcFilterPipeline)
+     */
+    private void compilarFiltros(JobStatus job, ArcFilterConfig filtros, boolean distribuido) {
+        ArcFilterPipeline p = filtros == null ? ArcFilterPipeline.desdePropiedades()
+            : new ArcFilterPipeline(filtros.tiempoMinimo, filtros.tiempoMaximo, filtros.permanenciaMaxima,
+                                    filtros.gapViajeMaximo, filtros.distanciaMinima, filtros.velocidadMinima,
+                                    filtros.velocidadMaxima, filtros.atipicosK, filtros.minMuestrasAtipicos);
+        if (distribuido) {
+            p = p.sinAtipicos();
         }
-        return indices;
+        job.pipeline = p;
+        job.filtrosIce = new ArcFilterConfig(p.getTiempoMinimo(), p.getTiempoMaximo(), p.getPermanenciaMaxima(),
+                                             p.getGapViajeMaximo(), p.getDistanciaMinima(), p.getVelocidadMinima(),
+                                             p.getVelocidadMaxima(), p.getAtipicosK(), p.getMinMuestrasAtipicos());
     }
     
-    private Datagram parsearDatagram(String[] campos, Map<String, Integer> indices) {
-        try {
-            String busId = campos[indices.get("bus_id")].replace("\"", "").trim();
-            String routeId = campos[indices.get("route_id")].replace("\"", "").trim();
-            String stopId = campos[indices.get("stop_id")].replace("\"", "").trim();
-            
-            // Las coordenadas están en microgrados (ej: 34761183 = 34.761183)
-            double lat = Double.parseDouble(campos[indices.get("latitude")].replace("\"", "").trim());
-            double lon = Double.parseDouble(campos[indices.get("longitude")].replace("\"", "").trim());
-            
-            // Convertir de microgrados a grados decimales
-            if (Math.abs(lat) > 90) {
-                lat = lat / 1000000.0;
-            }
-            if (Math.abs(lon) > 180) {
-                lon = lon / 1000000.0;
-            }
-            
-            // Parsear timestamp desde datagramDate
-            long timestamp = parsearTimestamp(campos, indices);
-            int seq = indices.containsKey("sequence") ? 
-                Integer.parseInt(campos[indices.get("sequence")].replace("\"", "").trim()) : 0;
-            
-            if (busId != null && routeId != null && stopId != null && timestamp > 0) {
-                return new Datagram(busId, routeId, stopId, lat, lon, timestamp, seq);
-            }
-        } catch (Exception e) {
-            // Ignorar errores de parseo
+    /**
+     * Perfil por franja del job: solo si el cliente lo pide, con sus franjas y su zona (no las
+     * propiedades del Master ni de cada Worker). La misma configuración viaja con cada lote
+     */
+    private void prepararPerfil(JobStatus job, SlotProfileConfig perfil) {
+        if (perfil == null || !perfil.activo) {
+            job.perfilIce = new SlotProfileConfig(false, 0, false, "");
+            return;
         }
-        return null;
+        // Valida las franjas antes de repartir lotes; los perfiles de los lotes se suman a este
+        job.perfil = new SlottedArcProfile(perfil.minutosSlot, perfil.finDeSemana, ZoneId.of(perfil.zona));
+        job.perfilIce = perfil;
     }
     
     /**
-     * Parsea timestamp desde datagramDate (formato: "2019-05-27 20:14:43")
+     * Convierte el filtro de Ice al DatagramFilter común (0 en desde/hasta = sin límite)
      */
-    private long parsearTimestamp(String[] campos, Map<String, Integer> indices) {
-        String valor = campos[indices.get("timestamp")].replace("\"", "").trim();
-        if (valor == null || valor.isEmpty()) {
-            return 0;
+    private com.sitm.mio.common.DatagramFilter convertirFiltro(DatagramFilter filter) {
+        com.sitm.mio.common.DatagramFilter filtro = new com.sitm.mio.common.DatagramFilter();
+        if (filter == null) {
+            return filtro;
         }
-        
-        try {
-            // Intentar como milisegundos
-            return Long.parseLong(valor);
-        } catch (NumberFormatException e) {
-            try {
-                // Intentar como segundos
-                return (long)(Double.parseDouble(valor) * 1000);
-            } catch (NumberFormatException e2) {
-                // Parsear como fecha "2019-05-27 20:14:43"
-                return parsearFechaHora(valor);
+        if (filter.routeIds != null) {
+            filtro.rutas(Arrays.asList(filter.routeIds));
+        }
+        filtro.rango(filter.desde != 0 ? filter.desde : Long.MIN_VALUE,
+                     filter.hasta != 0 ? filter.hasta : Long.MAX_VALUE);
+        if (filter.usarCaja) {
+            filtro.caja(filter.latMin, filter.lonMin, filter.latMax, filter.lonMax);
+        }
+        if (filter.eventTypes != null) {
+            List<Integer> tipos = new ArrayList<>(filter.eventTypes.length);
+            for (int tipo : filter.eventTypes) {
+                tipos.add(tipo);
             }
+            filtro.eventTypes(tipos);
         }
+        return filtro;
     }
     
-    private long parsearFechaHora(String fechaHora) {
-        try {
-            String[] partes = fechaHora.trim().split(" ");
-            if (partes.length != 2) return 0;
-            
-            String[] fechaPartes = partes[0].split("-");
-            String[] horaPartes = partes[1].split(":");
-            
-            if (fechaPartes.length != 3 || horaPartes.length != 3) return 0;
-            
-            java.util.Calendar cal = java.util.Calendar.getInstance();
-            cal.set(Integer.parseInt(fechaPartes[0]), 
-                   Integer.parseInt(fechaPartes[1]) - 1, 
-                   Integer.parseInt(fechaPartes[2]),
-                   Integer.parseInt(horaPartes[0]),
-                   Integer.parseInt(horaPartes[1]),
-                   Integer.parseInt(horaPartes[2]));
-            cal.set(java.util.Calendar.MILLISECOND, 0);
-            
-            return cal.getTimeInMillis();
-        } catch (Exception e) {
-            return 0;
+    /**
+     * Convierte SpeedStatistics común a SpeedStatistics de Ice
+     */
+    private SpeedStatistics convertirEstadistica(DatagramProcessor.SpeedStatistics s) {
+        return new SpeedStatistics(s.getRouteId(), s.getOrigenStopId(), s.getDestinoStopId(),
+                                   s.getDistancia(), s.getTiempoPromedio(), s.getVelocidadPromedio(),
+                                   s.getNumMuestras(), s.getTiempos().getSuma(), s.getTiempos().getSumaCuadrados(),
+                                   s.getTiempoMinimo(), s.getTiempoMaximo(),
+                                   convertirDistribucion(s.getDistribucion()));
+    }
+    
+    /**
+     * Convierte SpeedStatistics de Ice (parcial de un Worker) a SpeedStatistics común con su acumulador
+     */
+    private DatagramProcessor.SpeedStatistics convertirEstadistica(SpeedStatistics s) {
+        return new DatagramProcessor.SpeedStatistics(s.routeId, s.origenStopId, s.destinoStopId, s.distancia,
+            new ArcAccumulator(s.numMuestras, s.sumaTiempos, s.sumaCuadrados, s.tiempoMinimo, s.tiempoMaximo),
+            convertirDistribucion(s.distribucion));
+    }
+    
+    /**
+     * Convierte QuantileSketch común a TravelTimeSketch de Ice (gamma 0 si no hay distribución)
+     */
+    private TravelTimeSketch convertirDistribucion(QuantileSketch q) {
+        if (q == null) {
+            return new TravelTimeSketch(0.0, 0, new int[0], 0L);
+        }
+        return new TravelTimeSketch(q.getGamma(), q.getIndiceMinimo(), q.getConteos(), q.getCeros());
+    }
+    
+    /**
+     * Convierte TravelTimeSketch de Ice a QuantileSketch común (null si no hay distribución)
+     */
+    private QuantileSketch convertirDistribucion(TravelTimeSketch t) {
+        if (t == null || t.gamma <= 1.0 || t.conteos == null) {
+            return null;
         }
+        return new QuantileSketch(t.gamma, t.indiceMinimo, t.conteos, t.ceros);
     }
     
     /**
@@ -625,14 +958,72 @@ public class DatagramMasterImpl implements DatagramMaster {
     private static class BatchTask {
         String batchId;
         String jobId;
-        List<Datagram> batch;
+        Datagram[] batch;
         GraphNode[] nodes;
+        ArcFilterConfig filtros;
+        SlotProfileConfig perfil;
+        int intentos; // Intentos fallidos (solo el hilo que recibe su resultado lo modifica)
         
-        BatchTask(String batchId, String jobId, List<Datagram> batch, GraphNode[] nodes) {
+        BatchTask(String batchId, String jobId, Datagram[] batch, GraphNode[] nodes, ArcFilterConfig filtros,
+                  SlotProfileConfig perfil) {
             this.batchId = batchId;
             this.jobId = jobId;
             this.batch = batch;
             this.nodes = nodes;
+            this.filtros = filtros;
+            this.perfil = perfil;
+        }
+    }
+    
+    /**
+     * Lote de submitBatch esperando un permiso de lotesEnMemoria, con la respuesta AMD pendiente
+     */
+    private static class EnvioEnEspera {
+        final BatchTask task;
+        final CompletableFuture<Boolean> respuesta = new CompletableFuture<>();
+        
+        EnvioEnEspera(BatchTask task) {
+            this.task = task;
+        }
+    }
+    
+    /**
+     * Resultado de un lote convertido a tipos comunes, listo para combinar
+     */
+    private static class ResultadoDeLote {
+        final List<DatagramProcessor.SpeedStatistics> parciales;
+        final List<DatagramProcessor.DwellStatistics> permanencias;
+        final SlottedArcProfile perfil;
+        final RejectedRows rechazos;
+        final long paradasDesconocidas;
+        
+        ResultadoDeLote(List<DatagramProcessor.SpeedStatistics> parciales,
+                        List<DatagramProcessor.DwellStatistics> permanencias,
+                        SlottedArcProfile perfil, RejectedRows rechazos, long paradasDesconocidas) {
+            this.parciales = parciales;
+            this.permanencias = permanencias;
+            this.perfil = perfil;
+            this.rechazos = rechazos;
+            this.paradasDesconocidas = paradasDesconocidas;
+        }
+    }
+    
+    /**
+     * Worker registrado, sus créditos y sus lotes en vuelo (protegidos por el monitor capacidad)
+     */
+    private static class WorkerSlot {
+        final String id;
+        final DatagramWorkerPrx proxy;
+        final int slots; // Lotes que procesa en paralelo (anunciados en registerWorker)
+        int creditos;  // Lotes que se le pueden enviar sin consultar (concedidos por el Worker)
+        int enVuelo;
+        int fallosSeguidos;
+        long pausadoHasta; // Después de un fallo no recibe lotes hasta este instante (ms)
+        
+        WorkerSlot(String id, DatagramWorkerPrx proxy, WorkerCapacity capacidad) {
+            this.id = id;
+            this.proxy = proxy;
+            this.slots = capacidad != null ? Math.max(1, capacidad.slots) : 1;
         }
     }
     
@@ -644,10 +1035,25 @@ public class DatagramMasterImpl implements DatagramMaster {
         String filePath;
         GraphNode[] nodes; // Nodos del grafo (para jobs sin archivo)
         int totalBatches;
-        int completedBatches;
-        String status; // PROCESSING, COMPLETED, FAILED
-        String errorMessage;
-        Map<String, SpeedStatistics> results;
+        final AtomicInteger completedBatches = new AtomicInteger(); // Lotes combinados en parciales
+        int lotesRecibidos; // Lotes de submitBatch (lock del job)
+        boolean lotesCerrados; // Ya no llegan más lotes (lock del job)
+        int ultimoPorcentaje = -1; // Último avance notificado (lock del job)
+        volatile String status; // PROCESSING, FOLLOWING, COMPLETED, FAILED
+        volatile String errorMessage;
+        final CompletableFuture<String> terminado = new CompletableFuture<>(); // Estado final
+        final List<JobCallbackPrx> observadores = new CopyOnWriteArrayList<>();
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> results; // Acumulados por arco, sin filtrar (lock del job)
+        final StripedResultMerger parciales = new StripedResultMerger(); // Lotes aún sin consolidar en results
+        DatagramFileFollower follower; // Solo para jobs de followFile
+        com.sitm.mio.common.DatagramFilter filtro; // Filtros del job (processFile y startJob)
+        ArcFilterPipeline pipeline; // Filtros de arcos compilados al crear el job
+        ArcFilterConfig filtrosIce; // El mismo pipeline en forma Ice, enviado con cada lote
+        SlotProfileConfig perfilIce; // Perfil que pidió el cliente, enviado con cada lote
+        final ParseCounters rechazos = new ParseCounters(); // Filas descartadas al leer
+        final AtomicLong paradasDesconocidas = new AtomicLong(); // Datagrams usados con parada fuera del grafo
+        SlottedArcProfile perfil; // Perfil por franja combinado; null si el job no lo pidió (lock del job)
+        ArcKeyMap<DatagramProcessor.DwellStatistics> permanencias = new ArcKeyMap<>(); // Por (ruta, parada), lock del job
     }
 }
 
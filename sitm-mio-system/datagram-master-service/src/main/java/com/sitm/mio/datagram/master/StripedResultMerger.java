@@ -0,0 +1,157 @@
+package com.sitm.mio.datagram.master;
+
+import com.sitm.mio.common.ArcKeyMap;
+import com.sitm.mio.common.DatagramProcessor;
+import com.sitm.mio.common.SlottedArcProfile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+
+/**
+ * Combinación de los resultados de los lotes de un job repartida en segmentos con lock propio
+ * OPTIMIZACIÓN: Cada hilo de combinación del Master combina su parcial en el primer segmento
+ * libre (tryLock empezando por el segmento propio del hilo) en lugar de competir por el lock del
+ * job; los segmentos se vacían y se reducen en árbol (el menor sobre el mayor) solo al leer los
+ * resultados o al terminar
+ *
+ * El resultado es exacto: la combinación de acumuladores es asociativa y conmutativa
+ * Segmentos: datagram.master.segmentosCombinacion (por defecto, los núcleos del Master, igual que
+ * datagram.master.hilosCombinacion: con un segmento por hilo casi nunca hay espera)
+ */
+class StripedResultMerger {
+
+    /**
+     * Resultados combinados de uno o más lotes
+     */
+    static class Parcial {
+        ArcKeyMap<DatagramProcessor.SpeedStatistics> resultados = new ArcKeyMap<>();
+        ArcKeyMap<DatagramProcessor.DwellStatistics> permanencias = new ArcKeyMap<>();
+        SlottedArcProfile perfil; // null hasta el primer lote con perfil
+
+        boolean vacio() {
+            return resultados.size() == 0 && permanencias.size() == 0 && perfil == null;
+        }
+
+        /**
+         * Combina otro parcial en este (el mapa menor se recorre sobre el mayor)
+         */
+        Parcial combinar(Parcial otro) {
+            resultados = unir(resultados, otro.resultados, DatagramProcessor.SpeedStatistics::combinar);
+            permanencias = unir(permanencias, otro.permanencias, DatagramProcessor.DwellStatistics::combinar);
+            sumarPerfil(otro.perfil);
+            return this;
+        }
+
+        /**
+         * Suma un perfil por franja (todos los lotes de un job usan las franjas de su SlotProfileConfig)
+         */
+        void sumarPerfil(SlottedArcProfile otro) {
+            if (otro == null) {
+                return;
+            }
+            if (perfil == null) {
+                perfil = otro;
+            } else {
+                perfil.combinar(otro);
+            }
+        }
+
+        private static <V> ArcKeyMap<V> unir(ArcKeyMap<V> a, ArcKeyMap<V> b, BinaryOperator<V> combinar) {
+            ArcKeyMap<V> mayor = a.size() >= b.size() ? a : b;
+            ArcKeyMap<V> menor = mayor == a ? b : a;
+            mayor.mergeAll(menor, mayor == a ? combinar : (x, y) -> combinar.apply(y, x));
+            return mayor;
+        }
+    }
+
+    private static class Segmento {
+        final ReentrantLock lock = new ReentrantLock();
+        Parcial parcial = new Parcial();
+    }
+
+    // Índice consecutivo por hilo: los hilos del pool de combinación empiezan en segmentos distintos
+    private static final AtomicInteger SIGUIENTE_HILO = new AtomicInteger(0);
+    private static final ThreadLocal<Integer> INDICE_DEL_HILO =
+        ThreadLocal.withInitial(SIGUIENTE_HILO::getAndIncrement);
+
+    private final Segmento[] segmentos;
+
+    StripedResultMerger() {
+        this(Integer.getInteger("datagram.master.segmentosCombinacion",
+                                Runtime.getRuntime().availableProcessors()));
+    }
+
+    StripedResultMerger(int numSegmentos) {
+        segmentos = new Segmento[Math.max(1, numSegmentos)];
+        for (int i = 0; i < segmentos.length; i++) {
+            segmentos[i] = new Segmento();
+        }
+    }
+
+    /**
+     * Combina los resultados de un lote en un segmento libre (si todos están ocupados, espera el del hilo)
+     *
+     * @param perfil Perfil del lote ya convertido (o null); pasa a ser del segmento
+     */
+    void combinar(Collection<DatagramProcessor.SpeedStatistics> parciales,
+                  Collection<DatagramProcessor.DwellStatistics> permanencias, SlottedArcProfile perfil) {
+        int inicio = INDICE_DEL_HILO.get() % segmentos.length;
+        Segmento elegido = null;
+        for (int i = 0; i < segmentos.length && elegido == null; i++) {
+            Segmento s = segmentos[(inicio + i) % segmentos.length];
+            if (s.lock.tryLock()) {
+                elegido = s;
+            }
+        }
+        if (elegido == null) {
+            elegido = segmentos[inicio];
+            elegido.lock.lock();
+        }
+        try {
+            DatagramProcessor.combinarEn(elegido.parcial.resultados, parciales);
+            DatagramProcessor.combinarPermanenciasEn(elegido.parcial.permanencias, permanencias);
+            elegido.parcial.sumarPerfil(perfil);
+        } finally {
+            elegido.lock.unlock();
+        }
+    }
+
+    /**
+     * Retira lo combinado en todos los segmentos y lo reduce en árbol
+     *
+     * @return Parcial con todo lo combinado desde la última llamada, o null si no hubo lotes
+     */
+    Parcial vaciar() {
+        List<Parcial> nivel = new ArrayList<>(segmentos.length);
+        for (Segmento s : segmentos) {
+            s.lock.lock();
+            try {
+                if (!s.parcial.vacio()) {
+                    nivel.add(s.parcial);
+                    s.parcial = new Parcial();
+                }
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        if (nivel.isEmpty()) {
+            return null;
+        }
+        // Reducción por pares: cada nivel combina la mitad de los parciales
+        while (nivel.size() > 1) {
+            List<Parcial> siguiente = new ArrayList<>((nivel.size() + 1) / 2);
+            for (int i = 0; i + 1 < nivel.size(); i += 2) {
+                siguiente.add(nivel.get(i).combinar(nivel.get(i + 1)));
+            }
+            if (nivel.size() % 2 == 1) {
+                siguiente.add(nivel.get(nivel.size() - 1));
+            }
+            nivel = siguiente;
+        }
+        return nivel.get(0);
+    }
+}
@@ -1,44 +1,166 @@
 package com.sitm.mio.datagram.worker;
 
 import DatagramProcessing.*;
+import com.sitm.mio.common.ArcFilterPipeline;
 import com.sitm.mio.common.DatagramProcessor;
+import com.sitm.mio.common.QuantileSketch;
+import com.sitm.mio.common.SlotProfileAdapter;
+import com.sitm.mio.common.SlottedArcProfile;
+import com.sitm.mio.common.TrajectoryArcCollector;
 import com.zeroc.Ice.Current;
 
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementación del servicio Worker para procesar lotes de datagrams
  * Patrón: Master-Worker
+ * OPTIMIZACIÓN: Procesa varios lotes a la vez en un pool interno acotado (despacho AMD); anuncia
+ * sus núcleos, memoria y lugares al registrarse y el Master le concede un crédito por lugar.
+ * Después los créditos los concede el Worker con cada BatchResult según la ocupación real de sus
+ * lugares: lleva cuántos créditos tiene el Master y cuántos lotes ocupan un lugar, y solo concede
+ * los lugares libres que el Master todavía no conoce
+ *
+ * Lugares: datagram.worker.slots si está definida; si no, el mínimo entre los núcleos y
+ * memoria máxima / datagram.worker.memoriaPorLoteMb (por defecto 128 MB por lote)
  */
 public class DatagramWorkerImpl implements DatagramWorker {
     
     private final String workerId;
-    private volatile boolean available;
+    private final int cores;
+    private final long memoriaMb;
+    private final int slots;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger enProceso;
     private final AtomicInteger tasksProcessed;
     private final AtomicLong totalProcessingTime;
     
+    // Créditos en poder del Master y lotes recibidos sin terminar (protegidos por el monitor lugares)
+    private final Object lugares = new Object();
+    private int concedidos;
+    private int reservados;
+    
+    // Nodos de los jobs recientes, el más reciente primero: un lote con los mismos nodos reutiliza el
+    // mapa (y su ArcDistanceTable) aunque se intercale con lotes de otros jobs
+    private static final int MAXIMO_NODOS_RECIENTES = 4;
+    private final LinkedList<NodosConvertidos> nodosRecientes = new LinkedList<>();
+    
+    // Filtros del último lote: los lotes de un job comparten el pipeline compilado
+    private volatile FiltrosConvertidos ultimosFiltros;
+    
     public DatagramWorkerImpl() {
         this.workerId = "worker-" + UUID.randomUUID().toString().substring(0, 8);
-        this.available = true;
+        this.cores = Runtime.getRuntime().availableProcessors();
+        this.memoriaMb = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+        this.slots = calcularSlots(cores, memoriaMb);
+        // Cola del tamaño del pool: con créditos el Master no envía más lotes que lugares,
+        // y si lo hace el lote se rechaza en lugar de acumularse en memoria
+        AtomicInteger hilos = new AtomicInteger(0);
+        this.pool = new ThreadPoolExecutor(slots, slots, 0L, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<>(slots), r -> {
+            Thread hilo = new Thread(r, workerId + "-lote-" + hilos.incrementAndGet());
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        this.enProceso = new AtomicInteger(0);
         this.tasksProcessed = new AtomicInteger(0);
         this.totalProcessingTime = new AtomicLong(0);
     }
     
+    /**
+     * Lugares del Worker según la propiedad, los núcleos y la memoria de la JVM
+     */
+    private static int calcularSlots(int cores, long memoriaMb) {
+        Integer configurados = Integer.getInteger("datagram.worker.slots");
+        if (configurados != null) {
+            return Math.max(1, configurados);
+        }
+        long porMemoria = memoriaMb / Math.max(1, Long.getLong("datagram.worker.memoriaPorLoteMb", 128L));
+        return (int) Math.max(1, Math.min(cores, porMemoria));
+    }
+    
     @Override
-    public BatchResult processBatch(Datagram[] batch, GraphNode[] nodes, Current current) {
+    public CompletionStage<BatchResult> processBatchAsync(Datagram[] batch, GraphNode[] nodes, ArcFilterConfig filtros,
+                                                          SlotProfileConfig perfil, Current current) {
+        reservarLugar();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                BatchResult result = procesarLote(batch, nodes, filtros, perfil);
+                result.creditos = liberarLugar();
+                return result;
+            }, pool);
+        } catch (RejectedExecutionException e) {
+            // Más lotes que lugares: el Master lo reintenta como cualquier lote fallido
+            devolverLugar();
+            CompletableFuture<BatchResult> rechazado = new CompletableFuture<>();
+            rechazado.completeExceptionally(e);
+            return rechazado;
+        }
+    }
+    
+    /**
+     * Llega un lote: el Master gastó un crédito y el lote ocupa un lugar hasta terminar
+     */
+    private void reservarLugar() {
+        synchronized (lugares) {
+            concedidos = Math.max(0, concedidos - 1);
+            reservados++;
+        }
+    }
+    
+    /**
+     * Lote rechazado sin ocupar lugar: el Master recupera el crédito al ver la llamada fallida
+     */
+    private void devolverLugar() {
+        synchronized (lugares) {
+            reservados--;
+            concedidos++;
+        }
+    }
+    
+    /**
+     * Termina un lote: concede los lugares libres que el Master no tiene como crédito. Normalmente
+     * es el del lote; 0 si el Master tiene más créditos que lugares libres (ej: se volvió a
+     * registrar con lotes del registro anterior todavía en proceso)
+     */
+    private int liberarLugar() {
+        synchronized (lugares) {
+            reservados--;
+            int creditos = Math.max(0, slots - reservados - concedidos);
+            concedidos += creditos;
+            return creditos;
+        }
+    }
+    
+    /**
+     * Procesa un lote en un hilo del pool
+     */
+    private BatchResult procesarLote(Datagram[] batch, GraphNode[] nodes, ArcFilterConfig filtros,
+                                     SlotProfileConfig configPerfil) {
         long startTime = System.currentTimeMillis();
-        available = false;
+        enProceso.incrementAndGet();
         
         try {
             // Convertir arrays Ice a tipos Java
             List<DatagramProcessor.Datagram> datagrams = convertirDatagrams(batch);
             Map<String, com.sitm.mio.common.GraphNode> nodeMap = convertirNodes(nodes);
+            ArcFilterPipeline pipeline = convertirFiltros(filtros);
             
-            // Procesar lote usando DatagramProcessor optimizado
-            Map<String, DatagramProcessor.SpeedStatistics> statistics = 
-                DatagramProcessor.calcularVelocidadesParaLote(datagrams, nodeMap);
+            // Acumular tiempos por arco, por franja horaria (si el job lo pidió) y permanencias en
+            // parada en la misma pasada; el Master combina los parciales y filtra sobre el total
+            SlottedArcProfile perfil = configPerfil != null && configPerfil.activo
+                ? new SlottedArcProfile(configPerfil.minutosSlot, configPerfil.finDeSemana, ZoneId.of(configPerfil.zona))
+                : null;
+            TrajectoryArcCollector colector = DatagramProcessor.recorrerTrayectos(datagrams, nodeMap, perfil, pipeline);
+            Map<String, DatagramProcessor.SpeedStatistics> statistics = colector.acumulados();
             
             // Convertir resultados a tipos Ice
             SpeedStatistics[] iceStats = convertirStatistics(statistics);
@@ -50,6 +172,10 @@ public class DatagramWorkerImpl implements DatagramWorker {
             result.processingTime = (System.currentTimeMillis() - startTime) / 1000.0;
             result.success = true;
             result.errorMessage = "";
+            result.rejected = new RejectedRows(0, 0, 0, 0);
+            result.unknownStops = contarParadasDesconocidas(batch, nodeMap);
+            result.perfil = SlotProfileAdapter.aIce(perfil);
+            result.permanencias = convertirPermanencias(colector.permanencias().valores());
             
             tasksProcessed.incrementAndGet();
             totalProcessingTime.addAndGet(System.currentTimeMillis() - startTime);
@@ -68,18 +194,38 @@ public class DatagramWorkerImpl implements DatagramWorker {
             result.processingTime = (System.currentTimeMillis() - startTime) / 1000.0;
             result.success = false;
             result.errorMessage = e.getMessage();
+            result.rejected = new RejectedRows();
+            result.perfil = SlotProfileAdapter.aIce(null);
+            result.permanencias = new DwellStatistics[0];
             
             System.err.println("Error procesando lote en worker " + workerId + ": " + e.getMessage());
             return result;
             
         } finally {
-            available = true;
+            enProceso.decrementAndGet();
         }
     }
     
     @Override
     public boolean isAvailable(Current current) {
-        return available;
+        return enProceso.get() < slots;
+    }
+    
+    /**
+     * Capacidad que se anuncia al Master en registerWorker; el Master parte con un crédito por lugar
+     */
+    public WorkerCapacity getCapacidad() {
+        synchronized (lugares) {
+            concedidos = slots;
+        }
+        return new WorkerCapacity(cores, memoriaMb, slots);
+    }
+    
+    /**
+     * Detiene el pool de lotes (los lotes en proceso terminan)
+     */
+    public void cerrar() {
+        pool.shutdown();
     }
     
     @Override
@@ -94,8 +240,8 @@ public class DatagramWorkerImpl implements DatagramWorker {
         double avgTime = tasks > 0 ? totalTime / (1000.0 * tasks) : 0.0;
         
         return String.format(
-            "Worker ID: %s | Tareas procesadas: %d | Tiempo promedio: %.2f s | Disponible: %s",
-            workerId, tasks, avgTime, available
+            "Worker ID: %s | Tareas procesadas: %d | Tiempo promedio: %.2f s | En proceso: %d/%d",
+            workerId, tasks, avgTime, enProceso.get(), slots
         );
     }
     
@@ -113,10 +259,32 @@ public class DatagramWorkerImpl implements DatagramWorker {
         return result;
     }
     
+    /**
+     * Cuenta los datagrams cuya parada no está en el grafo del job (ya usados en los arcos del lote:
+     * es un dato informativo, no un rechazo)
+     */
+    private long contarParadasDesconocidas(Datagram[] batch, Map<String, com.sitm.mio.common.GraphNode> nodeMap) {
+        long desconocidas = 0;
+        for (Datagram dg : batch) {
+            if (!nodeMap.containsKey(dg.stopId)) {
+                desconocidas++;
+            }
+        }
+        return desconocidas;
+    }
+    
     /**
      * Convierte array de GraphNode Ice a mapa de GraphNode común
+     * OPTIMIZACIÓN: Todos los lotes de un job traen el mismo grafo; se reutiliza el mapa ya
+     * convertido para que la tabla de distancias (ArcDistanceTable) se construya una sola vez por job
      */
     private Map<String, com.sitm.mio.common.GraphNode> convertirNodes(GraphNode[] nodes) {
+        synchronized (nodosRecientes) {
+            Map<String, com.sitm.mio.common.GraphNode> reciente = buscarNodos(nodes);
+            if (reciente != null) {
+                return reciente;
+            }
+        }
         Map<String, com.sitm.mio.common.GraphNode> map = new HashMap<>();
         for (GraphNode node : nodes) {
             // Los campos de struct en Ice son públicos
@@ -124,9 +292,81 @@ public class DatagramWorkerImpl implements DatagramWorker {
                 node.id, node.nombre, node.tipo, node.longitud, node.latitud
             ));
         }
+        synchronized (nodosRecientes) {
+            // Otro lote del mismo job pudo convertirlos mientras tanto: todos usan el mismo mapa
+            Map<String, com.sitm.mio.common.GraphNode> reciente = buscarNodos(nodes);
+            if (reciente != null) {
+                return reciente;
+            }
+            nodosRecientes.addFirst(new NodosConvertidos(nodes, map));
+            if (nodosRecientes.size() > MAXIMO_NODOS_RECIENTES) {
+                nodosRecientes.removeLast();
+            }
+        }
         return map;
     }
     
+    /**
+     * Mapa ya convertido para los mismos nodos (lo pasa al frente) o null
+     * Se llama con el lock de nodosRecientes
+     */
+    private Map<String, com.sitm.mio.common.GraphNode> buscarNodos(GraphNode[] nodes) {
+        for (Iterator<NodosConvertidos> it = nodosRecientes.iterator(); it.hasNext(); ) {
+            NodosConvertidos recientes = it.next();
+            if (Arrays.equals(recientes.ice, nodes)) {
+                it.remove();
+                nodosRecientes.addFirst(recientes);
+                return recientes.mapa;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Nodos Ice recibidos y su mapa convertido
+     */
+    private static class NodosConvertidos {
+        final GraphNode[] ice;
+        final Map<String, com.sitm.mio.common.GraphNode> mapa;
+        
+        NodosConvertidos(GraphNode[] ice, Map<String, com.sitm.mio.common.GraphNode> mapa) {
+            this.ice = ice;
+            this.mapa = mapa;
+        }
+    }
+    
+    /**
+     * Convierte los filtros del job al ArcFilterPipeline común (sin filtros: los de las propiedades)
+     * Se reutiliza el pipeline anterior mientras lleguen los mismos filtros
+     */
+    private ArcFilterPipeline convertirFiltros(ArcFilterConfig filtros) {
+        if (filtros == null) {
+            return ArcFilterPipeline.desdePropiedades();
+        }
+        FiltrosConvertidos anterior = ultimosFiltros;
+        if (anterior != null && anterior.ice.equals(filtros)) {
+            return anterior.pipeline;
+        }
+        ArcFilterPipeline pipeline = new ArcFilterPipeline(filtros.tiempoMinimo, filtros.tiempoMaximo,
+            filtros.permanenciaMaxima, filtros.gapViajeMaximo, filtros.distanciaMinima, filtros.velocidadMinima,
+            filtros.velocidadMaxima, filtros.atipicosK, filtros.minMuestrasAtipicos);
+        ultimosFiltros = new FiltrosConvertidos(filtros, pipeline);
+        return pipeline;
+    }
+    
+    /**
+     * Filtros Ice recibidos y su pipeline compilado (se publican juntos)
+     */
+    private static class FiltrosConvertidos {
+        final ArcFilterConfig ice;
+        final ArcFilterPipeline pipeline;
+        
+        FiltrosConvertidos(ArcFilterConfig ice, ArcFilterPipeline pipeline) {
+            this.ice = ice;
+            this.pipeline = pipeline;
+        }
+    }
+    
     /**
      * Convierte mapa de SpeedStatistics a array Ice
      */
@@ -142,9 +382,38 @@ public class DatagramWorkerImpl implements DatagramWorker {
             ice.tiempoPromedio = s.getTiempoPromedio();
             ice.velocidadPromedio = s.getVelocidadPromedio();
             ice.numMuestras = s.getNumMuestras();
+            ice.sumaTiempos = s.getTiempos().getSuma();
+            ice.sumaCuadrados = s.getTiempos().getSumaCuadrados();
+            ice.tiempoMinimo = s.getTiempoMinimo();
+            ice.tiempoMaximo = s.getTiempoMaximo();
+            ice.distribucion = convertirDistribucion(s.getDistribucion());
             result.add(ice);
         }
         return result.toArray(new SpeedStatistics[0]);
     }
+    
+    /**
+     * Convierte permanencias en parada a array Ice
+     */
+    private DwellStatistics[] convertirPermanencias(List<DatagramProcessor.DwellStatistics> permanencias) {
+        DwellStatistics[] result = new DwellStatistics[permanencias.size()];
+        int i = 0;
+        for (DatagramProcessor.DwellStatistics p : permanencias) {
+            result[i++] = new DwellStatistics(p.getRouteId(), p.getStopId(), p.getNumVisitas(),
+                                              p.getTiempos().getSuma(), p.getTiempos().getSumaCuadrados(),
+                                              p.getTiempoMinimo(), p.getTiempoMaximo());
+        }
+        return result;
+    }
+    
+    /**
+     * Convierte la distribución de tiempos a TravelTimeSketch de Ice (gamma 0 si no hay)
+     */
+    private TravelTimeSketch convertirDistribucion(QuantileSketch q) {
+        if (q == null) {
+            return new TravelTimeSketch(0.0, 0, new int[0], 0L);
+        }
+        return new TravelTimeSketch(q.getGamma(), q.getIndiceMinimo(), q.getConteos(), q.getCeros());
+    }
 }
 
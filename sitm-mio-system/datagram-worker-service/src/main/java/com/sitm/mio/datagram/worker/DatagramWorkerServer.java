@@ -16,6 +16,7 @@ public class DatagramWorkerServer {
     public static void main(String[] args) {
         int status = 0;
         Communicator communicator = null;
+        DatagramWorkerImpl servant = null;
         
         try {
             // Inicializar Ice con configuración
@@ -74,7 +75,7 @@ public class DatagramWorkerServer {
             }
             
             // Crear servant
-            DatagramWorkerImpl servant = new DatagramWorkerImpl();
+            servant = new DatagramWorkerImpl();
             String identity = System.getProperty("DatagramWorker.Identity", "DatagramWorker");
             ObjectPrx proxy = adapter.add(servant, Util.stringToIdentity(identity));
             adapter.activate();
@@ -186,13 +187,16 @@ public class DatagramWorkerServer {
                 
                 // Registrar worker con Master
                 DatagramWorkerPrx workerProxy = DatagramWorkerPrx.uncheckedCast(proxy);
-                String workerId = master.registerWorker(workerProxy);
+                WorkerCapacity capacidad = servant.getCapacidad();
+                String workerId = master.registerWorker(workerProxy, capacidad);
                 
                 System.out.println("=== DATAGRAM WORKER SERVER ===");
                 System.out.println("Worker ID: " + workerId);
                 System.out.println("Adapter: " + adapterName);
                 System.out.println("Endpoints: " + adapterEndpoints);
                 System.out.println("Identity: " + identity);
+                System.out.println("Capacidad: " + capacidad.cores + " núcleos, " + capacidad.memoriaMb +
+                                   " MB, " + capacidad.slots + " lotes en paralelo");
                 System.out.println("✓ Registrado con Master exitosamente vía IceGrid");
                 
             } catch (java.lang.Exception e) {
@@ -212,6 +216,9 @@ public class DatagramWorkerServer {
             if (communicator != null) {
                 communicator.destroy();
             }
+            if (servant != null) {
+                servant.cerrar();
+            }
         }
         
         System.exit(status);
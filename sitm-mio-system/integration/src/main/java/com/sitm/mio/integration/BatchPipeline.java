@@ -0,0 +1,232 @@
+package com.sitm.mio.integration;
+
+import DatagramProcessing.DatagramMasterPrx;
+import com.sitm.mio.common.DatagramFilter;
+import com.sitm.mio.common.DatagramProcessor;
+import com.sitm.mio.common.MappedDatagramReader;
+import com.sitm.mio.common.ParseCounters;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Pipeline de envío de lotes al Master: lectura -> conversión a Ice -> envío
+ * OPTIMIZACIÓN: Cada etapa corre en su propio hilo, unidas por colas acotadas, y el emisor
+ * mantiene varios submitBatch asíncronos en vuelo; el tiempo total se acerca al de la etapa
+ * más lenta en lugar de la suma de las tres
+ *
+ * Configuración:
+ *   datagram.client.colaLotes - capacidad de cada cola entre etapas (por defecto 8)
+ *   datagram.client.enVuelo   - lotes enviados sin confirmar al mismo tiempo (por defecto 4)
+ *
+ * Patrón: Pipes and Filters
+ */
+public class BatchPipeline {
+
+    private static final long ESPERA_COLA_MS = 100;
+
+    private final DatagramMasterPrx master;
+    private final String jobId;
+    private final Function<List<DatagramProcessor.Datagram>, DatagramProcessing.Datagram[]> convertidor;
+    private final int capacidadCola;
+    private final int maxEnVuelo;
+
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private final AtomicInteger lotesEnviados = new AtomicInteger();
+
+    public BatchPipeline(DatagramMasterPrx master, String jobId,
+                         Function<List<DatagramProcessor.Datagram>, DatagramProcessing.Datagram[]> convertidor) {
+        this(master, jobId, convertidor,
+             Integer.getInteger("datagram.client.colaLotes", 8),
+             Integer.getInteger("datagram.client.enVuelo", 4));
+    }
+
+    public BatchPipeline(DatagramMasterPrx master, String jobId,
+                         Function<List<DatagramProcessor.Datagram>, DatagramProcessing.Datagram[]> convertidor,
+                         int capacidadCola, int maxEnVuelo) {
+        this.master = master;
+        this.jobId = jobId;
+        this.convertidor = convertidor;
+        this.capacidadCola = Math.max(1, capacidadCola);
+        this.maxEnVuelo = Math.max(1, maxEnVuelo);
+    }
+
+    /**
+     * Lee el archivo en lotes y los envía al Master; retorna cuando todos los lotes fueron confirmados
+     *
+     * @return Número de lotes enviados
+     */
+    public int ejecutar(String filePath, int batchSize) throws java.lang.Exception {
+        return ejecutar(filePath, batchSize, null, null);
+    }
+
+    /**
+     * Igual que ejecutar(filePath, batchSize), aplicando los filtros al leer: las filas descartadas
+     * no se convierten ni se envían
+     *
+     * @param filtro Filtros del job (null = sin filtros)
+     * @param contadores Acumula filas aceptadas, filtradas y rechazadas por motivo (null = no reportar)
+     */
+    public int ejecutar(String filePath, int batchSize, DatagramFilter filtro,
+                        ParseCounters contadores) throws java.lang.Exception {
+        BlockingQueue<Lote<List<DatagramProcessor.Datagram>>> leidos = new ArrayBlockingQueue<>(capacidadCola);
+        BlockingQueue<Lote<DatagramProcessing.Datagram[]>> convertidos = new ArrayBlockingQueue<>(capacidadCola);
+
+        Thread lector = iniciar("batch-lector", () -> {
+            try {
+                DatagramProcessor.cargarDatagrams(filePath, batchSize, MappedDatagramReader.hilosConfigurados(),
+                    filtro, contadores, (batch, num) -> poner(leidos, new Lote<>(batch, num)));
+            } finally {
+                poner(leidos, Lote.fin());
+            }
+        });
+
+        Thread conversor = iniciar("batch-conversor", () -> {
+            try {
+                Lote<List<DatagramProcessor.Datagram>> lote;
+                while (!(lote = tomar(leidos)).esFin()) {
+                    poner(convertidos, new Lote<>(convertidor.apply(lote.datos), lote.numero));
+                }
+            } finally {
+                poner(convertidos, Lote.fin());
+            }
+        });
+
+        Thread emisor = iniciar("batch-emisor", () -> {
+            Semaphore enVuelo = new Semaphore(maxEnVuelo);
+            try {
+                Lote<DatagramProcessing.Datagram[]> lote;
+                while (!(lote = tomar(convertidos)).esFin()) {
+                    verificarError();
+                    enviar(lote, enVuelo);
+                }
+            } finally {
+                // Esperar las confirmaciones pendientes
+                enVuelo.acquireUninterruptibly(maxEnVuelo);
+            }
+        });
+
+        lector.join();
+        conversor.join();
+        emisor.join();
+
+        Throwable causa = error.get();
+        if (causa instanceof java.lang.Exception) {
+            throw (java.lang.Exception) causa;
+        }
+        if (causa != null) {
+            throw new IOException("Error en el pipeline de lotes: " + causa.getMessage(), causa);
+        }
+        return lotesEnviados.get();
+    }
+
+    /**
+     * Envía un lote sin bloquear más allá del límite de lotes en vuelo
+     */
+    private void enviar(Lote<DatagramProcessing.Datagram[]> lote, Semaphore enVuelo) throws java.lang.Exception {
+        while (!enVuelo.tryAcquire(ESPERA_COLA_MS, TimeUnit.MILLISECONDS)) {
+            verificarError();
+        }
+        final int num = lote.numero;
+        master.submitBatchAsync(jobId, lote.datos, num).whenComplete((accepted, ex) -> {
+            try {
+                if (ex != null) {
+                    fallar(new IOException("Error enviando lote " + num + ": " + ex.getMessage(), ex));
+                } else if (!accepted) {
+                    fallar(new IOException("El Master rechazó el lote " + num));
+                } else {
+                    int enviados = lotesEnviados.incrementAndGet();
+                    if (enviados % 10 == 0) {
+                        System.out.println("  Lotes enviados: " + enviados);
+                    }
+                }
+            } finally {
+                enVuelo.release();
+            }
+        });
+    }
+
+    private interface Etapa {
+        void ejecutar() throws java.lang.Exception;
+    }
+
+    private Thread iniciar(String nombre, Etapa etapa) {
+        Thread hilo = new Thread(() -> {
+            try {
+                etapa.ejecutar();
+            } catch (java.lang.Exception e) {
+                fallar(e);
+            }
+        }, nombre);
+        hilo.setDaemon(true);
+        hilo.start();
+        return hilo;
+    }
+
+    private void fallar(Throwable causa) {
+        error.compareAndSet(null, causa);
+    }
+
+    private void verificarError() throws IOException {
+        if (error.get() != null) {
+            throw new IOException("Pipeline detenido por un error en otra etapa");
+        }
+    }
+
+    /**
+     * Pone un elemento en la cola sin quedar bloqueado si otra etapa falló
+     * (el marcador de fin siempre se entrega para que la etapa siguiente termine)
+     */
+    private <T> void poner(BlockingQueue<Lote<T>> cola, Lote<T> lote) throws IOException {
+        try {
+            while (!cola.offer(lote, ESPERA_COLA_MS, TimeUnit.MILLISECONDS)) {
+                if (error.get() != null) {
+                    if (!lote.esFin()) {
+                        verificarError();
+                    }
+                    cola.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline de lotes interrumpido", e);
+        }
+    }
+
+    private <T> Lote<T> tomar(BlockingQueue<Lote<T>> cola) throws IOException {
+        try {
+            return cola.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline de lotes interrumpido", e);
+        }
+    }
+
+    /**
+     * Lote numerado que viaja entre etapas (datos == null marca el fin del flujo)
+     */
+    private static class Lote<T> {
+        final T datos;
+        final int numero;
+
+        Lote(T datos, int numero) {
+            this.datos = datos;
+            this.numero = numero;
+        }
+
+        static <T> Lote<T> fin() {
+            return new Lote<>(null, -1);
+        }
+
+        boolean esFin() {
+            return datos == null;
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package com.sitm.mio.integration;
 
 import DatagramProcessing.*;
+import com.sitm.mio.common.ArcAccumulator;
+import com.sitm.mio.common.ArcFilterPipeline;
+import com.sitm.mio.common.ArcKeyMap;
+import com.sitm.mio.common.ColumnarDatagramReader;
 import com.sitm.mio.common.GraphAdapter;
 import com.sitm.mio.common.GraphNode;
 import com.sitm.mio.common.DatagramProcessor;
+import com.sitm.mio.common.ParseCounters;
+import com.sitm.mio.common.QuantileSketch;
+import com.sitm.mio.common.SlotProfileAdapter;
+import com.sitm.mio.common.SlottedArcProfile;
 import com.zeroc.Ice.*;
 import com.zeroc.IceGrid.QueryPrx;
 
@@ -17,6 +25,13 @@ public class DatagramDistributedClient {
     
     private final DatagramMasterPrx master;
     private final Communicator communicator;
+    private volatile RejectedRows ultimasFilasInvalidas = new RejectedRows();
+    private volatile SlottedArcProfile ultimoPerfil; // Perfil por franja del último job (null si no hay)
+    private volatile List<com.sitm.mio.common.DatagramProcessor.DwellStatistics> ultimasPermanencias =
+        new ArrayList<>(); // Permanencias en parada del último job
+    private final JobCompletionTracker seguimiento = new JobCompletionTracker();
+    private JobCallbackPrx callback; // Creado al primer job (null si no se pudo)
+    private boolean callbackIntentado;
     
     public DatagramDistributedClient(String locatorEndpoint) throws java.lang.Exception {
         communicator = Util.initialize();
@@ -92,53 +107,41 @@ public class DatagramDistributedClient {
      */
     public Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> 
             processFile(String filePath, com.sitm.mio.grafos.Grafo grafo, int batchSize) throws java.lang.Exception {
+        return processFile(filePath, grafo, batchSize, new com.sitm.mio.common.DatagramFilter());
+    }
+    
+    /**
+     * Procesa un archivo de forma distribuida; el Master aplica los filtros al escanear el archivo
+     * 
+     * @param filtro Filtros de ruta, tiempo, coordenadas y eventType
+     */
+    public Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> 
+            processFile(String filePath, com.sitm.mio.grafos.Grafo grafo, int batchSize,
+                        com.sitm.mio.common.DatagramFilter filtro) throws java.lang.Exception {
         
         // Convertir nodos del grafo a formato Ice
         Map<String, com.sitm.mio.common.GraphNode> nodos = GraphAdapter.convertirNodos(grafo);
         DatagramProcessing.GraphNode[] nodeList = convertirNodesToIce(nodos);
         
         // Iniciar procesamiento distribuido
-        System.out.println("Iniciando procesamiento distribuido de: " + filePath);
-        String jobId = master.processFile(filePath, nodeList, batchSize);
+        System.out.println("Iniciando procesamiento distribuido de: " + filePath + " (" + filtro + ")");
+        String jobId = master.processFile(filePath, nodeList, batchSize, convertirFiltroToIce(filtro),
+                                          filtrosDeArcos(), perfilPorFranja());
         System.out.println("Job ID: " + jobId);
         
-        // Monitorear progreso
-        int lastProgress = -1;
-        while (true) {
-            int progress = master.getJobProgress(jobId);
-            
-            if (progress == -1) {
-                throw new java.lang.Exception("Job no encontrado: " + jobId);
-            }
-            
-            if (progress != lastProgress) {
-                System.out.println("Progreso: " + progress + "%");
-                lastProgress = progress;
-            }
-            
-            if (progress >= 100) {
-                break;
-            }
-            
-            Thread.sleep(2000); // Esperar 2 segundos antes de verificar de nuevo
-        }
+        // Esperar el fin del job (callback del Master)
+        esperarJob(jobId);
         
         // Obtener resultados
         System.out.println("Obteniendo resultados...");
         SpeedStatistics[] results = master.getJobResults(jobId);
+        reportarFilasInvalidas(jobId);
+        ultimoPerfil = SlotProfileAdapter.desdeIce(master.getJobSlotProfile(jobId));
+        ultimasPermanencias = convertirPermanencias(master.getJobDwellResults(jobId));
         
-        // Convertir a formato común
+        // Convertir a formato común (con el acumulador de tiempos de cada arco)
         Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> estadisticas = 
-            new HashMap<>();
-        
-        for (SpeedStatistics stats : results) {
-            String key = stats.routeId + "-" + stats.origenStopId + "-" + stats.destinoStopId;
-            estadisticas.put(key, new com.sitm.mio.common.DatagramProcessor.SpeedStatistics(
-                stats.routeId, stats.origenStopId, stats.destinoStopId,
-                stats.distancia, stats.tiempoPromedio, 
-                stats.velocidadPromedio, stats.numMuestras
-            ));
-        }
+            convertirResultados(results);
         
         System.out.println("Procesamiento completado: " + estadisticas.size() + 
                          " velocidades calculadas");
@@ -158,6 +161,18 @@ public class DatagramDistributedClient {
      */
     public Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> 
             processFileLocal(String filePath, com.sitm.mio.grafos.Grafo grafo, int batchSize) throws java.lang.Exception {
+        return processFileLocal(filePath, grafo, batchSize, new com.sitm.mio.common.DatagramFilter());
+    }
+    
+    /**
+     * Procesa un archivo leído localmente aplicando los filtros al escanear
+     * OPTIMIZACIÓN: Las filas descartadas no se construyen, no se convierten a Ice ni viajan al Master
+     * 
+     * @param filtro Filtros de ruta, tiempo, coordenadas y eventType
+     */
+    public Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> 
+            processFileLocal(String filePath, com.sitm.mio.grafos.Grafo grafo, int batchSize,
+                             com.sitm.mio.common.DatagramFilter filtro) throws java.lang.Exception {
         
         // Convertir nodos del grafo a formato Ice
         Map<String, com.sitm.mio.common.GraphNode> nodos = GraphAdapter.convertirNodos(grafo);
@@ -165,78 +180,41 @@ public class DatagramDistributedClient {
         
         System.out.println("Leyendo archivo localmente: " + filePath);
         System.out.println("El Master NO requiere acceso al archivo");
+        System.out.println("Filtros: " + filtro);
         
         // Contar total de lotes primero (para estimar)
         int totalBatches = estimarTotalBatches(filePath, batchSize);
         
         // Iniciar job en el Master
-        String jobId = master.startJob(nodeList, totalBatches);
+        String jobId = master.startJob(nodeList, totalBatches, convertirFiltroToIce(filtro), filtrosDeArcos(),
+                                       perfilPorFranja());
         System.out.println("Job ID: " + jobId);
         
-        // Leer archivo y enviar lotes
-        com.sitm.mio.common.DatagramProcessor.BatchCallback callback = (batch, num) -> {
-            try {
-                // Convertir Datagram comunes a Datagram de Ice
-                DatagramProcessing.Datagram[] iceBatch = convertirDatagramsToIce(batch);
-                
-                // Enviar lote al Master
-                boolean accepted = master.submitBatch(jobId, iceBatch, num);
-                if (!accepted) {
-                    throw new java.io.IOException("El Master rechazó el lote " + num);
-                }
-                
-                if (num % 10 == 0) {
-                    System.out.println("  Lotes enviados: " + (num + 1));
-                }
-            } catch (java.lang.Exception e) {
-                throw new java.io.IOException("Error enviando lote " + num + ": " + e.getMessage(), e);
-            }
-        };
-        
-        // Cargar datagrams en lotes y enviarlos
-        com.sitm.mio.common.DatagramProcessor.cargarDatagrams(filePath, batchSize, callback);
+        // Leer, convertir y enviar lotes en etapas concurrentes (ver BatchPipeline)
+        ParseCounters contadores = new ParseCounters();
+        BatchPipeline pipeline = new BatchPipeline(master, jobId, this::convertirDatagramsToIce);
+        int lotesEnviados = pipeline.ejecutar(filePath, batchSize, filtro, contadores);
+        System.out.println("  Lotes enviados: " + lotesEnviados);
+        System.out.println("  Filas leídas: " + contadores);
         
-        // Marcar job como completado (todos los lotes enviados)
+        // Marcar job como completado (todos los lotes enviados) reportando las filas descartadas al leer
         System.out.println("Todos los lotes han sido enviados. Marcando job como completado...");
-        master.completeJob(jobId);
+        master.completeJob(jobId, new RejectedRows(contadores.getColumnaFaltante(), contadores.getCoordenadaInvalida(),
+                                                   contadores.getTimestampInvalido(), contadores.getSecuenciaInvalida()));
         
-        // Monitorear progreso
-        int lastProgress = -1;
-        while (true) {
-            int progress = master.getJobProgress(jobId);
-            
-            if (progress == -1) {
-                throw new java.lang.Exception("Job no encontrado: " + jobId);
-            }
-            
-            if (progress != lastProgress) {
-                System.out.println("Progreso: " + progress + "%");
-                lastProgress = progress;
-            }
-            
-            if (progress >= 100) {
-                break;
-            }
-            
-            Thread.sleep(2000); // Esperar 2 segundos antes de verificar de nuevo
-        }
+        // Esperar el fin del job (callback del Master)
+        esperarJob(jobId);
         
         // Obtener resultados
         System.out.println("Obteniendo resultados...");
         SpeedStatistics[] results = master.getJobResults(jobId);
+        reportarFilasInvalidas(jobId);
+        ultimoPerfil = SlotProfileAdapter.desdeIce(master.getJobSlotProfile(jobId));
+        ultimasPermanencias = convertirPermanencias(master.getJobDwellResults(jobId));
         
-        // Convertir a formato común
+        // Convertir a formato común (con el acumulador de tiempos de cada arco)
         Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> estadisticas = 
-            new HashMap<>();
-        
-        for (SpeedStatistics stats : results) {
-            String key = stats.routeId + "-" + stats.origenStopId + "-" + stats.destinoStopId;
-            estadisticas.put(key, new com.sitm.mio.common.DatagramProcessor.SpeedStatistics(
-                stats.routeId, stats.origenStopId, stats.destinoStopId,
-                stats.distancia, stats.tiempoPromedio, 
-                stats.velocidadPromedio, stats.numMuestras
-            ));
-        }
+            convertirResultados(results);
         
         System.out.println("Procesamiento completado: " + estadisticas.size() + 
                          " velocidades calculadas");
@@ -244,10 +222,166 @@ public class DatagramDistributedClient {
         return estadisticas;
     }
     
+    /**
+     * Espera el fin del job: el Master lo notifica por JobCallback en cuanto termina el último lote
+     * Como respaldo (y para mantener activa la conexión del callback) se consulta getJobInfo
+     * cada datagram.cliente.intervaloRespaldoMs (por defecto 5000); sin callback, cada 2 segundos.
+     * Solo se retorna con el job en COMPLETED; un job FAILED se reporta como error
+     */
+    private void esperarJob(String jobId) throws java.lang.Exception {
+        java.util.concurrent.CompletableFuture<String> terminado = seguimiento.seguir(jobId);
+        JobCallbackPrx cb = callback();
+        boolean suscrito = cb != null && master.subscribeJob(jobId, cb);
+        long intervaloMs = suscrito ? Long.getLong("datagram.cliente.intervaloRespaldoMs", 5000L) : 2000L;
+        int lastProgress = -1;
+        try {
+            while (true) {
+                try {
+                    terminado.get(intervaloMs, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    return;
+                } catch (java.util.concurrent.TimeoutException e) {
+                    // Sin notificación todavía: consultar el progreso
+                } catch (java.util.concurrent.ExecutionException e) {
+                    throw new java.lang.Exception(e.getCause().getMessage(), e.getCause());
+                }
+                
+                // Sin notificación (o perdida): el estado del job decide, no el porcentaje
+                JobInfo info = master.getJobInfo(jobId);
+                if (info.status.isEmpty()) {
+                    throw new java.lang.Exception("Job no encontrado: " + jobId);
+                }
+                if ("FAILED".equals(info.status)) {
+                    throw new java.lang.Exception("Job " + jobId + " falló: " + info.errorMessage);
+                }
+                if ("COMPLETED".equals(info.status)) {
+                    return;
+                }
+                int progress = info.totalBatches > 0
+                    ? (int) Math.min(99, (info.completedBatches * 100L) / info.totalBatches) : 0;
+                if (!suscrito && progress != lastProgress) {
+                    System.out.println("Progreso: " + progress + "% (" + info.completedBatches + "/" +
+                                       info.totalBatches + " lotes)");
+                    lastProgress = progress;
+                }
+            }
+        } finally {
+            seguimiento.olvidar(jobId);
+        }
+    }
+    
+    /**
+     * Registra el JobCallback en un adaptador sin endpoints y lo asocia a la conexión con el Master
+     * (conexión bidireccional: el cliente no necesita aceptar conexiones entrantes)
+     */
+    private synchronized JobCallbackPrx callback() {
+        if (!callbackIntentado) {
+            callbackIntentado = true;
+            try {
+                ObjectAdapter adapter = communicator.createObjectAdapter("");
+                callback = JobCallbackPrx.uncheckedCast(adapter.addWithUUID(seguimiento));
+                adapter.activate();
+                master.ice_getConnection().setAdapter(adapter);
+            } catch (LocalException e) {
+                System.out.println("⚠ Callback de jobs no disponible, se consultará el progreso: " + e);
+                callback = null;
+            }
+        }
+        return callback;
+    }
+    
+    /**
+     * Convierte las estadísticas de Ice a SpeedStatistics comunes, combinando por arco
+     */
+    private Map<String, com.sitm.mio.common.DatagramProcessor.SpeedStatistics> convertirResultados(
+            SpeedStatistics[] results) {
+        List<com.sitm.mio.common.DatagramProcessor.SpeedStatistics> parciales = new ArrayList<>(results.length);
+        for (SpeedStatistics stats : results) {
+            parciales.add(new com.sitm.mio.common.DatagramProcessor.SpeedStatistics(
+                stats.routeId, stats.origenStopId, stats.destinoStopId, stats.distancia,
+                new ArcAccumulator(stats.numMuestras, stats.sumaTiempos, stats.sumaCuadrados,
+                                   stats.tiempoMinimo, stats.tiempoMaximo),
+                convertirDistribucion(stats.distribucion)
+            ));
+        }
+        // Combinar por clave empaquetada; la clave de texto solo se arma una vez por arco al final
+        ArcKeyMap<com.sitm.mio.common.DatagramProcessor.SpeedStatistics> porArco = new ArcKeyMap<>(results.length);
+        DatagramProcessor.combinarEn(porArco, parciales);
+        return DatagramProcessor.porTexto(porArco);
+    }
+    
+    /**
+     * Convierte TravelTimeSketch de Ice a QuantileSketch común (null si no hay distribución)
+     */
+    private QuantileSketch convertirDistribucion(TravelTimeSketch t) {
+        if (t == null || t.gamma <= 1.0 || t.conteos == null) {
+            return null;
+        }
+        return new QuantileSketch(t.gamma, t.indiceMinimo, t.conteos, t.ceros);
+    }
+    
+    /**
+     * Consulta y muestra las filas descartadas al leer el archivo del job, por motivo
+     */
+    private void reportarFilasInvalidas(String jobId) {
+        RejectedRows r = master.getJobRejectedRows(jobId);
+        ultimasFilasInvalidas = r;
+        long total = r.missingColumn + r.badCoordinate + r.badTimestamp + r.badSequence;
+        System.out.println("Filas descartadas: " + total +
+                         " (columna faltante: " + r.missingColumn +
+                         ", coordenada inválida: " + r.badCoordinate +
+                         ", timestamp inválido: " + r.badTimestamp +
+                         ", secuencia inválida: " + r.badSequence + ")");
+        // No es un rechazo: esos datagrams se usaron con sus propias coordenadas
+        long fueraDelGrafo = master.getJobInfo(jobId).unknownStops;
+        if (fueraDelGrafo > 0) {
+            System.out.println("Datagrams con parada fuera del grafo (usados con sus coordenadas): " + fueraDelGrafo);
+        }
+    }
+    
+    /**
+     * Convierte las permanencias de Ice a DwellStatistics comunes (ya combinadas por el Master)
+     */
+    private List<com.sitm.mio.common.DatagramProcessor.DwellStatistics> convertirPermanencias(
+            DwellStatistics[] permanencias) {
+        List<com.sitm.mio.common.DatagramProcessor.DwellStatistics> result = new ArrayList<>(permanencias.length);
+        for (DwellStatistics p : permanencias) {
+            result.add(new com.sitm.mio.common.DatagramProcessor.DwellStatistics(p.routeId, p.stopId,
+                new ArcAccumulator(p.numVisitas, p.sumaTiempos, p.sumaCuadrados, p.tiempoMinimo, p.tiempoMaximo)));
+        }
+        return result;
+    }
+    
+    /**
+     * Tiempos de permanencia por ruta y parada del último job
+     */
+    public List<com.sitm.mio.common.DatagramProcessor.DwellStatistics> getUltimasPermanencias() {
+        return ultimasPermanencias;
+    }
+    
+    /**
+     * Perfil de tiempos por arco y franja horaria del último job (null si no hay)
+     */
+    public SlottedArcProfile getUltimoPerfilPorFranja() {
+        return ultimoPerfil;
+    }
+    
+    /**
+     * Filas inválidas del último job procesado (por motivo)
+     */
+    public RejectedRows getUltimasFilasInvalidas() {
+        return ultimasFilasInvalidas;
+    }
+    
     /**
      * Estima el número total de lotes basándose en el tamaño del archivo
+     * (exacto para archivos columnares, que guardan el número de filas)
      */
     private int estimarTotalBatches(String filePath, int batchSize) throws java.io.IOException {
+        if (ColumnarDatagramReader.esArchivoColumnar(filePath)) {
+            long filas = ColumnarDatagramReader.contarFilas(filePath);
+            return (int) Math.max(1, (filas + batchSize - 1) / batchSize);
+        }
+        
         java.io.File file = new java.io.File(filePath);
         if (!file.exists()) {
             // Si no existe localmente, podría ser una ruta de red
@@ -286,6 +420,27 @@ public class DatagramDistributedClient {
         return iceDatagrams;
     }
     
+    /**
+     * Convierte el filtro común al DatagramFilter de Ice (sin límite de tiempo = 0)
+     */
+    private DatagramProcessing.DatagramFilter convertirFiltroToIce(com.sitm.mio.common.DatagramFilter filtro) {
+        DatagramProcessing.DatagramFilter iceFiltro = new DatagramProcessing.DatagramFilter();
+        iceFiltro.routeIds = filtro.getRutas().toArray(new String[0]);
+        iceFiltro.desde = filtro.getDesde() != Long.MIN_VALUE ? filtro.getDesde() : 0;
+        iceFiltro.hasta = filtro.getHasta() != Long.MAX_VALUE ? filtro.getHasta() : 0;
+        iceFiltro.usarCaja = filtro.filtraCaja();
+        iceFiltro.latMin = filtro.getLatMin();
+        iceFiltro.latMax = filtro.getLatMax();
+        iceFiltro.lonMin = filtro.getLonMin();
+        iceFiltro.lonMax = filtro.getLonMax();
+        iceFiltro.eventTypes = new int[filtro.getEventTypes().size()];
+        int i = 0;
+        for (int tipo : filtro.getEventTypes()) {
+            iceFiltro.eventTypes[i++] = tipo;
+        }
+        return iceFiltro;
+    }
+    
     /**
      * Convierte mapa de GraphNode común a GraphNode[] de Ice
      */
@@ -304,6 +459,27 @@ public class DatagramDistributedClient {
         return list.toArray(new DatagramProcessing.GraphNode[0]);
     }
     
+    /**
+     * Filtros de arcos del job desde las propiedades datagram.filter.* de este cliente
+     * (el Master los usa tal cual: sus propias propiedades no cambian los jobs del cliente)
+     */
+    private ArcFilterConfig filtrosDeArcos() {
+        ArcFilterPipeline p = ArcFilterPipeline.desdePropiedades();
+        return new ArcFilterConfig(p.getTiempoMinimo(), p.getTiempoMaximo(), p.getPermanenciaMaxima(),
+                                   p.getGapViajeMaximo(), p.getDistanciaMinima(), p.getVelocidadMinima(),
+                                   p.getVelocidadMaxima(), p.getAtipicosK(), p.getMinMuestrasAtipicos());
+    }
+    
+    /**
+     * Perfil por franja del job desde las propiedades datagram.perfil.* de este cliente; solo se
+     * calcula con datagram.perfil.activo=true (las franjas de los Workers no intervienen)
+     */
+    private SlotProfileConfig perfilPorFranja() {
+        SlottedArcProfile p = new SlottedArcProfile(); // Valida minutosSlot antes de iniciar el job
+        return new SlotProfileConfig(Boolean.getBoolean("datagram.perfil.activo"), p.getMinutosSlot(),
+                                     p.isSepararFinDeSemana(), p.getZona().getId());
+    }
+    
     /**
      * Verifica si hay workers disponibles
      */
@@ -315,6 +491,17 @@ public class DatagramDistributedClient {
         }
     }
     
+    /**
+     * Suma de lugares (lotes en paralelo) de los workers registrados
+     */
+    public int getWorkerSlots() {
+        try {
+            return master.getWorkerSlots();
+        } catch (java.lang.Exception e) {
+            return 0;
+        }
+    }
+    
     /**
      * Cierra la conexión
      */
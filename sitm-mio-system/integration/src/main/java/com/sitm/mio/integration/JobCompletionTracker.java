@@ -0,0 +1,50 @@
+package com.sitm.mio.integration;
+
+import DatagramProcessing.JobCallback;
+import com.zeroc.Ice.Current;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Servant del JobCallback del cliente: un future por job que el Master completa con jobCompleted
+ * OPTIMIZACIÓN: El cliente espera el fin del job sin consultar getJobProgress cada 2 segundos;
+ * un job corto termina en cuanto el Master procesa su último lote
+ *
+ * El avance se imprime cuando el Master lo notifica (cambio de porcentaje)
+ */
+public class JobCompletionTracker implements JobCallback {
+
+    private final Map<String, CompletableFuture<String>> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Future del job (estado final COMPLETED o FAILED); se crea al primer uso
+     */
+    public CompletableFuture<String> seguir(String jobId) {
+        return jobs.computeIfAbsent(jobId, id -> new CompletableFuture<>());
+    }
+
+    /**
+     * Deja de seguir el job (después de obtener sus resultados)
+     */
+    public void olvidar(String jobId) {
+        jobs.remove(jobId);
+    }
+
+    @Override
+    public void jobProgress(String jobId, int completedBatches, int totalBatches, Current current) {
+        int porcentaje = totalBatches > 0 ? (int) ((completedBatches * 100L) / totalBatches) : 0;
+        System.out.println("Progreso: " + porcentaje + "% (" + completedBatches + "/" + totalBatches + " lotes)");
+    }
+
+    @Override
+    public void jobCompleted(String jobId, String status, String errorMessage, Current current) {
+        if ("FAILED".equals(status)) {
+            seguir(jobId).completeExceptionally(new IllegalStateException(
+                "Job " + jobId + " falló: " + errorMessage));
+        } else {
+            seguir(jobId).complete(status);
+        }
+    }
+}
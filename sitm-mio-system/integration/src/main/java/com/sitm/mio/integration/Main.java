@@ -2,12 +2,16 @@ package com.sitm.mio.integration;
 
 import com.sitm.mio.grafos.ConstructorGrafo;
 import com.sitm.mio.grafos.Grafo;
+import com.sitm.mio.common.ColumnarDatagramWriter;
+import com.sitm.mio.common.DatagramFilter;
 import com.sitm.mio.common.DatagramProcessor;
 import com.sitm.mio.common.GraphAdapter;
 import com.sitm.mio.common.GraphNode;
+import com.sitm.mio.common.SlottedArcProfile;
 import com.sitm.mio.integration.DatagramDistributedClient;
 
 import java.io.File;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -49,6 +53,17 @@ public class Main {
                 }
             }
             
+            // Filtros del job (datagram.filter.rutas, desde, hasta, caja, eventTypes)
+            DatagramFilter filtro = DatagramFilter.desdePropiedades();
+            
+            // Si ya existe la versión columnar (ColumnarDatagramWriter), usarla: evita parsear el CSV
+            // (el formato columnar no guarda eventType: con ese filtro se lee el CSV)
+            String rutaColumnar = ColumnarDatagramWriter.rutaPorDefecto(rutaDatagrams);
+            if (new File(rutaColumnar).exists() && !filtro.filtraEventTypes()) {
+                System.out.println("   Usando archivo columnar: " + rutaColumnar);
+                rutaDatagrams = rutaColumnar;
+            }
+            
             System.out.println("2. Procesando datagrams de forma distribuida...");
             
             // Obtener configuración desde propiedades del sistema o archivo .cfg
@@ -74,6 +89,7 @@ public class Main {
             System.out.println("     Tiempo: " + tiempoMin + " - " + tiempoMax + " min");
             System.out.println("     Velocidad: " + velMin + " - " + velMax + " km/h");
             System.out.println("     Distancia mínima: " + distMin + " km");
+            System.out.println("   Filtros de datagrams: " + filtro);
             
             // Conectar con Master usando IceGrid
             DatagramDistributedClient client = new DatagramDistributedClient(locatorEndpoint);
@@ -82,14 +98,17 @@ public class Main {
             if (workerCount == 0) {
                 System.err.println("   ⚠ ADVERTENCIA: No hay workers disponibles");
             } else {
-                System.out.println("   ✓ " + workerCount + " workers disponibles");
+                System.out.println("   ✓ " + workerCount + " workers disponibles (" +
+                                   client.getWorkerSlots() + " lotes en paralelo)");
             }
             
             // Procesar archivo
             // Usar processFileLocal para que el Cliente lea el archivo localmente
             // y el Master NO requiera acceso al archivo
             Map<String, DatagramProcessor.SpeedStatistics> velocidadesReales = 
-                client.processFileLocal(rutaDatagrams, grafoGeneral, batchSize);
+                client.processFileLocal(rutaDatagrams, grafoGeneral, batchSize, filtro);
+            SlottedArcProfile perfil = client.getUltimoPerfilPorFranja();
+            List<DatagramProcessor.DwellStatistics> permanencias = client.getUltimasPermanencias();
             
             client.close();
             
@@ -185,6 +204,48 @@ public class Main {
                 System.out.println("\n   Velocidad promedio ponderada (todas las rutas): " + 
                                  String.format("%.2f", velocidadPromedioRutas) + " km/h");
             }
+
+            // Arcos con mayor variabilidad del tiempo de viaje (p95 frente a p50)
+            if (!velocidadesReales.isEmpty()) {
+                System.out.println("\n5. Arcos con tiempos de viaje más variables (p50 / p85 / p95):");
+                velocidadesReales.values().stream()
+                    .filter(s -> s.getDistribucion() != null && s.getTiempoP50() > 0)
+                    .sorted((s1, s2) -> Double.compare(
+                        s2.getTiempoP95() / s2.getTiempoP50(),
+                        s1.getTiempoP95() / s1.getTiempoP50()))
+                    .limit(5)
+                    .forEach(s -> System.out.println(String.format(
+                        "   Ruta: %s | %s -> %s | p50: %.2f min | p85: %.2f min | p95: %.2f min | Muestras: %d",
+                        s.getRouteId(), s.getOrigenStopId(), s.getDestinoStopId(),
+                        s.getTiempoP50(), s.getTiempoP85(), s.getTiempoP95(), s.getNumMuestras())));
+            }
+
+            // Velocidad de la red por hora a partir del perfil por franja (sin reprocesar)
+            if (perfil != null && perfil.getNumArcos() > 0) {
+                System.out.println("\n6. Velocidad de la red por hora (perfil por franja de " +
+                                 perfil.getMinutosSlot() + " min):");
+                int slotsPorHora = Math.max(1, 60 / perfil.getMinutosSlot());
+                for (int inicio = 0; inicio + slotsPorHora <= perfil.getNumSlots(); inicio += slotsPorHora) {
+                    double velocidad = perfil.getVelocidadRedVentana(inicio, inicio + slotsPorHora);
+                    if (velocidad > 0) {
+                        System.out.println(String.format("   %s | %.2f km/h",
+                            perfil.etiquetaSlot(inicio), velocidad));
+                    }
+                }
+            }
+            
+            // Paradas con mayor tiempo de permanencia (calculado en la misma pasada que los arcos)
+            if (!permanencias.isEmpty()) {
+                System.out.println("\n7. Paradas con mayor tiempo de permanencia (" +
+                                 permanencias.size() + " pares ruta-parada):");
+                permanencias.stream()
+                    .sorted((p1, p2) -> Double.compare(p2.getTiempoPromedio(), p1.getTiempoPromedio()))
+                    .limit(5)
+                    .forEach(p -> System.out.println(String.format(
+                        "   Ruta: %s | Parada: %s | Promedio: %.2f min | Máximo: %.2f min | Visitas: %d",
+                        p.getRouteId(), p.getStopId(), p.getTiempoPromedio(), p.getTiempoMaximo(),
+                        p.getNumVisitas())));
+            }
             
             System.out.println("\n=== PROCESO COMPLETADO ===\n");
             
@@ -36,9 +36,15 @@ REM Filtros básicos para evitar cálculos absurdos (valores por defecto razonab
 REM Tiempo: 0.1 min (6 seg) a 120 min (2 horas)
 REM Velocidad: 1.0 km/h a 120.0 km/h (transporte urbano)
 REM Distancia mínima: 0.01 km (10 metros)
+REM El filtro de atípicos por arco (datagram.filter.atipicosK, desactivado por defecto) solo
+REM aplica al procesamiento local en memoria o con ordenamiento externo: ni el flujo (followFile)
+REM ni los jobs distribuidos lo aplican, así que activarlo hace que sus resultados difieran
+REM Perfil por franja horaria (velocidad de la red por hora): se pide con el job y los Workers
+REM usan estas franjas (datagram.perfil.minutosSlot, finDeSemana y datagram.timezone de este cliente)
 
 java -DIce.Config=%CONFIG_FILE% ^
      -Ddatagram.batch.size=%BATCH_SIZE% ^
+     -Ddatagram.perfil.activo=true ^
      -Ddatagram.filter.tiempoMinimo=0.1 ^
      -Ddatagram.filter.tiempoMaximo=120.0 ^
      -Ddatagram.filter.velocidadMinima=1.0 ^